@@ -0,0 +1,163 @@
+package com.tt.droidplay;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Microbenchmark comparing the incremental request parser with the line based parser it replaced. Both parse the same request
+ * head (as sent by an AirPlay receiver seeking in a video) and look up the headers the server uses.
+ *
+ * The classes under test do not depend on Android, so the benchmark runs on a desktop JVM:
+ *
+ * javac -d /tmp/bench src/com/tt/droidplay/HttpHead.java src/com/tt/droidplay/HttpRequestParser.java bench/com/tt/droidplay/ParserBenchmark.java
+ * java -cp /tmp/bench com.tt.droidplay.ParserBenchmark
+ *
+ * @author Tuomas Tikka
+ */
+public class ParserBenchmark {
+
+	private static final String REQUEST =
+			"GET /L21udC9zZGNhcmQvTW92aWVzL3Rlc3QubXA0 HTTP/1.1\r\n" +
+			"Host: 192.168.1.10:8080\r\n" +
+			"User-Agent: AppleCoreMedia/1.0.0.12B435 (Apple TV; U; CPU OS 8_1 like Mac OS X; en_us)\r\n" +
+			"Accept: */*\r\n" +
+			"Accept-Language: en-us\r\n" +
+			"Range: bytes=1048576-\r\n" +
+			"Accept-Encoding: identity\r\n" +
+			"X-Playback-Session-Id: 2A0C5D8E-5B0B-4A53-9E4B-1D2F8F3C9A71\r\n" +
+			"Connection: keep-alive\r\n" +
+			"\r\n";
+
+	private static final int WARMUP = 200000;
+
+	private static final int ITERATIONS = 1000000;
+
+	// keeps the results alive, so the work is not optimized away
+	private static int sink = 0;
+
+	public static void main(String[] args) throws Exception {
+		byte[] request = REQUEST.getBytes("ISO-8859-1");
+		for (int round = 0; round < 3; round++) {
+			runLegacy(request, WARMUP);
+			runParser(request, WARMUP);
+			report("legacy (line based)", request, false);
+			report("incremental (byte level)", request, true);
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	//
+	// Private
+	//
+
+	private static void report(String name, byte[] request, boolean parser) throws IOException {
+		long allocated = getAllocatedBytes();
+		long t = System.nanoTime();
+		if (parser) {
+			runParser(request, ITERATIONS);
+		} else {
+			runLegacy(request, ITERATIONS);
+		}
+		t = System.nanoTime() - t;
+		allocated = getAllocatedBytes() - allocated;
+		System.out.println(String.format("%-26s %8.1f ns/request %10s bytes/request", name, (double) t / ITERATIONS,
+				allocated < 0 ? "n/a" : String.valueOf(allocated / ITERATIONS)));
+	}
+
+	private static void runParser(byte[] request, int iterations) {
+		HttpRequestParser parser = new HttpRequestParser();
+		for (int i = 0; i < iterations; i++) {
+			parser.getBuffer().put(request);
+			if (parser.parse() != HttpRequestParser.State.COMPLETE) {
+				throw new IllegalStateException("incomplete head");
+			}
+			HttpHead head = parser.getHead();
+			// the lookups done by the request handler
+			sink += head.getUri().length();
+			sink += head.getHeader("Range").length();
+			sink += head.getHeader("If-None-Match") == null ? 1 : 0;
+			sink += head.getHeader("If-Modified-Since") == null ? 1 : 0;
+			sink += head.hasHeaderValue("Connection", "close") ? 1 : 0;
+			parser.next();
+		}
+	}
+
+	private static void runLegacy(byte[] request, int iterations) throws IOException {
+		for (int i = 0; i < iterations; i++) {
+			Map<String, String> headers = new HashMap<String, String>();
+			String uri = parseLegacy(new ByteArrayInputStream(request), headers);
+			sink += uri.length();
+			sink += getLegacyHeader(headers, "Range").length();
+			sink += getLegacyHeader(headers, "If-None-Match") == null ? 1 : 0;
+			sink += getLegacyHeader(headers, "If-Modified-Since") == null ? 1 : 0;
+			String connection = getLegacyHeader(headers, "Connection");
+			sink += connection != null && "close".equals(connection.toLowerCase()) ? 1 : 0;
+		}
+	}
+
+	private static String parseLegacy(InputStream in, Map<String, String> headers) throws IOException {
+		// the parser as it was in RequestHandler before the incremental parser
+		String uri = null;
+		String line;
+		int i = 0;
+		while ((line = readLegacyLine(in)) != null && !line.isEmpty()) {
+			if (i == 0) {
+				StringTokenizer st = new StringTokenizer(line, " ");
+				if (st.countTokens() == 3) {
+					st.nextToken().trim();
+					uri = st.nextToken().trim();
+					st.nextToken().trim();
+				}
+			} else {
+				int j = line.indexOf(":");
+				if (j != -1) {
+					headers.put(line.substring(0, j), line.substring(j + 2));
+				}
+			}
+			i++;
+		}
+		return (uri);
+	}
+
+	private static String readLegacyLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+		}
+		if (c == -1 && sb.length() == 0) {
+			return (null);
+		}
+		return (sb.toString());
+	}
+
+	private static String getLegacyHeader(Map<String, String> headers, String name) {
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey())) {
+				return (header.getValue());
+			}
+		}
+		return (null);
+	}
+
+	private static long getAllocatedBytes() {
+		// only available on HotSpot based JVMs
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return (((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId()));
+		}
+		return (-1);
+	}
+
+}
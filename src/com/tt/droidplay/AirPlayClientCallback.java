@@ -25,6 +25,15 @@ public interface AirPlayClientCallback {
 	 */
 	public void onPutImageError(File file, String message);
 	
+	/**
+	 * Called while the putImage method is sending the image.
+	 * 
+	 * @param file The image file
+	 * @param sent The number of bytes sent so far
+	 * @param total The size of the image in bytes
+	 */
+	public void onPutImageProgress(File file, long sent, long total);
+	
 	/**
 	 * Called if the playVideo method succeeded.
 	 * 
@@ -1,14 +1,16 @@
 package com.tt.droidplay;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.net.HttpURLConnection;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import javax.jmdns.ServiceInfo;
 
@@ -18,34 +20,100 @@ import javax.jmdns.ServiceInfo;
  * @author Tuomas Tikka
  */
 public class AirPlayClientService {
+	
+	// how often idle connections to the receivers are checked (milliseconds)
+	private static final long REAP_INTERVAL = 10 * 1000;
 
-	// executor service for asynchronous tasks to the service
-	private ExecutorService es;
+	// scheduler for asynchronous tasks to the service (the latest cast first)
+	private CastScheduler scheduler;
 	
 	// callback back to UI
 	private AirPlayClientCallback callback;
 	
+	// the receivers used so far, by service key (only used in tasks run by the scheduler)
+	private Map<String, AirPlayReceiver> receivers = new HashMap<String, AirPlayReceiver>();
+	
+	// the addresses the receivers were created for, by service key
+	private Map<String, String> urls = new HashMap<String, String>();
+	
+	// prepares photos for the display of the receiver
+	private ImagePreparer preparer;
+	
+	// the size photos are prepared for (width, height), 0 x 0 = the display of the receiver, -1 x -1 = sent as they are
+	private volatile int[] imageSize = new int[] { 0, 0 };
+	
 	/**
 	 * Initialize the service.
 	 * 
 	 * @param callback The callback back to the UI.
+	 * @param preparer Prepares photos for the display of the receiver before they are sent
 	 */
-	public AirPlayClientService(AirPlayClientCallback callback) {
+	public AirPlayClientService(AirPlayClientCallback callback, ImagePreparer preparer) {
 		this.callback = callback;
-		es = Executors.newSingleThreadExecutor();
+		this.preparer = preparer;
+		scheduler = new CastScheduler(new Runnable() {
+			@Override
+			public void run() {
+				for (AirPlayReceiver receiver : receivers.values()) {
+					receiver.reap();
+				}
+			}
+		}, REAP_INTERVAL);
 	}
 	
 	/**
 	 * Shut down the service.
 	 */
 	public void shutdown() {
-		if (es != null) {
-			es.shutdown();
+		if (scheduler != null) {
+			scheduler.submitControl(new Runnable() {
+				@Override
+				public void run() {
+					for (AirPlayReceiver receiver : receivers.values()) {
+						receiver.close();
+					}
+					receivers.clear();
+					urls.clear();
+				}
+			});
+			scheduler.shutdown();
 		}
 	}
 	
 	/**
-	 * Send an image file to the service (display the image).
+	 * Close the connections to a service. The next request to it starts a new session.
+	 * 
+	 * @param serviceInfo The service
+	 */
+	public void disconnect(final ServiceInfo serviceInfo) {
+		if (serviceInfo == null || scheduler.isShutdown()) {
+			return;
+		}
+		scheduler.submitControl(new Runnable() {
+			@Override
+			public void run() {
+				AirPlayReceiver receiver = receivers.remove(serviceInfo.getKey());
+				urls.remove(serviceInfo.getKey());
+				if (receiver != null) {
+					receiver.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Set the size photos are prepared for.
+	 * 
+	 * @param width The width (0 = the display of the receiver, -1 = photos are sent as they are)
+	 * @param height The height
+	 */
+	public void setImageSize(int width, int height) {
+		imageSize = new int[] { width, height };
+	}
+	
+	/**
+	 * Send an image file to the service (display the image). A photo still waiting to be sent to the same service is dropped, and
+	 * the one being sent is aborted.
 	 * 
 	 * @param file The image file
 	 * @param serviceInfo The service to use
@@ -56,7 +124,25 @@ public class AirPlayClientService {
 		if (serviceInfo == null) {
 			throw new Exception("Not connected to AirPlay service");
 		}
-		es.submit(new PutImageTask(file, serviceInfo, transition));
+		scheduler.submitCast(serviceInfo.getKey(), new PutImageTask(file, serviceInfo, transition));
+	}
+	
+	/**
+	 * Send image files to the service in advance, without displaying them. Casting one of them later only tells the service to
+	 * display it. The files are sent in order, when there is nothing more urgent to send, and only until the next photo is cast.
+	 * 
+	 * @param files The image files
+	 * @param serviceInfo The service to use
+	 * @throws Exception If there are any problems with the parameters
+	 */
+	public void precacheImages(List<File> files, ServiceInfo serviceInfo) throws Exception {
+		if (serviceInfo == null) {
+			throw new Exception("Not connected to AirPlay service");
+		}
+		List<File> lookahead = new ArrayList<File>(files);
+		for (File file : lookahead) {
+			scheduler.submitBulk(serviceInfo.getKey(), new PrecacheImageTask(file, lookahead, serviceInfo));
+		}
 	}
 	
 	/**
@@ -70,7 +156,7 @@ public class AirPlayClientService {
 		if (serviceInfo == null) {
 			throw new Exception("Not connected to AirPlay service");
 		}
-		es.submit(new PlayVideoTask(location, serviceInfo));
+		scheduler.submitControl(new PlayVideoTask(location, serviceInfo));
 	}
 	
 	/**
@@ -83,16 +169,81 @@ public class AirPlayClientService {
 		if (serviceInfo == null) {
 			throw new Exception("Not connected to AirPlay service");
 		}
-		es.submit(new StopVideoTask(serviceInfo));
+		scheduler.submitControl(new StopVideoTask(serviceInfo));
 	}
 	
 	//
 	// Private
 	//
 	
-	private class PutImageTask implements Runnable {
+	private AirPlayReceiver getReceiver(ServiceInfo serviceInfo) throws IOException {
+		String key = serviceInfo.getKey();
+		AirPlayReceiver receiver = receivers.get(key);
+		if (receiver != null && !serviceInfo.getURL().equals(urls.get(key))) {
+			// the service moved, its old connections are of no use
+			receiver.close();
+			receiver = null;
+		}
+		if (receiver == null) {
+			receiver = new AirPlayReceiver(serviceInfo);
+			receivers.put(key, receiver);
+			urls.put(key, serviceInfo.getURL());
+		}
+		return (receiver);
+	}
+	
+	private int[] getImageSize(AirPlayReceiver receiver) {
+		int[] size = imageSize;
+		if (size[0] == 0) {
+			size = AirPlayUtils.getDisplaySize(receiver.getModel());
+		}
+		return (size);
+	}
+	
+	private File prepare(File file, int[] size, AirPlayReceiver receiver) {
+		if (size[0] < 0) {
+			return (file);
+		}
+		// smaller files for slower links
+		return (preparer.prepare(file, size[0], size[1], ImagePreparer.getQuality(receiver.getThroughput())));
+	}
+	
+	private static String getAssetKey(File file, int[] size) {
+		// the same photo prepared for the same size has the same key, whenever it is sent
+		String s = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length() + "|" + size[0] + "x" + size[1];
+		return (UUID.nameUUIDFromBytes(s.getBytes()).toString().toUpperCase());
+	}
+	
+	private abstract class UploadTask implements CastScheduler.Task {
+		
+		// has the task been aborted?
+		protected volatile boolean cancelled = false;
+		
+		// the request being sent
+		private volatile AirPlayRequest request;
+		
+		@Override
+		public void cancel() {
+			cancelled = true;
+			AirPlayRequest r = request;
+			if (r != null) {
+				r.cancel();
+			}
+		}
+		
+		protected int execute(AirPlayReceiver receiver, AirPlayRequest request) throws IOException {
+			this.request = request;
+			if (cancelled) {
+				throw new InterruptedIOException("request cancelled");
+			}
+			return (receiver.execute(request));
+		}
+	
+	}
+	
+	private class PutImageTask extends UploadTask {
 
-		private File file;
+		private final File file;
 		
 		private ServiceInfo serviceInfo;
 		
@@ -107,35 +258,95 @@ public class AirPlayClientService {
 		@Override
 		public void run() {
 			try {
-				URL url = new URL(serviceInfo.getURL() + "/photo");
-				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-				conn.setDoInput(true);
-				conn.setDoOutput(true);
-				conn.setConnectTimeout(15 * 1000);
-				conn.setReadTimeout(15 * 1000);
-				conn.setRequestMethod("PUT");
-				conn.setRequestProperty("Content-Length", "" + file.length());
-				conn.setRequestProperty("X-Apple-AssetKey", UUID.randomUUID().toString());
-				conn.setRequestProperty("X-Apple-Session-ID", UUID.randomUUID().toString());
-				conn.setRequestProperty("X-Apple-Transition", transition);
-				conn.setRequestProperty("User-Agent", "MediaControl/1.0");
-				BufferedOutputStream out = new BufferedOutputStream(conn.getOutputStream());
-				BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-				byte[] buffer = new byte[32 * 1024];
-				int i;
-				while ((i = in.read(buffer)) != -1) {
-					out.write(buffer, 0, i);
+				AirPlayReceiver receiver = getReceiver(serviceInfo);
+				int[] size = getImageSize(receiver);
+				String key = getAssetKey(file, size);
+				if (receiver.holdsAsset(key)) {
+					// sent ahead, only display it
+					AirPlayRequest request = new AirPlayRequest("PUT", "/photo");
+					request.addHeader("X-Apple-AssetAction", "displayCached");
+					request.addHeader("X-Apple-AssetKey", key);
+					request.addHeader("X-Apple-Transition", transition);
+					int status = execute(receiver, request);
+					if (status == 200) {
+						receiver.setDisplayedAsset(key);
+						callback.onPutImageSuccess(file);
+						return;
+					}
+					// the service no longer has it, send it again
+					receiver.removeAsset(key);
 				}
-				in.close();
-				out.close();
-				int status = conn.getResponseCode();
+				File prepared = prepare(file, size, receiver);
+				AirPlayRequest request = new AirPlayRequest("PUT", "/photo");
+				request.addHeader("X-Apple-AssetKey", key);
+				request.addHeader("X-Apple-Transition", transition);
+				// the image is sent as it is read, in large blocks
+				request.setFile(prepared, new AirPlayRequest.ProgressListener() {
+					@Override
+					public void onProgress(long sent, long total) {
+						callback.onPutImageProgress(file, sent, total);
+					}
+				});
+				int status = execute(receiver, request);
 				if (status == 200) {
+					receiver.addAsset(key, prepared.length());
+					receiver.setDisplayedAsset(key);
 					callback.onPutImageSuccess(file);
 				} else {
 					callback.onPutImageError(file, "AirPlay service responded HTTP " + status);
 				}
 			} catch (Exception e) {
-				callback.onPutImageError(file, e.getMessage());
+				// a newer photo replaced this one, it reports how it went
+				if (!cancelled) {
+					callback.onPutImageError(file, e.getMessage());
+				}
+			}
+		}
+	
+	}
+	
+	private class PrecacheImageTask extends UploadTask {
+		
+		private File file;
+		
+		// the files sent ahead together
+		private List<File> lookahead;
+		
+		private ServiceInfo serviceInfo;
+		
+		public PrecacheImageTask(File file, List<File> lookahead, ServiceInfo serviceInfo) {
+			this.file = file;
+			this.lookahead = lookahead;
+			this.serviceInfo = serviceInfo;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				AirPlayReceiver receiver = getReceiver(serviceInfo);
+				int[] size = getImageSize(receiver);
+				String key = getAssetKey(file, size);
+				if (receiver.holdsAsset(key)) {
+					return;
+				}
+				File prepared = prepare(file, size, receiver);
+				// the photos already shown make room, the one on screen and the ones ahead of it stay
+				Set<String> keys = new HashSet<String>();
+				for (File f : lookahead) {
+					keys.add(getAssetKey(f, size));
+				}
+				if (!receiver.makeRoomForAsset(prepared.length(), keys)) {
+					return;
+				}
+				AirPlayRequest request = new AirPlayRequest("PUT", "/photo");
+				request.addHeader("X-Apple-AssetAction", "cacheOnly");
+				request.addHeader("X-Apple-AssetKey", key);
+				request.setFile(prepared, null);
+				if (execute(receiver, request) == 200) {
+					receiver.addAsset(key, prepared.length());
+				}
+			} catch (Exception e) {
+				// the photo is sent when it is cast
 			}
 		}
 		
@@ -160,22 +371,11 @@ public class AirPlayClientService {
 				content.append(location.toString());
 				content.append("\n");
 				content.append("Start-Position: 0\n");
-				URL url = new URL(serviceInfo.getURL() + "/play");
-				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-				conn.setDoInput(true);
-				conn.setDoOutput(true);
-				conn.setConnectTimeout(15 * 1000);
-				conn.setReadTimeout(15 * 1000);
-				conn.setRequestMethod("POST");
-				conn.setRequestProperty("Content-Length", "" + content.length());
-				conn.setRequestProperty("Content-Type", "text/parameters");
-				conn.setRequestProperty("X-Apple-AssetKey", UUID.randomUUID().toString());
-				conn.setRequestProperty("X-Apple-Session-ID", UUID.randomUUID().toString());
-				conn.setRequestProperty("User-Agent", "MediaControl/1.0");
-				BufferedOutputStream out = new BufferedOutputStream(conn.getOutputStream());
-				out.write(content.toString().getBytes());
-				out.close();
-				int status = conn.getResponseCode();
+				AirPlayRequest request = new AirPlayRequest("POST", "/play");
+				request.addHeader("Content-Type", "text/parameters");
+				request.addHeader("X-Apple-AssetKey", UUID.randomUUID().toString());
+				request.setContent(content.toString().getBytes());
+				int status = getReceiver(serviceInfo).execute(request);
 				if (status == 200) {
 					callback.onPlayVideoSuccess(location);
 				} else {
@@ -199,14 +399,7 @@ public class AirPlayClientService {
 		@Override
 		public void run() {
 			try {
-				URL url = new URL(serviceInfo.getURL() + "/stop");
-				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-				conn.setConnectTimeout(15 * 1000);
-				conn.setReadTimeout(15 * 1000);
-				conn.setRequestMethod("POST");
-				conn.setRequestProperty("Content-Length", "0");
-				conn.setRequestProperty("User-Agent", "MediaControl/1.0");
-				int status = conn.getResponseCode();
+				int status = getReceiver(serviceInfo).execute(new AirPlayRequest("POST", "/stop"));
 				if (status == 200) {
 					callback.onStopVideoSuccess();
 				} else {
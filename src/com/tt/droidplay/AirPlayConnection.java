@@ -0,0 +1,319 @@
+package com.tt.droidplay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+
+/**
+ * Class that implements one persistent HTTP/1.1 connection to an AirPlay receiver. Requests are sent one after another, and the
+ * connection can be used again as long as the receiver keeps it open. Response bodies are read and discarded, so the next
+ * response starts where it should.
+ *
+ * @author Tuomas Tikka
+ */
+public class AirPlayConnection {
+
+	// the size of the buffer files are sent through
+	private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+	// the smallest number of bytes sent between two progress notifications
+	private static final long MIN_PROGRESS_STEP = 256 * 1024;
+
+	// the longest line accepted in a response head
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	// the value of the Host header
+	private String host;
+
+	// the timeout for reading a response (milliseconds)
+	private int readTimeout;
+
+	// the socket
+	private Socket socket;
+
+	// the buffered streams of the socket
+	private InputStream in;
+	private OutputStream out;
+
+	// can the connection be used for another request?
+	private boolean reusable = false;
+
+	// can the last request be sent again on another connection? Only while it failed before the receiver could have acted on
+	// it: while it was written, or when the connection was closed before anything was answered
+	private boolean retryable = false;
+
+	// when the last request completed
+	private long lastUsed;
+
+	// the number of requests sent
+	private int requests = 0;
+
+	/**
+	 * Open a connection.
+	 *
+	 * @param host The host name or address of the receiver
+	 * @param port The port number of the receiver
+	 * @param connectTimeout The timeout for connecting (milliseconds)
+	 * @param readTimeout The timeout for reading a response (milliseconds)
+	 * @throws IOException If the connection could not be opened
+	 */
+	public AirPlayConnection(String host, int port, int connectTimeout, int readTimeout) throws IOException {
+		this.host = host + ":" + port;
+		this.readTimeout = readTimeout;
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Send a request and read the response.
+	 *
+	 * @param request The request
+	 * @param sessionId The session of the receiver the request belongs to
+	 * @return The status code of the response
+	 * @throws IOException If there are any problems communicating with the receiver
+	 */
+	public int execute(AirPlayRequest request, String sessionId) throws IOException {
+		reusable = false;
+		retryable = true;
+		requests++;
+		long length = request.getContentLength();
+		StringBuilder sb = new StringBuilder();
+		sb.append(request.getMethod()).append(" ").append(request.getPath()).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(host).append("\r\n");
+		sb.append("User-Agent: MediaControl/1.0\r\n");
+		sb.append("X-Apple-Session-ID: ").append(sessionId).append("\r\n");
+		sb.append("Content-Length: ").append(length).append("\r\n");
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes("UTF-8"));
+		if (request.getFile() != null) {
+			sendFile(request, length);
+		} else if (request.getContent() != null) {
+			out.write(request.getContent());
+		}
+		out.flush();
+		int status;
+		try {
+			status = readResponse();
+		} catch (SocketTimeoutException e) {
+			// the whole request was sent and the receiver may still be acting on it
+			retryable = false;
+			throw e;
+		}
+		lastUsed = System.currentTimeMillis();
+		return (status);
+	}
+
+	/**
+	 * Check that an idle connection is still open and in step (the receiver has not closed it or sent anything unasked).
+	 *
+	 * @return True if the connection can be used
+	 */
+	public boolean isHealthy() {
+		if (!reusable || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return (false);
+		}
+		try {
+			if (in.available() > 0) {
+				return (false);
+			}
+			// a read that times out means the receiver has not closed the connection
+			socket.setSoTimeout(1);
+			try {
+				in.read();
+				return (false);
+			} catch (SocketTimeoutException e) {
+				return (true);
+			} finally {
+				socket.setSoTimeout(readTimeout);
+			}
+		} catch (IOException e) {
+			return (false);
+		}
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void close() {
+		reusable = false;
+		try {
+			socket.close();
+		} catch (Exception e) {
+			// the connection is not used again either way
+		}
+	}
+
+	//
+	// Private
+	//
+
+	private void sendFile(AirPlayRequest request, long length) throws IOException {
+		AirPlayRequest.ProgressListener listener = request.getListener();
+		long step = Math.max(MIN_PROGRESS_STEP, length / 100);
+		if (listener != null) {
+			listener.onProgress(0, length);
+		}
+		FileInputStream file = new FileInputStream(request.getFile());
+		try {
+			byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+			long sent = 0;
+			long reported = 0;
+			int i;
+			while (sent < length && (i = file.read(buffer, 0, (int) Math.min(buffer.length, length - sent))) != -1) {
+				if (request.isCancelled()) {
+					throw new InterruptedIOException("request cancelled");
+				}
+				out.write(buffer, 0, i);
+				sent += i;
+				if (listener != null && sent - reported >= step) {
+					listener.onProgress(sent, length);
+					reported = sent;
+				}
+			}
+			if (sent < length) {
+				throw new EOFException("file shrank while it was sent: " + request.getFile());
+			}
+			if (listener != null && reported < sent) {
+				listener.onProgress(sent, length);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private int readResponse() throws IOException {
+		String line = readLine();
+		retryable = false;
+		String[] parts = line.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new IOException("invalid status line: " + line);
+		}
+		int status;
+		try {
+			status = Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid status line: " + line);
+		}
+		boolean keepAlive = "HTTP/1.1".equals(parts[0]);
+		long contentLength = -1;
+		boolean chunked = false;
+		while ((line = readLine()).length() > 0) {
+			int i = line.indexOf(':');
+			if (i <= 0) {
+				continue;
+			}
+			String name = line.substring(0, i).trim();
+			String value = line.substring(i + 1).trim();
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				contentLength = parseLength(value, 10);
+			} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+				chunked = value.toLowerCase().contains("chunked");
+			} else if ("Connection".equalsIgnoreCase(name)) {
+				keepAlive = !value.equalsIgnoreCase("close") && (keepAlive || value.equalsIgnoreCase("keep-alive"));
+			}
+		}
+		if (chunked) {
+			long size;
+			while ((size = parseLength(readLine().split(";")[0].trim(), 16)) > 0) {
+				skip(size + 2);
+			}
+			// trailers
+			while (readLine().length() > 0) {
+			}
+		} else if (contentLength >= 0) {
+			skip(contentLength);
+		} else if (status >= 200 && status != 204 && status != 304) {
+			// the body ends when the receiver closes the connection
+			while (in.read() != -1) {
+			}
+			keepAlive = false;
+		}
+		reusable = keepAlive;
+		return (status);
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException("connection closed by " + host);
+			}
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+			if (sb.length() > MAX_LINE_LENGTH) {
+				throw new IOException("response line too long");
+			}
+		}
+		return (sb.toString());
+	}
+
+	private long parseLength(String value, int radix) throws IOException {
+		try {
+			long length = Long.parseLong(value, radix);
+			if (length >= 0) {
+				return (length);
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IOException("invalid length in response: " + value);
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			long i = in.skip(n);
+			if (i <= 0) {
+				if (in.read() == -1) {
+					throw new EOFException("connection closed by " + host);
+				}
+				i = 1;
+			}
+			n -= i;
+		}
+	}
+
+	//
+	// Getters
+	//
+
+	public boolean isReusable() {
+		return reusable;
+	}
+
+	public boolean isRetryable() {
+		return retryable;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public int getRequests() {
+		return requests;
+	}
+
+}
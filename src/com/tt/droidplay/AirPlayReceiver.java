@@ -0,0 +1,275 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * Class that represents one AirPlay receiver: the connections kept open to it and the session all requests to it belong to.
+ * Requests reuse an idle connection when there is one that is still open, and open a new one otherwise. The session stays the
+ * same until the receiver is closed, so a slideshow looks like one session to the receiver.
+ *
+ * The class is not thread safe, the client service uses it from its own thread only.
+ *
+ * @author Tuomas Tikka
+ */
+public class AirPlayReceiver {
+
+	// the timeout for connecting (milliseconds)
+	private static final int CONNECT_TIMEOUT = 15 * 1000;
+
+	// the timeout for reading a response (milliseconds)
+	private static final int READ_TIMEOUT = 15 * 1000;
+
+	// the number of idle connections kept open
+	private static final int MAX_IDLE_CONNECTIONS = 2;
+
+	// how long an idle connection is kept open (milliseconds)
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+
+	// the memory of the receiver used for photos sent ahead (bytes)
+	private static final long ASSET_BUDGET = 32 * 1024 * 1024;
+
+	// the smallest body that tells something about the throughput of the link (bytes)
+	private static final long MIN_THROUGHPUT_SAMPLE = 64 * 1024;
+
+	// the name of the receiver
+	private String name;
+
+	// the model of the receiver, or null if not advertised
+	private String model;
+
+	// the address of the receiver
+	private String host;
+	private int port;
+
+	// the session all requests belong to
+	private String sessionId = UUID.randomUUID().toString();
+
+	// the smoothed throughput of sending bodies to the receiver (bytes per second, 0 = not measured yet)
+	private long throughput = 0;
+
+	// the photos the receiver holds in this session, by asset key in access order (least recently used first), with their sizes
+	private LinkedHashMap<String, Long> assets = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	// the total size of the photos the receiver holds (bytes)
+	private long assetBytes = 0;
+
+	// the asset key of the photo on screen, or null
+	private String displayedAsset;
+
+	// the idle connections (most recently used first)
+	private ArrayDeque<AirPlayConnection> idle = new ArrayDeque<AirPlayConnection>();
+
+	/**
+	 * Initialize the receiver.
+	 *
+	 * @param serviceInfo The service of the receiver
+	 * @throws IOException If the address of the service is not valid
+	 */
+	public AirPlayReceiver(ServiceInfo serviceInfo) throws IOException {
+		URL url = new URL(serviceInfo.getURL());
+		name = serviceInfo.getName();
+		model = serviceInfo.getPropertyString("model");
+		host = url.getHost();
+		port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+	}
+
+	/**
+	 * Send a request to the receiver.
+	 *
+	 * @param request The request
+	 * @return The status code of the response
+	 * @throws IOException If there are any problems communicating with the receiver
+	 */
+	public int execute(AirPlayRequest request) throws IOException {
+		if (request.isCancelled()) {
+			throw new InterruptedIOException("request cancelled");
+		}
+		AirPlayConnection conn = takeIdle();
+		if (conn != null) {
+			try {
+				return (execute(conn, request));
+			} catch (IOException e) {
+				// the receiver may have closed the connection just as the request was sent; if it failed before the receiver could
+				// have acted on it, the request is sent again on a new connection (not after a read timeout, it may not be idempotent)
+				if (!conn.isRetryable() || request.isCancelled()) {
+					throw e;
+				}
+			}
+		}
+		return (execute(new AirPlayConnection(host, port, CONNECT_TIMEOUT, READ_TIMEOUT), request));
+	}
+
+	/**
+	 * Does the receiver hold a photo (sent earlier in the session)?
+	 *
+	 * @param key The asset key of the photo
+	 * @return True if the photo can be displayed without sending it
+	 */
+	public boolean holdsAsset(String key) {
+		return (assets.get(key) != null);
+	}
+
+	/**
+	 * Make room for a photo sent ahead by forgetting the least recently used photos, except the one on screen and the ones sent
+	 * ahead with it (which would otherwise push each other out).
+	 *
+	 * @param length The size of the photo (bytes)
+	 * @param lookahead The asset keys of the photos sent ahead together
+	 * @return True if the photo fits
+	 */
+	public boolean makeRoomForAsset(long length, Set<String> lookahead) {
+		Iterator<Map.Entry<String, Long>> it = assets.entrySet().iterator();
+		while (assetBytes + length > ASSET_BUDGET && it.hasNext()) {
+			Map.Entry<String, Long> asset = it.next();
+			if (!asset.getKey().equals(displayedAsset) && !lookahead.contains(asset.getKey())) {
+				assetBytes -= asset.getValue();
+				it.remove();
+			}
+		}
+		return (assetBytes + length <= ASSET_BUDGET);
+	}
+
+	/**
+	 * Remember that the receiver holds a photo. The least recently used photos are forgotten to stay within the budget.
+	 *
+	 * @param key The asset key of the photo
+	 * @param length The size of the photo (bytes)
+	 */
+	public void addAsset(String key, long length) {
+		Long old = assets.put(key, length);
+		if (old != null) {
+			assetBytes -= old;
+		}
+		assetBytes += length;
+		Iterator<Long> it = assets.values().iterator();
+		while (assetBytes > ASSET_BUDGET && assets.size() > 1 && it.hasNext()) {
+			assetBytes -= it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Forget a photo the receiver no longer holds.
+	 *
+	 * @param key The asset key of the photo
+	 */
+	public void removeAsset(String key) {
+		Long length = assets.remove(key);
+		if (length != null) {
+			assetBytes -= length;
+		}
+	}
+
+	/**
+	 * Close the connections that have been idle too long.
+	 */
+	public void reap() {
+		long now = System.currentTimeMillis();
+		Iterator<AirPlayConnection> it = idle.iterator();
+		while (it.hasNext()) {
+			AirPlayConnection conn = it.next();
+			if (now - conn.getLastUsed() >= IDLE_TIMEOUT) {
+				it.remove();
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Close all connections to the receiver, which ends the session (and the photos held for it).
+	 */
+	public void close() {
+		for (AirPlayConnection conn : idle) {
+			conn.close();
+		}
+		idle.clear();
+		assets.clear();
+		assetBytes = 0;
+		displayedAsset = null;
+	}
+
+	//
+	// Private
+	//
+
+	private int execute(AirPlayConnection conn, AirPlayRequest request) throws IOException {
+		int status;
+		long start = System.nanoTime();
+		try {
+			status = conn.execute(request, sessionId);
+		} catch (IOException e) {
+			conn.close();
+			throw e;
+		}
+		long length = request.getContentLength();
+		if (length >= MIN_THROUGHPUT_SAMPLE) {
+			long rate = length * 1000000000L / Math.max(1, System.nanoTime() - start);
+			// weigh the latest sample by a quarter, a single slow request does not change much
+			throughput = throughput == 0 ? rate : (3 * throughput + rate) / 4;
+		}
+		if (conn.isReusable()) {
+			idle.addFirst(conn);
+			while (idle.size() > MAX_IDLE_CONNECTIONS) {
+				idle.removeLast().close();
+			}
+		} else {
+			conn.close();
+		}
+		return (status);
+	}
+
+	private AirPlayConnection takeIdle() {
+		long now = System.currentTimeMillis();
+		AirPlayConnection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			if (now - conn.getLastUsed() < IDLE_TIMEOUT && conn.isHealthy()) {
+				return (conn);
+			}
+			conn.close();
+		}
+		return (null);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public String getName() {
+		return name;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	public long getThroughput() {
+		return throughput;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	public int getAssets() {
+		return assets.size();
+	}
+
+	public void setDisplayedAsset(String displayedAsset) {
+		this.displayedAsset = displayedAsset;
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class that represents a request to an AirPlay receiver: the method, the path, the headers specific to the request and an
+ * optional body, either in memory or streamed from a file.
+ *
+ * @author Tuomas Tikka
+ */
+public class AirPlayRequest {
+
+	/**
+	 * Interface used to follow the progress of sending a file.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called while the file is being sent.
+		 *
+		 * @param sent The number of bytes sent so far
+		 * @param total The size of the file in bytes
+		 */
+		public void onProgress(long sent, long total);
+
+	}
+
+	// the method (e.g. PUT)
+	private String method;
+
+	// the path (e.g. /photo)
+	private String path;
+
+	// the headers specific to the request, in the order they are sent
+	private Map<String, String> headers = new LinkedHashMap<String, String>();
+
+	// the body in memory, or null
+	private byte[] content;
+
+	// the file sent as the body, or null
+	private File file;
+
+	// the listener following the progress of sending the file, or null
+	private ProgressListener listener;
+
+	// has the request been cancelled?
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Initialize the request.
+	 *
+	 * @param method The method
+	 * @param path The path
+	 */
+	public AirPlayRequest(String method, String path) {
+		this.method = method;
+		this.path = path;
+	}
+
+	/**
+	 * Add a request header.
+	 *
+	 * @param name The header name
+	 * @param value The header value
+	 */
+	public void addHeader(String name, String value) {
+		headers.put(name, value);
+	}
+
+	/**
+	 * Return the length of the body.
+	 *
+	 * @return The number of bytes in the body
+	 */
+	public long getContentLength() {
+		if (file != null) {
+			return (file.length());
+		}
+		return (content == null ? 0 : content.length);
+	}
+
+	/**
+	 * Cancel the request (called from another thread). A body being sent is abandoned, which closes the connection.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Has the request been cancelled?
+	 *
+	 * @return True if the request should not be sent (any further)
+	 */
+	public boolean isCancelled() {
+		return (cancelled);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public void setContent(byte[] content) {
+		this.content = content;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void setFile(File file, ProgressListener listener) {
+		this.file = file;
+		this.listener = listener;
+	}
+
+	public ProgressListener getListener() {
+		return listener;
+	}
+
+}
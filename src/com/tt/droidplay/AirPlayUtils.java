@@ -13,6 +13,18 @@ public class AirPlayUtils {
 	// Map of descriptions for image transition effects
 	private static Map<String, String> transitionDescriptions = new HashMap<String ,String>();
 
+	// List of image sizes photos are prepared for (width x height, 0 x 0 = the display of the receiver, -1 x -1 = as they are)
+	private static List<int[]> imageSizes = new ArrayList<int[]>();
+	
+	// List of descriptions for image sizes
+	private static List<String> imageSizeDescriptions = new ArrayList<String>();
+	
+	// Map of display sizes, by model prefix of the receiver
+	private static Map<String, int[]> displaySizes = new HashMap<String, int[]>();
+	
+	// The display size assumed for receivers of unknown models
+	private static final int[] DEFAULT_DISPLAY_SIZE = new int[] { 1920, 1080 };
+	
 	static {
 		// transition codes
 		transitions.add("None");
@@ -27,6 +39,28 @@ public class AirPlayUtils {
 		transitionDescriptions.put("Dissolve", "Dissolve");
 		transitionDescriptions.put("SlideLeft", "Slide left");
 		transitionDescriptions.put("SlideRight", "Slide right");
+		
+		// image sizes
+		imageSizes.add(new int[] { 0, 0 });
+		imageSizes.add(new int[] { 1280, 720 });
+		imageSizes.add(new int[] { 1920, 1080 });
+		imageSizes.add(new int[] { 3840, 2160 });
+		imageSizes.add(new int[] { -1, -1 });
+		
+		// image size descriptions
+		imageSizeDescriptions.add("Receiver display");
+		imageSizeDescriptions.add("1280 x 720");
+		imageSizeDescriptions.add("1920 x 1080");
+		imageSizeDescriptions.add("3840 x 2160");
+		imageSizeDescriptions.add("Original");
+		
+		// display sizes of the receiver models (as advertised in the "model" property of the service)
+		displaySizes.put("AppleTV2,", new int[] { 1280, 720 });
+		displaySizes.put("AppleTV3,", new int[] { 1920, 1080 });
+		displaySizes.put("AppleTV5,", new int[] { 1920, 1080 });
+		displaySizes.put("AppleTV6,", new int[] { 3840, 2160 });
+		displaySizes.put("AppleTV11,", new int[] { 3840, 2160 });
+		displaySizes.put("AppleTV14,", new int[] { 3840, 2160 });
 	}
 	
 	/**
@@ -61,4 +95,43 @@ public class AirPlayUtils {
 		return (transitions.get(position));
 	}
 	
+	/**
+	 * Return the list of descriptions for image sizes.
+	 * 
+	 * @return The list of descriptions (used in the UI).
+	 */
+	public static List<String> getImageSizeDescriptions() {
+		return (imageSizeDescriptions);
+	}
+	
+	/**
+	 * Return the image size at a specific position (used in the UI settings drop-down list).
+	 * 
+	 * @param position The position.
+	 * @return The image size (width, height), 0 x 0 for the display of the receiver, -1 x -1 for the original size
+	 */
+	public static int[] getImageSize(int position) {
+		if (position < 0 || position >= imageSizes.size()) {
+			position = 0;
+		}
+		return (imageSizes.get(position));
+	}
+	
+	/**
+	 * Return the display size of a receiver model.
+	 * 
+	 * @param model The model (e.g. AppleTV3,2), or null if not known
+	 * @return The display size (width, height)
+	 */
+	public static int[] getDisplaySize(String model) {
+		if (model != null) {
+			int i = model.indexOf(',');
+			int[] size = displaySizes.get(i == -1 ? model : model.substring(0, i + 1));
+			if (size != null) {
+				return (size);
+			}
+		}
+		return (DEFAULT_DISPLAY_SIZE);
+	}
+	
 }
@@ -0,0 +1,223 @@
+package com.tt.droidplay;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that shapes the bandwidth used by the HTTP server, so a second receiver or an aggressively prefetching one cannot
+ * saturate the Wi-Fi uplink and starve the stream that is actually playing. There is a global token bucket shared by all
+ * connections and a token bucket per connection. Playback streams may drain the global bucket, prefetch connections may only
+ * use what is left above a reserve kept for playback.
+ *
+ * @author Tuomas Tikka
+ */
+public class BandwidthShaper implements ReportSource {
+
+	private static final String TAG = "BandwidthShaper";
+
+	/**
+	 * The priority of the response a connection is sending.
+	 */
+	public enum Priority {
+
+		// the stream the receiver is playing from (open ended or full read)
+		PLAYBACK,
+
+		// speculative or probing reads (bounded ranges, superseded streams)
+		PREFETCH
+
+	}
+
+	// the largest number of bytes granted at once when shaping is active
+	private static final long CHUNK = 64 * 1024;
+
+	// the bucket shared by all connections
+	private TokenBucket global;
+
+	// the rate of each connection in bytes per second (0 = unlimited)
+	private volatile long connectionRate;
+
+	// the fraction of the global bucket kept for playback streams
+	private volatile float playbackReserve = 0.5f;
+
+	// the connections currently registered
+	private List<ConnectionThrottle> throttles = new CopyOnWriteArrayList<ConnectionThrottle>();
+
+	// the number of bytes granted to playback streams
+	private AtomicLong playbackBytes = new AtomicLong();
+
+	// the number of bytes granted to prefetch connections
+	private AtomicLong prefetchBytes = new AtomicLong();
+
+	// the number of times a connection had to wait for tokens
+	private AtomicLong waits = new AtomicLong();
+
+	/**
+	 * Initialize the shaper.
+	 *
+	 * @param globalRate The global rate in bytes per second (0 = unlimited)
+	 * @param connectionRate The rate of each connection in bytes per second (0 = unlimited)
+	 */
+	public BandwidthShaper(long globalRate, long connectionRate) {
+		this.global = new TokenBucket(globalRate);
+		this.connectionRate = Math.max(0, connectionRate);
+	}
+
+	/**
+	 * Register a new connection.
+	 *
+	 * @param address The address of the client (used to tell which streams belong to the same receiver)
+	 * @return The throttle for the connection
+	 */
+	public ConnectionThrottle register(String address) {
+		ConnectionThrottle throttle = new ConnectionThrottle(this, address, connectionRate);
+		throttles.add(throttle);
+		return (throttle);
+	}
+
+	/**
+	 * Remove a connection that has been closed.
+	 *
+	 * @param throttle The throttle of the connection
+	 */
+	public void unregister(ConnectionThrottle throttle) {
+		throttles.remove(throttle);
+	}
+
+	/**
+	 * Called when a connection starts sending a playback stream. Older playback streams of the same receiver have been
+	 * superseded (e.g. by a seek) and are demoted to prefetch.
+	 *
+	 * @param throttle The throttle of the connection
+	 */
+	void onPlaybackStarted(ConnectionThrottle throttle) {
+		for (ConnectionThrottle other : throttles) {
+			if (other != throttle && other.getPriority() == Priority.PLAYBACK && other.getAddress().equals(throttle.getAddress())) {
+				other.demote();
+			}
+		}
+	}
+
+	/**
+	 * Take tokens from the global bucket.
+	 *
+	 * @param wanted The number of tokens wanted
+	 * @param priority The priority of the connection
+	 * @return The number of tokens granted
+	 */
+	long take(long wanted, Priority priority) {
+		long granted = global.take(Math.min(wanted, CHUNK), getReserve(priority));
+		if (granted > 0) {
+			(priority == Priority.PLAYBACK ? playbackBytes : prefetchBytes).addAndGet(granted);
+		}
+		return (granted);
+	}
+
+	/**
+	 * Return tokens to the global bucket.
+	 *
+	 * @param unused The number of tokens
+	 * @param priority The priority of the connection
+	 */
+	void giveBack(long unused, Priority priority) {
+		if (unused > 0) {
+			global.giveBack(unused);
+			(priority == Priority.PLAYBACK ? playbackBytes : prefetchBytes).addAndGet(-unused);
+		}
+	}
+
+	/**
+	 * Return how long a connection has to wait for global tokens.
+	 *
+	 * @param priority The priority of the connection
+	 * @return The delay in milliseconds
+	 */
+	long getDelay(Priority priority) {
+		waits.incrementAndGet();
+		return (global.getDelay(getReserve(priority)));
+	}
+
+	/**
+	 * Is any shaping configured?
+	 *
+	 * @return True if either limit is set
+	 */
+	public boolean isActive() {
+		return (global.getRate() > 0 || connectionRate > 0);
+	}
+
+	/**
+	 * Return a report of the current configuration and counters.
+	 *
+	 * @return The values, by name
+	 */
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		int playback = 0;
+		List<ConnectionThrottle> snapshot = new ArrayList<ConnectionThrottle>(throttles);
+		for (ConnectionThrottle throttle : snapshot) {
+			if (throttle.getPriority() == Priority.PLAYBACK) {
+				playback++;
+			}
+		}
+		report.put("globalRate", global.getRate());
+		report.put("connectionRate", connectionRate);
+		report.put("playbackReservePercent", (long) (playbackReserve * 100));
+		report.put("connections", (long) snapshot.size());
+		report.put("playbackConnections", (long) playback);
+		report.put("playbackBytes", playbackBytes.get());
+		report.put("prefetchBytes", prefetchBytes.get());
+		report.put("waits", waits.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private long getReserve(Priority priority) {
+		if (priority == Priority.PLAYBACK) {
+			return (0);
+		}
+		return ((long) (global.getCapacity() * playbackReserve));
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public long getGlobalRate() {
+		return global.getRate();
+	}
+
+	public void setGlobalRate(long globalRate) {
+		global.setRate(globalRate);
+		ServerLog.d(TAG, "global rate set to " + globalRate + " bytes/s");
+	}
+
+	public long getConnectionRate() {
+		return connectionRate;
+	}
+
+	public void setConnectionRate(long connectionRate) {
+		this.connectionRate = Math.max(0, connectionRate);
+		for (ConnectionThrottle throttle : throttles) {
+			throttle.setRate(this.connectionRate);
+		}
+		ServerLog.d(TAG, "connection rate set to " + connectionRate + " bytes/s");
+	}
+
+	public float getPlaybackReserve() {
+		return playbackReserve;
+	}
+
+	public void setPlaybackReserve(float playbackReserve) {
+		this.playbackReserve = Math.max(0, Math.min(1, playbackReserve));
+	}
+
+}
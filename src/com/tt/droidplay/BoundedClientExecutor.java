@@ -0,0 +1,241 @@
+package com.tt.droidplay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that implements a client executor with a fixed number of threads and a bounded queue. When all threads are busy and
+ * the queue is full, new connections are rejected instead of piling up with their sockets open.
+ *
+ * @author Tuomas Tikka
+ */
+public class BoundedClientExecutor implements ClientExecutor {
+
+	private static final String TAG = "BoundedClientExecutor";
+
+	// how long an idle thread is kept (seconds)
+	private static final long KEEP_ALIVE = 30;
+
+	// the number of threads serving connections
+	private volatile int threads;
+
+	// the number of connections that may wait for a thread
+	private volatile int queueCapacity;
+
+	// the thread pool, or null if the executor is stopped
+	private volatile ThreadPoolExecutor pool;
+
+	// the workers currently serving a connection
+	private Set<ClientWorker> running = Collections.newSetFromMap(new ConcurrentHashMap<ClientWorker, Boolean>());
+
+	// the number of connections accepted
+	private AtomicLong accepted = new AtomicLong();
+
+	// the number of connections rejected
+	private AtomicLong rejected = new AtomicLong();
+
+	// the number of connections that finished
+	private AtomicLong completed = new AtomicLong();
+
+	// the largest number of connections waiting at once
+	private AtomicLong maxQueueDepth = new AtomicLong();
+
+	// the total and the longest time connections waited for a thread (milliseconds)
+	private AtomicLong totalWait = new AtomicLong();
+	private AtomicLong maxWait = new AtomicLong();
+
+	// the number of connections that waited for a thread
+	private AtomicLong waited = new AtomicLong();
+
+	/**
+	 * Initialize the executor.
+	 *
+	 * @param threads The number of threads serving connections
+	 * @param queueCapacity The number of connections that may wait for a thread
+	 */
+	public BoundedClientExecutor(int threads, int queueCapacity) {
+		this.threads = Math.max(1, threads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	@Override
+	public synchronized void start() {
+		if (pool != null) {
+			return;
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ClientThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		this.pool = pool;
+	}
+
+	@Override
+	public void execute(ClientWorker worker) throws RejectedExecutionException {
+		ThreadPoolExecutor pool = this.pool;
+		if (pool == null) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("executor is stopped");
+		}
+		try {
+			pool.execute(new QueuedWorker(worker));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+		accepted.incrementAndGet();
+		updateMax(maxQueueDepth, pool.getQueue().size());
+	}
+
+	@Override
+	public boolean shutdown(long timeout) {
+		ThreadPoolExecutor pool;
+		synchronized (this) {
+			pool = this.pool;
+			this.pool = null;
+		}
+		if (pool == null) {
+			return (true);
+		}
+		pool.shutdown();
+		// connections still waiting for a thread are closed without being served
+		List<Runnable> queued = new ArrayList<Runnable>();
+		pool.getQueue().drainTo(queued);
+		for (Runnable task : queued) {
+			((QueuedWorker) task).worker.cancel();
+		}
+		for (ClientWorker worker : running) {
+			worker.shutdown();
+		}
+		try {
+			if (pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				return (true);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// interrupting the threads closes the socket channels they are blocked on
+		ServerLog.w(TAG, "aborting " + running.size() + " client connection(s) still open after " + timeout + " ms");
+		pool.shutdownNow();
+		return (false);
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		ThreadPoolExecutor pool = this.pool;
+		report.put("threads", (long) threads);
+		report.put("queueCapacity", (long) queueCapacity);
+		report.put("activeConnections", (long) running.size());
+		report.put("queueDepth", (long) (pool == null ? 0 : pool.getQueue().size()));
+		report.put("maxQueueDepth", maxQueueDepth.get());
+		report.put("accepted", accepted.get());
+		report.put("rejected", rejected.get());
+		report.put("completed", completed.get());
+		long n = waited.get();
+		report.put("averageWaitMillis", n == 0 ? 0 : totalWait.get() / n);
+		report.put("maxWaitMillis", maxWait.get());
+		return (report);
+	}
+
+	/**
+	 * Set the number of threads serving connections. The change takes effect immediately.
+	 *
+	 * @param threads The number of threads
+	 */
+	public synchronized void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		this.threads = threads;
+		ThreadPoolExecutor pool = this.pool;
+		if (pool != null) {
+			// keep core <= maximum while resizing
+			if (threads > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threads);
+				pool.setCorePoolSize(threads);
+			} else {
+				pool.setCorePoolSize(threads);
+				pool.setMaximumPoolSize(threads);
+			}
+		}
+	}
+
+	/**
+	 * Set the number of connections that may wait for a thread. The change takes effect the next time the executor is started.
+	 *
+	 * @param queueCapacity The capacity of the queue
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	//
+	// Private
+	//
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	private class QueuedWorker implements Runnable {
+
+		private ClientWorker worker;
+
+		private long queuedAt = System.currentTimeMillis();
+
+		public QueuedWorker(ClientWorker worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public void run() {
+			long wait = System.currentTimeMillis() - queuedAt;
+			totalWait.addAndGet(wait);
+			waited.incrementAndGet();
+			updateMax(maxWait, wait);
+			running.add(worker);
+			try {
+				worker.run();
+			} finally {
+				running.remove(worker);
+				completed.incrementAndGet();
+			}
+		}
+
+	}
+
+	private static class ClientThreadFactory implements ThreadFactory {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return (new Thread(r, "DroidPlay-client-" + count.incrementAndGet()));
+		}
+
+	}
+
+}
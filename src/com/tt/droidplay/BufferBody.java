@@ -0,0 +1,89 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Class that implements a response body backed by bytes already in memory.
+ *
+ * @author Tuomas Tikka
+ */
+public class BufferBody implements ResponseBody {
+
+	// the bytes left to write
+	private ByteBuffer buffer;
+
+	// the total length of the body
+	private long length;
+
+	/**
+	 * Initialize the body.
+	 *
+	 * @param buffer The bytes to send (from position to limit)
+	 */
+	public BufferBody(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.length = buffer.remaining();
+	}
+
+	@Override
+	public long getLength() {
+		return (length);
+	}
+
+	@Override
+	public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+		int end = buffer.limit();
+		if (buffer.remaining() > limit) {
+			buffer.limit(buffer.position() + (int) limit);
+		}
+		long written = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				int i = channel.write(buffer);
+				if (i == 0) {
+					break;
+				}
+				written += i;
+			}
+		} finally {
+			buffer.limit(end);
+		}
+		return (written);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) {
+		int n = Math.min(buffer.remaining(), this.buffer.remaining());
+		int end = this.buffer.limit();
+		this.buffer.limit(this.buffer.position() + n);
+		buffer.put(this.buffer);
+		this.buffer.limit(end);
+		return (n);
+	}
+
+	/**
+	 * Move the start of the remaining body into a view of the same memory (e.g. to send it together with the head without
+	 * copying it). The bytes moved count as written.
+	 *
+	 * @param max The largest number of bytes to move
+	 * @return The view of the bytes moved
+	 */
+	public ByteBuffer take(int max) {
+		ByteBuffer chunk = buffer.duplicate();
+		chunk.limit(chunk.position() + Math.min(max, buffer.remaining()));
+		buffer.position(chunk.limit());
+		return (chunk);
+	}
+
+	@Override
+	public boolean isComplete() {
+		return (!buffer.hasRemaining());
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class that holds the cached metadata and the shared, lazily opened channel of a file served by the HTTP server. The channel
+ * is reference counted: it is closed when the entry has been evicted from the cache and the last user has released it.
+ *
+ * @author Tuomas Tikka
+ */
+public class CachedFile {
+
+	private static final String TAG = "CachedFile";
+
+	// the file
+	private File file;
+
+	// does the file exist?
+	private boolean exists;
+
+	// can the file be read?
+	private boolean readable;
+
+	// the file size at the time of the stat
+	private long length;
+
+	// the modification time at the time of the stat
+	private long lastModified;
+
+	// when the metadata was read from the file system
+	private long statTime;
+
+	// when the entry was last used
+	private long lastAccess;
+
+	// the pre-encoded Last-Modified header, created on first use
+	private HttpHeader lastModifiedHeader;
+
+	// the pre-encoded ETag header, created on first use
+	private HttpHeader etagHeader;
+
+	// the shared channel, or null if not opened yet
+	private FileChannel channel;
+
+	// the number of users holding the channel
+	private int references = 0;
+
+	// has the entry been removed from the cache?
+	private boolean evicted = false;
+
+	/**
+	 * Initialize the entry by reading the file metadata.
+	 *
+	 * @param file The file
+	 */
+	public CachedFile(File file) {
+		this.file = file;
+		this.exists = file.exists();
+		this.readable = exists && file.canRead();
+		this.length = exists ? file.length() : 0;
+		this.lastModified = exists ? file.lastModified() : 0;
+		this.statTime = System.currentTimeMillis();
+		this.lastAccess = statTime;
+	}
+
+	/**
+	 * Acquire the shared channel, opening it if needed. Every call must be paired with a call to release().
+	 *
+	 * @return The channel
+	 * @throws IOException If the file could not be opened
+	 */
+	public synchronized FileChannel acquire() throws IOException {
+		if (channel == null) {
+			channel = new FileInputStream(file).getChannel();
+		}
+		references++;
+		lastAccess = System.currentTimeMillis();
+		return (channel);
+	}
+
+	/**
+	 * Release the shared channel.
+	 */
+	public synchronized void release() {
+		references--;
+		lastAccess = System.currentTimeMillis();
+		if (evicted && references <= 0) {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Mark the entry as removed from the cache. The channel is closed as soon as it is no longer in use.
+	 */
+	public synchronized void evict() {
+		evicted = true;
+		if (references <= 0) {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Is the entry currently in use?
+	 *
+	 * @return True if the channel is held by someone
+	 */
+	public synchronized boolean isInUse() {
+		return (references > 0);
+	}
+
+	/**
+	 * Has the file changed on disk compared to the cached metadata?
+	 *
+	 * @return True if the file was created, deleted, resized or modified
+	 */
+	public boolean isModified() {
+		boolean e = file.exists();
+		if (e != exists) {
+			return (true);
+		}
+		return (e && (file.length() != length || file.lastModified() != lastModified));
+	}
+
+	/**
+	 * Mark the metadata as verified against the file system.
+	 */
+	public synchronized void touchStat() {
+		statTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Mark the entry as used.
+	 */
+	public synchronized void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return the Last-Modified header for the file.
+	 *
+	 * @return The pre-encoded header
+	 */
+	public synchronized HttpHeader getLastModifiedHeader() {
+		if (lastModifiedHeader == null) {
+			lastModifiedHeader = new HttpHeader("Last-Modified", HttpDate.format(lastModified), true);
+		}
+		return (lastModifiedHeader);
+	}
+
+	/**
+	 * Return the entity tag of the file, derived from the path, the size and the modification time.
+	 *
+	 * @return The entity tag (quoted)
+	 */
+	public String getETag() {
+		return (getETagHeader().getValue());
+	}
+
+	/**
+	 * Return the ETag header for the file.
+	 *
+	 * @return The pre-encoded header
+	 */
+	public synchronized HttpHeader getETagHeader() {
+		if (etagHeader == null) {
+			String etag = "\"" + Integer.toHexString(file.getAbsolutePath().hashCode()) + "-" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+			etagHeader = new HttpHeader("ETag", etag, true);
+		}
+		return (etagHeader);
+	}
+
+	//
+	// Private
+	//
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (Exception e) {
+				ServerLog.w(TAG, "could not close file channel: " + e.getMessage());
+			}
+			channel = null;
+		}
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return exists;
+	}
+
+	public boolean canRead() {
+		return readable;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long lastModified() {
+		return lastModified;
+	}
+
+	public synchronized long getStatTime() {
+		return statTime;
+	}
+
+	public synchronized long getLastAccess() {
+		return lastAccess;
+	}
+
+	public synchronized boolean isEvicted() {
+		return evicted;
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.tt.droidplay;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Class that runs the tasks of the AirPlay client on one thread, the most urgent first:
+ *
+ * 1. control commands (play, stop, ...), in the order they were submitted
+ * 2. photo casts, at most one per receiver: a newer cast replaces the one still waiting, and aborts the one being sent
+ * 3. bulk uploads (photos sent ahead), in the order they were submitted, until the next cast to the same receiver
+ *
+ * Tapping through photos quickly thus shows the last one as soon as possible, instead of every photo in turn.
+ *
+ * @author Tuomas Tikka
+ */
+public class CastScheduler {
+
+	/**
+	 * Interface implemented by tasks that can be aborted while they run.
+	 */
+	public interface Task extends Runnable {
+
+		/**
+		 * Abort the task (called from another thread). The task should return as soon as it can, without reporting an error.
+		 */
+		public void cancel();
+
+	}
+
+	// the control commands waiting
+	private LinkedList<Runnable> controls = new LinkedList<Runnable>();
+
+	// the casts waiting, by receiver
+	private LinkedHashMap<String, Task> casts = new LinkedHashMap<String, Task>();
+
+	// the bulk uploads waiting, with their receivers
+	private LinkedList<Upload> bulk = new LinkedList<Upload>();
+
+	// the task being run (if it can be aborted), and its receiver
+	private Task running = null;
+	private String runningKey = null;
+
+	// the task run when there is nothing else to do, and how often (milliseconds)
+	private Runnable housekeeping;
+	private long interval;
+
+	// when the housekeeping task is run next
+	private long housekeepingAt;
+
+	// has the scheduler been shut down?
+	private boolean shutdown = false;
+
+	// the thread running the tasks
+	private Thread thread;
+
+	/**
+	 * Initialize and start the scheduler.
+	 *
+	 * @param housekeeping The task run every now and then (e.g. closing idle connections)
+	 * @param interval How often the housekeeping task is run (milliseconds)
+	 */
+	public CastScheduler(Runnable housekeeping, long interval) {
+		this.housekeeping = housekeeping;
+		this.interval = interval;
+		housekeepingAt = System.currentTimeMillis() + interval;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "CastScheduler");
+		thread.start();
+	}
+
+	/**
+	 * Submit a control command, run before any waiting cast or bulk upload.
+	 *
+	 * @param task The command
+	 */
+	public synchronized void submitControl(Runnable task) {
+		if (shutdown) {
+			return;
+		}
+		controls.add(task);
+		notifyAll();
+	}
+
+	/**
+	 * Submit a cast. The cast waiting for the same receiver is dropped, and the cast or bulk upload being sent to it is aborted,
+	 * together with the bulk uploads waiting for it.
+	 *
+	 * @param key The receiver
+	 * @param task The cast
+	 */
+	public synchronized void submitCast(String key, Task task) {
+		if (shutdown) {
+			return;
+		}
+		casts.remove(key);
+		casts.put(key, task);
+		Iterator<Upload> it = bulk.iterator();
+		while (it.hasNext()) {
+			if (it.next().key.equals(key)) {
+				it.remove();
+			}
+		}
+		if (running != null && key.equals(runningKey)) {
+			running.cancel();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Submit a bulk upload, run when there are no control commands or casts waiting.
+	 *
+	 * @param key The receiver
+	 * @param task The upload
+	 */
+	public synchronized void submitBulk(String key, Task task) {
+		if (shutdown) {
+			return;
+		}
+		bulk.add(new Upload(key, task));
+		notifyAll();
+	}
+
+	/**
+	 * Shut down the scheduler. The control commands already submitted are run, waiting casts and bulk uploads are dropped and the
+	 * task being run is aborted.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		casts.clear();
+		bulk.clear();
+		if (running != null) {
+			running.cancel();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Has the scheduler been shut down?
+	 *
+	 * @return True if no more tasks are accepted
+	 */
+	public synchronized boolean isShutdown() {
+		return (shutdown);
+	}
+
+	//
+	// Private
+	//
+
+	private void work() {
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				while ((task = next()) == null) {
+					if (shutdown) {
+						return;
+					}
+					long wait = housekeepingAt - System.currentTimeMillis();
+					if (wait <= 0) {
+						task = housekeeping;
+						housekeepingAt = System.currentTimeMillis() + interval;
+						break;
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// the tasks report their own errors, the next one is run regardless
+			}
+			synchronized (this) {
+				running = null;
+				runningKey = null;
+			}
+		}
+	}
+
+	private Runnable next() {
+		if (!controls.isEmpty()) {
+			return (controls.removeFirst());
+		}
+		if (!casts.isEmpty()) {
+			Iterator<Map.Entry<String, Task>> it = casts.entrySet().iterator();
+			Map.Entry<String, Task> cast = it.next();
+			it.remove();
+			running = cast.getValue();
+			runningKey = cast.getKey();
+			return (running);
+		}
+		if (!bulk.isEmpty()) {
+			Upload upload = bulk.removeFirst();
+			running = upload.task;
+			runningKey = upload.key;
+			return (running);
+		}
+		return (null);
+	}
+
+	private static class Upload {
+
+		// the receiver
+		private String key;
+
+		// the task
+		private Task task;
+
+		public Upload(String key, Task task) {
+			this.key = key;
+			this.task = task;
+		}
+
+	}
+
+}
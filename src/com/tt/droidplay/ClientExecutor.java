@@ -0,0 +1,35 @@
+package com.tt.droidplay;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Interface used to run client connections in thread per connection mode. Implementations decide how many connections are
+ * served at once and how many may wait; a connection that cannot be accepted is rejected, and the server answers it with 503.
+ *
+ * @author Tuomas Tikka
+ */
+public interface ClientExecutor extends ReportSource {
+
+	/**
+	 * Start accepting connections. Called when the server starts, an executor may be started again after shutdown().
+	 */
+	public void start();
+
+	/**
+	 * Serve a connection, now or when a thread becomes available.
+	 *
+	 * @param worker The worker serving the connection
+	 * @throws RejectedExecutionException If the connection cannot be accepted (e.g. the queue is full or the executor is stopped)
+	 */
+	public void execute(ClientWorker worker) throws RejectedExecutionException;
+
+	/**
+	 * Stop accepting connections and drain the ones being served: waiting connections are closed, idle persistent connections
+	 * are closed and busy ones are closed after the current response. Connections still open after the timeout are aborted.
+	 *
+	 * @param timeout The time to wait for the connections to finish (milliseconds)
+	 * @return True if all connections finished within the timeout
+	 */
+	public boolean shutdown(long timeout);
+
+}
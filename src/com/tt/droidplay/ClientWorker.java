@@ -1,22 +1,15 @@
 package com.tt.droidplay;
 
-import android.util.Base64;
-import android.util.Log;
-
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.StringTokenizer;
-import java.util.TimeZone;
+import java.nio.channels.SocketChannel;
 
 /**
- * Class that handles per-client work in the server.
+ * Class that handles per-client work in the server (thread per connection mode). Requests are served one after another on
+ * the same socket until the client closes the connection, asks to close it, or the connection stays idle too long.
  *
  * @author Tuomas Tikka
  */
@@ -24,370 +17,220 @@ public class ClientWorker implements Runnable {
 
     private static final String TAG = "ClientWorker";
 
+    // the longest wait for a file being written before checking whether it is finished (milliseconds)
+    private static final long GROWING_FILE_WAIT = 1000;
+
+    // how long and how much of the unread request is read after an error response, before the connection is closed
+    private static final int DRAIN_TIME = 500;
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private SocketChannel channel;
+
     private Socket socket;
 
     private int id;
 
-    public ClientWorker(Socket socket, int id) {
-        this.socket = socket;
+    private RequestHandler handler;
+
+    private BandwidthShaper shaper;
+
+    private ConnectionThrottle throttle;
+
+    private ConnectionStats stats;
+
+    private SocketTuner tuner;
+
+    // is the server shutting down (no further requests are served)?
+    private volatile boolean stopping = false;
+
+    // is the worker waiting for the next request (rather than handling one)?
+    private volatile boolean idle = true;
+
+    // the parser for request heads, reused for every request on the connection
+    private HttpRequestParser parser = new HttpRequestParser();
+
+    // the buffer response heads are encoded into, reused for every request on the connection
+    private ByteBuffer headBuffer = ByteBuffer.allocate(4 * 1024);
+
+    // the buffer the first chunk of each response body is read into, sent together with the head
+    private ByteBuffer chunkBuffer = ByteBuffer.allocateDirect(SocketTuner.FIRST_CHUNK_SIZE);
+
+    public ClientWorker(SocketChannel channel, int id, RequestHandler handler, BandwidthShaper shaper, SocketTuner tuner) {
+        this.channel = channel;
+        this.socket = channel.socket();
         this.id = id;
+        this.handler = handler;
+        this.shaper = shaper;
+        this.tuner = tuner;
     }
 
     @Override
     public void run() {
-        Log.d(TAG, "[" + id + "] client connection from " + socket.getInetAddress().getHostAddress());
-        try {
-            Log.d(TAG, "[" + id + "] socket recv buffer size = " + socket.getReceiveBufferSize());
-            Log.d(TAG, "[" + id + "] socket send buffer size = " + socket.getSendBufferSize());
-            HttpHead head = parseHead(socket.getInputStream());
-            if (head == null) {
-                handle400(socket, true);
-                return;
-            }
-            boolean close = closeClientSocket(head);
-            handleDownload(socket, head, close);
-        } catch (IOException e) {
-            Log.w(TAG, "[" + id + "] could not read from client: " + e.getMessage());
-            e.printStackTrace(System.err);
-        }
-    }
-
-    private void closeClientSocket(Socket socket) {
-        if (socket != null) {
-            try {
-                socket.close();
-                Log.d(TAG, "[" + id + "] client socket closed");
-            } catch (Exception e) {
-                Log.w(TAG, "[" + id + "] could not close client socket: " + e.getMessage());
-                e.printStackTrace(System.err);
-            }
+        if (ServerLog.isSampled(id)) {
+            ServerLog.d(TAG, "[" + id + "] client connection from " + socket.getInetAddress().getHostAddress());
         }
-    }
-
-    private static boolean isHeadTerminated(String line) {
-        return (line == null || line.isEmpty());
-    }
-
-    public HttpHead parseHead(InputStream in) {
+        throttle = shaper.register(socket.getInetAddress().getHostAddress());
+        stats = handler.getMetrics().onConnectionOpened(id, socket.getInetAddress().getHostAddress());
         try {
-            HttpHead head = new HttpHead();
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String line;
-            int i = 0;
-            while (!isHeadTerminated(line = br.readLine())) {
-                if (i == 0) {
-                    StringTokenizer st = new StringTokenizer(line, " ");
-                    if (st.countTokens() == 3) {
-                        head.setMethod(st.nextToken().trim());
-                        head.setUri(st.nextToken().trim());
-                        head.setProtocol(st.nextToken().trim());
+            stats.setSendBuffer(tuner.configure(socket));
+            if (ServerLog.isSampled(id)) {
+                ServerLog.d(TAG, "[" + id + "] socket recv buffer size = " + socket.getReceiveBufferSize());
+                ServerLog.d(TAG, "[" + id + "] socket send buffer size = " + stats.getSendBuffer());
+            }
+            // the idle timeout applies while waiting for the next request on a persistent connection
+            socket.setSoTimeout(handler.getKeepAliveTimeout());
+            // the parser buffers the input itself, reading whatever is available
+            InputStream in = socket.getInputStream();
+            int served = 0;
+            while (!stopping) {
+                idle = !parser.hasBufferedData();
+                HttpRequestParser.State state;
+                while ((state = parser.parse()) == HttpRequestParser.State.NEED_MORE) {
+                    if (parser.fill(in) == -1) {
+                        if (parser.hasBufferedData()) {
+                            ServerLog.w(TAG, "[" + id + "] client closed connection in the middle of a request");
+                        } else if (ServerLog.isSampled(id)) {
+                            ServerLog.d(TAG, "[" + id + "] client closed connection after " + served + " request(s)");
+                        }
+                        return;
                     }
+                    idle = false;
+                }
+                idle = false;
+                stats.onRequest(state == HttpRequestParser.State.COMPLETE ? parser.getHead() : null);
+                boolean trace = ServerLog.isSampled(id, served);
+                HttpResponse response;
+                if (state == HttpRequestParser.State.COMPLETE) {
+                    response = handler.handle(parser.getHead(), socket.getInetAddress(), id, served++);
                 } else {
-                    int j = line.indexOf(":");
-                    if (j != -1) {
-                        String name = line.substring(0, j);
-                        String value = line.substring(j + 2);
-                        head.getHeaders().put(name, value);
+                    response = handler.handleInvalid(parser.getErrorStatus(), id);
+                }
+                parser.next();
+                if (!sendResponse(response, trace)) {
+                    break;
+                }
+                if (response.isClose()) {
+                    if (state != HttpRequestParser.State.COMPLETE || response.getStatus() >= 400) {
+                        // the rest of the request may still be arriving
+                        drain(in);
                     }
+                    break;
                 }
-                i++;
             }
-            return (head);
-        } catch (Exception e) {
-            return (null);
-        }
-    }
-
-    private void handle400(Socket socket, boolean close) {
-        PrintWriter pw = null;
-        try {
-            pw = new PrintWriter(socket.getOutputStream());
-            pw.println("HTTP/1.1 400 Bad Request");
-            pw.println("Date: " + getDateHeader());
-            pw.println("Server: " + getServerHeader());
-            pw.println("Content-Length: 0");
-            if (close) {
-                pw.println("Connection: close");
-            } else {
-                pw.println("Connection: keep-alive");
+        } catch (SocketTimeoutException e) {
+            if (ServerLog.isSampled(id)) {
+                ServerLog.d(TAG, "[" + id + "] idle connection timed out");
             }
-            pw.println();
         } catch (IOException e) {
-            Log.e(TAG, "[" + id + "] could not respond to client (HTTP 400): " + e.getMessage());
-            e.printStackTrace(System.err);
-        } finally {
-            if (pw != null) {
-                pw.close();
-            }
-            if (close) {
-                closeClientSocket(socket);
+            if (stopping) {
+                ServerLog.d(TAG, "[" + id + "] connection closed, server is shutting down");
+            } else {
+                ServerLog.w(TAG, "[" + id + "] could not read from client: " + e.getMessage(), e);
             }
+        } finally {
+            shaper.unregister(throttle);
+            handler.getMetrics().onConnectionClosed(stats);
+            closeClientSocket(socket);
+        }
+    }
+
+    /**
+     * Stop serving the connection: an idle connection is closed now, a busy one after the current response.
+     */
+    public void shutdown() {
+        stopping = true;
+        if (idle) {
+            closeClientSocket(socket);
         }
     }
 
-    private void handle403(Socket socket, boolean close) {
-        PrintWriter pw = null;
+    /**
+     * Close the connection without serving it (e.g. it was still waiting for a thread when the server stopped).
+     */
+    public void cancel() {
+        stopping = true;
+        closeClientSocket(socket);
+    }
+
+    /**
+     * Answer the connection with 503 and close it, because the server has no capacity to serve it. Called on the thread that
+     * accepted the connection, so nothing is read from the client.
+     */
+    public void reject() {
+        HttpResponse response = handler.handleUnavailable(id);
+        handler.getMetrics().countStatus(response.getStatus());
         try {
-            pw = new PrintWriter(socket.getOutputStream());
-            pw.println("HTTP/1.1 403 Forbidden");
-            pw.println("Date: " + getDateHeader());
-            pw.println("Server: " + getServerHeader());
-            pw.println("Content-Length: 0");
-            if (close) {
-                pw.println("Connection: close");
-            } else {
-                pw.println("Connection: keep-alive");
-            }
-            pw.println();
+            channel.write(response.encodeHead(headBuffer));
+            // let the client read the response before the connection goes away
+            socket.shutdownOutput();
         } catch (IOException e) {
-            Log.w(TAG, "[" + id + "] could not respond to client (HTTP 403): " + e.getMessage());
-            e.printStackTrace(System.err);
+            ServerLog.w(TAG, "[" + id + "] could not reject client: " + e.getMessage());
         } finally {
-            if (pw != null) {
-                pw.close();
-            }
-            if (close) {
-                closeClientSocket(socket);
-            }
+            closeClientSocket(socket);
         }
     }
 
-    private void handle404(Socket socket, boolean close) {
-        PrintWriter pw = null;
+    private void drain(InputStream in) {
+        // closing with unread data resets the connection, and the client may never see the error response
         try {
-            pw = new PrintWriter(socket.getOutputStream());
-            pw.println("HTTP/1.1 404 Not Found");
-            pw.println("Date: " + getDateHeader());
-            pw.println("Server: " + getServerHeader());
-            pw.println("Content-Length: 0");
-            if (close) {
-                pw.println("Connection: close");
-            } else {
-                pw.println("Connection: keep-alive");
+            socket.shutdownOutput();
+            socket.setSoTimeout(DRAIN_TIME);
+            byte[] buffer = new byte[4096];
+            long until = System.currentTimeMillis() + DRAIN_TIME;
+            int drained = 0;
+            int i;
+            while (drained < DRAIN_LIMIT && System.currentTimeMillis() < until && (i = in.read(buffer)) != -1) {
+                drained += i;
             }
-            pw.println();
         } catch (IOException e) {
-            Log.w(TAG, "[" + id + "] could not respond to client (HTTP 404): " + e.getMessage());
-            e.printStackTrace(System.err);
-        } finally {
-            if (pw != null) {
-                pw.close();
-            }
-            if (close) {
-                closeClientSocket(socket);
-            }
+            // timed out or reset, the connection is closed anyway
         }
     }
 
-    private void handleDownload(Socket socket, HttpHead head, boolean close) {
-        String path;
+    private boolean sendResponse(HttpResponse response, boolean trace) {
         try {
-            path = new String(Base64.decode(head.getUri(), Base64.NO_WRAP | Base64.URL_SAFE), "UTF-8");
-            Log.d(TAG, "[" + id + "] parsed download path: " + path);
-        } catch (Exception e) {
-            Log.w(TAG, "[" + id + "] could not parse uri from request: " + e.getMessage());
-            e.printStackTrace(System.err);
-            handle400(socket, close);
-            return;
-        }
-        File file = new File(path);
-        if (!file.exists()) {
-            Log.w(TAG, "[" + id + "] file not found: " + path);
-            handle404(socket, close);
-            return;
-        }
-        if (!file.canRead()) {
-            Log.w(TAG, "[" + id + "] cannot read file: " + path);
-            handle403(socket, close);
-            return;
-        }
-        Log.d(TAG, "[" + id + "] found file size " + file.length());
-        long start = -1;
-        long end = -1;
-        String range = head.getHeaders().get("Range");
-        if (range != null) {
-            long[] l = parseRangeRequestHeader(range, file.length());
-            if (l != null) {
-                start = l[0];
-                end = l[1];
-            } else {
-                Log.w(TAG, "[" + id + "] invalid range: " + range);
-            }
-        }
-        if (start != -1 && end != -1) {
-            Log.d(TAG, "[" + id + "] detected range download: start = " + start + ", end = " + end);
-            BufferedOutputStream out = null;
-            try {
-                out = new BufferedOutputStream(socket.getOutputStream());
-                out.write("HTTP/1.1 206 Partial Content\n".getBytes("UTF-8"));
-                setResponseHeader("Date", getDateHeader(), out);
-                setResponseHeader("Last-Modified", getDateHeader(file.lastModified()), out);
-                setResponseHeader("Server", getServerHeader(), out);
-                setResponseHeader("Accept-Ranges", "bytes", out);
-                setResponseHeader("Content-Length", "" + (end - start + 1), out);
-                setResponseHeader("Content-Range", "bytes " + start + "-" + end + "/" + file.length(), out);
-                setResponseHeader("Content-Type", "video/mp4", out);
-                if (close) {
-                    setResponseHeader("Connection", "close", out);
-                } else {
-                    setResponseHeader("Connection", "keep-alive", out);
-                }
-                setResponseHeader("Cache-Control", "private, max-age=0", out);
-                out.write("\n".getBytes("UTF-8"));
-                FileChannel fc = new FileInputStream(file).getChannel();
-                ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start + 1);
-                WritableByteChannel wbc = Channels.newChannel(out);
-                wbc.write(buffer);
-                fc.close();
-            } catch (Exception e) {
-                Log.w(TAG, "[" + id + "] error streaming data to client (HTTP 206): " + e.getMessage());
-                e.printStackTrace(System.err);
-            } finally {
-                if (out != null) {
-                    try {
-                        out.close();
-                    } catch (Exception e) {
-                        Log.w(TAG, "[" + id + "] could not close output stream (HTTP 206): " + e.getMessage());
-                        e.printStackTrace(System.err);
-                    }
-                }
-                if (close) {
-                    closeClientSocket(socket);
+            response.encodeHead(headBuffer);
+            response.readFirstChunk(chunkBuffer);
+            throttle.start(response.getPriority());
+            stats.onResponseStarted(response);
+            tuner.watch(socket, response);
+            long started = System.currentTimeMillis();
+            // write straight to the socket channel, so file bodies can be sent with sendfile
+            while (!response.writeTo(channel, throttle)) {
+                stats.onProgress(response);
+                // blocking channel, only the throttle or a file still being written can stop the writing
+                if (response.isThrottled()) {
+                    Thread.sleep(throttle.getDelay());
+                } else if (response.isWaiting()) {
+                    response.awaitBody(GROWING_FILE_WAIT);
                 }
             }
-            Log.d(TAG, "[" + id + "] range download complete");
-        } else {
-            Log.d(TAG, "[" + id + "] detected full download");
-            BufferedOutputStream out = null;
-            BufferedInputStream in = null;
-            try {
-                out = new BufferedOutputStream(socket.getOutputStream());
-                out.write("HTTP/1.1 200 OK\n".getBytes("UTF-8"));
-                setResponseHeader("Date", getDateHeader(), out);
-                setResponseHeader("Last-Modified", getDateHeader(file.lastModified()), out);
-                setResponseHeader("Server", getServerHeader(), out);
-                setResponseHeader("Accept-Ranges", "bytes", out);
-                setResponseHeader("Content-Length", "" + file.length(), out);
-                setResponseHeader("Content-Type", "video/mp4", out);
-                if (close) {
-                    setResponseHeader("Connection", "close", out);
-                } else {
-                    setResponseHeader("Connection", "keep-alive", out);
-                }
-                setResponseHeader("Cache-Control", "private, max-age=0", out);
-                out.write("\n".getBytes("UTF-8"));
-                FileChannel fc = new FileInputStream(file).getChannel();
-                ByteBuffer buffer = ByteBuffer.allocate(32 * 1024);
-                WritableByteChannel wbc = Channels.newChannel(out);
-                while (fc.read(buffer) != -1) {
-                    buffer.flip();
-                    wbc.write(buffer);
-                    buffer.clear();
-                }
-                fc.close();
-            } catch (Exception e) {
-                Log.w(TAG, "[" + id + "] error streaming data to client (HTTP 200): " + e.getMessage());
-                e.printStackTrace(System.err);
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (Exception e) {
-                        Log.w(TAG, "[" + id + "] could not close input stream (HTTP 200): " + e.getMessage());
-                        e.printStackTrace(System.err);
-                    }
-                }
-                if (out != null) {
-                    try {
-                        out.close();
-                    } catch (Exception e) {
-                        Log.w(TAG, "[" + id + "] could not close output stream (HTTP 200): " + e.getMessage());
-                        e.printStackTrace(System.err);
-                    }
-                }
-                if (close) {
-                    closeClientSocket(socket);
-                }
+            stats.onResponseCompleted(response);
+            stats.setSendBuffer(tuner.onResponseCompleted(socket, response.getBytesWritten(), System.currentTimeMillis() - started));
+            if (trace) {
+                ServerLog.d(TAG, "[" + id + "] response complete (HTTP " + response.getStatus() + ")");
             }
-            Log.d(TAG, "[" + id + "] full download complete");
-        }
-    }
-
-    private boolean closeClientSocket(HttpHead head) {
-        if (head == null) {
             return (true);
+        } catch (Exception e) {
+            ServerLog.w(TAG, "[" + id + "] error streaming data to client (HTTP " + response.getStatus() + "): " + e.getMessage(), e);
+            return (false);
+        } finally {
+            tuner.unwatch(socket);
+            response.release();
         }
-        if (head.getHeaders() == null) {
-            return (true);
-        }
-        boolean result = false;
-        for (String name : head.getHeaders().keySet()) {
-            String value = head.getHeaders().get(name);
-            if ("connection".equals(name.toLowerCase())) {
-                if ("close".equals(value.toLowerCase())) {
-                    result = true;
-                }
-            }
-        }
-        Log.d(TAG, "[" + id + "] close client socket: " + result);
-        return (result);
     }
 
-    private long[] parseRangeRequestHeader(String range, long fileSize) {
-        long start;
-        long end;
-        if (range != null) {
-            if (range.toLowerCase().startsWith("bytes=")) {
-                String s = range.substring(6);
-                int i = s.indexOf("-");
-                if (i == -1) {
-                    return (null);
-                } else if (i == 0) {
-                    start = fileSize - Long.parseLong(s.substring(1));
-                    end = fileSize - 1;
-                    return (new long[]{start, end});
-                } else if (i == s.length() - 1) {
-                    start = Long.parseLong(s.substring(0, s.length() - 1));
-                    end = fileSize - 1;
-                    return (new long[]{start, end});
-                } else {
-                    start = Long.parseLong(s.substring(0, i));
-                    end = Long.parseLong(s.substring(i + 1));
-                    return (new long[]{start, end});
+    private void closeClientSocket(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+                if (ServerLog.isSampled(id)) {
+                    ServerLog.d(TAG, "[" + id + "] client socket closed");
                 }
-            } else {
-                return (null);
+            } catch (Exception e) {
+                ServerLog.w(TAG, "[" + id + "] could not close client socket: " + e.getMessage(), e);
             }
-        } else {
-            return (null);
         }
     }
 
-    private void setResponseHeader(String name, String value, OutputStream out) throws Exception {
-        StringBuilder sb = new StringBuilder();
-        sb.append(name);
-        sb.append(": ");
-        sb.append(value);
-        sb.append("\n");
-        out.write(sb.toString().getBytes("UTF-8"));
-        Log.d(TAG, "[" + id + "] > " + name + ": " + value);
-    }
-
-    private String getDateHeader(long milliseconds) {
-        // Example: Thu, 26 Mar 2015 09:03:53 GMT
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", Locale.US);
-        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return (simpleDateFormat.format(new Date(milliseconds)) + " GMT");
-    }
-
-    private String getDateHeader() {
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", Locale.US);
-        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return (simpleDateFormat.format(new Date()) + " GMT");
-    }
-
-    private String getServerHeader() {
-        return ("DroidPlay/0.2.4 (Android)");
-    }
-
 }
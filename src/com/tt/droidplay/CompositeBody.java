@@ -0,0 +1,81 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that implements a response body made of several bodies sent one after another (e.g. the parts of a
+ * multipart/byteranges response).
+ *
+ * @author Tuomas Tikka
+ */
+public class CompositeBody implements ResponseBody {
+
+	// the bodies, in the order they are sent
+	private List<ResponseBody> parts = new ArrayList<ResponseBody>();
+
+	// the index of the body currently being written
+	private int current = 0;
+
+	/**
+	 * Add a body to the end.
+	 *
+	 * @param part The body
+	 */
+	public void add(ResponseBody part) {
+		parts.add(part);
+	}
+
+	@Override
+	public long getLength() {
+		long length = 0;
+		for (ResponseBody part : parts) {
+			length += part.getLength();
+		}
+		return (length);
+	}
+
+	@Override
+	public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+		long written = 0;
+		while (current < parts.size() && written < limit) {
+			ResponseBody part = parts.get(current);
+			written += part.writeTo(channel, limit - written);
+			if (!part.isComplete()) {
+				break;
+			}
+			current++;
+		}
+		return (written);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		int n = 0;
+		while (current < parts.size() && buffer.hasRemaining()) {
+			ResponseBody part = parts.get(current);
+			n += part.read(buffer);
+			if (!part.isComplete()) {
+				break;
+			}
+			current++;
+		}
+		return (n);
+	}
+
+	@Override
+	public boolean isComplete() {
+		return (current >= parts.size());
+	}
+
+	@Override
+	public void close() {
+		for (ResponseBody part : parts) {
+			part.close();
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.tt.droidplay;
+
+/**
+ * Class that implements the statistics of one client connection. A connection is only served by one thread at a time, so the
+ * fields are written without synchronization and only published (volatile) for the statistics request to read.
+ *
+ * @author Tuomas Tikka
+ */
+public class ConnectionStats {
+
+	// the server-wide metrics
+	private ServerMetrics metrics;
+
+	// the connection id
+	private int id;
+
+	// the address of the client
+	private String address;
+
+	// when the connection was opened
+	private long openedAt = System.currentTimeMillis();
+
+	// the number of bytes sent on the connection
+	private volatile long bytes = 0;
+
+	// the number of requests served on the connection
+	private volatile int requests = 0;
+
+	// the response being sent, or null
+	private volatile HttpResponse response;
+
+	// when the current request head was complete (nanoseconds)
+	private long requestStart;
+
+	// the number of bytes of the current response already counted
+	private volatile long responseBytes;
+
+	// the send buffer size of the socket
+	private volatile int sendBuffer;
+
+	// has the connection only been used to read the statistics (left out of them)?
+	private volatile boolean monitor = false;
+
+	/**
+	 * Initialize the statistics.
+	 *
+	 * @param metrics The server-wide metrics
+	 * @param id The connection id
+	 * @param address The address of the client
+	 */
+	public ConnectionStats(ServerMetrics metrics, int id, String address) {
+		this.metrics = metrics;
+		this.id = id;
+		this.address = address;
+	}
+
+	/**
+	 * Called when a request head has been parsed, before the response is created.
+	 *
+	 * @param head The request head, or null if the request is invalid
+	 */
+	public void onRequest(HttpHead head) {
+		requestStart = System.nanoTime();
+		responseBytes = 0;
+		if (requests == 0 && !monitor && head != null && ServerMetrics.PATH.equals(head.getUri())) {
+			// left out before the statistics are created, so the first read does not include itself
+			monitor = true;
+			metrics.onMonitorChanged(true);
+		}
+	}
+
+	/**
+	 * Called when the response starts to be sent.
+	 *
+	 * @param response The response
+	 */
+	public void onResponseStarted(HttpResponse response) {
+		this.response = response;
+		if (response.isCounted() && monitor) {
+			monitor = false;
+			metrics.onMonitorChanged(false);
+		}
+	}
+
+	/**
+	 * Called after each write of the response. The first one records the time to first byte.
+	 *
+	 * @param response The response
+	 */
+	public void onProgress(HttpResponse response) {
+		if (!response.isCounted()) {
+			return;
+		}
+		long written = response.getBytesWritten();
+		long n = written - responseBytes;
+		if (n <= 0) {
+			return;
+		}
+		if (responseBytes == 0) {
+			// when the first write happened, not when it returned (a blocking write returns after the whole body)
+			metrics.getTimeToFirstByte().record((response.getFirstByteAt() - requestStart) / 1000000);
+		}
+		responseBytes = written;
+		bytes += n;
+		metrics.addBytes(n);
+	}
+
+	/**
+	 * Called when the whole response has been sent.
+	 *
+	 * @param response The response
+	 */
+	public void onResponseCompleted(HttpResponse response) {
+		onProgress(response);
+		requests++;
+		this.response = null;
+		if (!response.isCounted()) {
+			return;
+		}
+		metrics.onResponse(response.getStatus(), (System.nanoTime() - requestStart) / 1000000);
+	}
+
+	/**
+	 * Append the statistics as a JSON object.
+	 *
+	 * @param sb The builder to append to
+	 * @param now The current time
+	 */
+	public void appendJson(StringBuilder sb, long now) {
+		long elapsed = Math.max(1, now - openedAt);
+		HttpResponse response = this.response;
+		long sent = bytes + getUncountedBytes();
+		sb.append("{\"id\":").append(id);
+		sb.append(",\"address\":\"").append(address).append('"');
+		sb.append(",\"ageMillis\":").append(elapsed);
+		sb.append(",\"requests\":").append(requests);
+		sb.append(",\"status\":").append(response == null ? 0 : response.getStatus());
+		sb.append(",\"bytes\":").append(sent);
+		sb.append(",\"bytesPerSecond\":").append(sent * 1000 / elapsed);
+		sb.append(",\"sendBuffer\":").append(sendBuffer);
+		sb.append('}');
+	}
+
+	/**
+	 * Return the number of bytes of the current response sent but not counted yet. A blocking write counts its progress only
+	 * when it returns, so this is what it has sent in the meantime.
+	 *
+	 * @return The number of bytes
+	 */
+	public long getUncountedBytes() {
+		HttpResponse response = this.response;
+		return (response == null ? 0 : Math.max(0, response.getBytesWritten() - responseBytes));
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public int getId() {
+		return id;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public boolean isMonitor() {
+		return monitor;
+	}
+
+	public void setSendBuffer(int sendBuffer) {
+		this.sendBuffer = sendBuffer;
+	}
+
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.tt.droidplay;
+
+/**
+ * Class that controls the rate of a single connection. A writer asks for tokens before writing body bytes, gives back what it
+ * could not write, and waits for the returned delay when nothing was granted.
+ *
+ * @author Tuomas Tikka
+ */
+public class ConnectionThrottle {
+
+	// the shaper holding the global bucket
+	private BandwidthShaper shaper;
+
+	// the address of the client
+	private String address;
+
+	// the bucket of this connection
+	private TokenBucket bucket;
+
+	// the priority of the response being sent
+	private volatile BandwidthShaper.Priority priority = BandwidthShaper.Priority.PREFETCH;
+
+	/**
+	 * Initialize the throttle.
+	 *
+	 * @param shaper The shaper holding the global bucket
+	 * @param address The address of the client
+	 * @param rate The rate of the connection in bytes per second (0 = unlimited)
+	 */
+	ConnectionThrottle(BandwidthShaper shaper, String address, long rate) {
+		this.shaper = shaper;
+		this.address = address;
+		this.bucket = new TokenBucket(rate);
+	}
+
+	/**
+	 * Called when the connection starts sending a response.
+	 *
+	 * @param priority The priority of the response
+	 */
+	public void start(BandwidthShaper.Priority priority) {
+		this.priority = priority;
+		if (priority == BandwidthShaper.Priority.PLAYBACK) {
+			shaper.onPlaybackStarted(this);
+		}
+	}
+
+	/**
+	 * Take tokens for writing body bytes.
+	 *
+	 * @param wanted The number of bytes the writer would like to write
+	 * @return The number of bytes the writer may write (zero if it has to wait)
+	 */
+	public long acquire(long wanted) {
+		if (!shaper.isActive()) {
+			return (wanted);
+		}
+		BandwidthShaper.Priority p = priority;
+		long granted = bucket.take(wanted, 0);
+		if (granted == 0) {
+			return (0);
+		}
+		long global = shaper.take(granted, p);
+		if (global < granted) {
+			bucket.giveBack(granted - global);
+		}
+		return (global);
+	}
+
+	/**
+	 * Give back tokens that were acquired but not used.
+	 *
+	 * @param unused The number of bytes not written
+	 */
+	public void release(long unused) {
+		if (!shaper.isActive() || unused <= 0) {
+			return;
+		}
+		bucket.giveBack(unused);
+		shaper.giveBack(unused, priority);
+	}
+
+	/**
+	 * Return how long the writer should wait before asking for tokens again.
+	 *
+	 * @return The delay in milliseconds (at least one)
+	 */
+	public long getDelay() {
+		return (Math.max(1, Math.max(bucket.getDelay(0), shaper.getDelay(priority))));
+	}
+
+	/**
+	 * Demote the connection to prefetch priority (its playback stream has been superseded).
+	 */
+	void demote() {
+		priority = BandwidthShaper.Priority.PREFETCH;
+	}
+
+	/**
+	 * Set the rate of the connection.
+	 *
+	 * @param rate The rate in bytes per second (0 = unlimited)
+	 */
+	void setRate(long rate) {
+		bucket.setRate(rate);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public String getAddress() {
+		return address;
+	}
+
+	public BandwidthShaper.Priority getPriority() {
+		return priority;
+	}
+
+}
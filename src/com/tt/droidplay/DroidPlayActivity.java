@@ -27,13 +27,13 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.support.v4.widget.DrawerLayout;
-import android.util.Base64;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.GridView;
@@ -53,6 +53,9 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 	// the service type (which events to listen for)
     private static final String SERVICE_TYPE = "_airplay._tcp.local.";
     
+    // the disk space used for photos prepared for the receiver (bytes)
+    private static final long IMAGE_CACHE_SIZE = 64 * 1024 * 1024;
+    
     // JmDNS library
     private JmDNS jmdns;
     
@@ -97,6 +100,9 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 		// TODO Auto-generated method stub
 		super.onCreate(savedInstanceState);
 		
+		// progress of image uploads
+		requestWindowFeature(Window.FEATURE_PROGRESS);
+		
 		setContentView(R.layout.main);
 		
 		// preferences
@@ -137,9 +143,15 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 				try {
 					if (FileUtils.isImage(file)) {
 						clientService.putImage(file, services.get(selectedService), AirPlayUtils.getTransition(prefs.getInt("ImageTransition", 0)));
+						// the next photos are sent ahead while this one is shown
+						int ahead = prefs.getInt("PrecacheCount", 3);
+						if (ahead > 0) {
+							clientService.precacheImages(adapter.getImagesAfter(position, ahead), services.get(selectedService));
+						}
 					} else if (FileUtils.isVideo(file)) {
-						URL url = new URL("http", deviceAddress.getHostAddress(), prefs.getInt("ServerPort", 9999), Base64.encodeToString(file.getAbsolutePath().getBytes(), Base64.NO_WRAP|Base64.URL_SAFE));
-						clientService.playVideo(url, services.get(selectedService));
+						// only the video being cast is served
+						http.getMediaRegistry().revokeAll();
+						playVideo(http.getMediaRegistry().publish(file), services.get(selectedService));
 					} else {
 						toast("Error: Unknown file type");
 					}
@@ -150,7 +162,7 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 		});
 		
         // client service
-        clientService = new AirPlayClientService(this);
+        clientService = new AirPlayClientService(this, new ImagePreparer(new File(getCacheDir(), "images"), IMAGE_CACHE_SIZE));
         
         // services
         services = new HashMap<String, ServiceInfo>();
@@ -186,10 +198,25 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
         thread.start();
         
         // http server
-        http = new HttpServer();
+        http = new HttpServer(HttpServer.Mode.values()[prefs.getInt("ServerMode", 0)]);
         http.startServer(prefs.getInt("ServerPort", 9999));
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		
+		// bandwidth limits (may have been changed in settings)
+		http.setBandwidthLimits(prefs.getInt("GlobalRateLimit", 0) * 1024L, prefs.getInt("ConnectionRateLimit", 0) * 1024L);
+		
+		// memory for small files (may have been changed in settings)
+		http.setHotCacheBudget(prefs.getInt("HotCacheSize", 16) * 1024L * 1024L);
+		
+		// size photos are prepared for (may have been changed in settings)
+		int[] imageSize = AirPlayUtils.getImageSize(prefs.getInt("ImageSize", 0));
+		clientService.setImageSize(imageSize[0], imageSize[1]);
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 	    MenuInflater inflater = getMenuInflater();
@@ -205,6 +232,11 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 				startActivity(intent);
 				break;
 			}
+			case R.id.stats: {
+				Intent intent = new Intent(this, StatsActivity.class);
+				startActivity(intent);
+				break;
+			}
 			case R.id.exit: {
 				finish();
 				break;
@@ -269,6 +301,7 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 	public void serviceRemoved(ServiceEvent event) {
 		toast("Removed AirPlay service: " + event.getName());
 		services.remove(event.getInfo().getKey());
+		clientService.disconnect(event.getInfo());
 		if (selectedService != null && selectedService.equals(event.getName())) {
 			selectedService = null;
 			subtitle("Not connected");
@@ -292,6 +325,10 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 
 	@Override
 	public void onServiceSelected(ServiceInfo serviceInfo) {
+		if (selectedService != null && !selectedService.equals(serviceInfo.getKey())) {
+			// end the session with the previous service
+			clientService.disconnect(services.get(selectedService));
+		}
 		selectedService = serviceInfo.getKey();
 		subtitle(serviceInfo.getName());
 		toast("Using AirPlay service: " + serviceInfo.getName());
@@ -305,14 +342,21 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 	
 	@Override
 	public void onPutImageSuccess(File file) {
+		progress(-1, 0);
 		toast("Sent image " + file.getName());
 	}
 
 	@Override
 	public void onPutImageError(File file, String message) {
+		progress(-1, 0);
 		toast("Error sending image " + file.getName() + (message == null ? "" : " :" + message));
 	}
 	
+	@Override
+	public void onPutImageProgress(File file, long sent, long total) {
+		progress(sent, total);
+	}
+	
 	@Override
 	public void onPlayVideoSuccess(URL location) {
 		toast("Sent video link " + location);
@@ -363,6 +407,7 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 		if ("stop".equals(item.getTag())) {
 			try {
 				clientService.stopVideo(services.get(selectedService));
+				http.getMediaRegistry().revokeAll();
 			} catch (Exception e) {
 				toast("Error: " + e.getMessage());
 			}
@@ -374,6 +419,33 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 	// Private
 	//
 	
+	private void playVideo(final MediaEntry media, final ServiceInfo serviceInfo) {
+		final boolean hls = prefs.getBoolean("StreamHls", false);
+		final int port = prefs.getInt("ServerPort", 9999);
+		// indexing the video for HLS reads the file, which is not allowed on the main thread
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					String uri = media.getUri();
+					if (hls) {
+						// the file itself is cast if it cannot be packaged
+						if (http.prepareHls(media)) {
+							uri = media.getPlaylistUri();
+						} else {
+							toast("Unable to stream as HLS, casting the file");
+						}
+					}
+					URL url = new URL("http", deviceAddress.getHostAddress(), port, uri);
+					clientService.playVideo(url, serviceInfo);
+				} catch (Exception e) {
+					toast("Error: " + e.getMessage());
+				}
+			}
+		};
+		thread.start();
+	}
+	
 	private void updateFolder(final String newFolder) {
 		handler.post(new Runnable() {
 			@Override
@@ -412,6 +484,21 @@ public class DroidPlayActivity extends Activity implements OnItemClickListener,
 		});		
 	}
 	
+	private void progress(final long sent, final long total) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (sent < 0) {
+					setProgressBarVisibility(false);
+					return;
+				}
+				// the window progress goes from 0 to 10000
+				setProgress(total > 0 ? (int) (sent * 9999 / total) : 0);
+				setProgressBarVisibility(true);
+			}
+		});
+	}
+	
 	private InetAddress getWifiInetAddress() {
 	    try {
 	        for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
@@ -0,0 +1,116 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps the faststart layouts of MP4 files. A file is checked once: if its moov box is behind the media data, the
+ * rewritten moov box is kept until the file changes, otherwise the file is remembered as not needing one.
+ *
+ * @author Tuomas Tikka
+ */
+public class FastStartCache implements ReportSource {
+
+	private static final String TAG = "FastStartCache";
+
+	// the maximum number of cached entries
+	private static final int MAX_ENTRIES = 16;
+
+	// the cached layouts, by path in access order (least recently used first)
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// the number of lookups served from the cache, the number that had to read the file, and the layouts created
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong created = new AtomicLong();
+
+	/**
+	 * Return the faststart layout of a file.
+	 *
+	 * @param file The file
+	 * @return The layout, or null if the file is served as it is (already faststart, or not an MP4 file)
+	 */
+	public FastStartView getView(CachedFile file) {
+		String path = file.getFile().getAbsolutePath();
+		String etag = file.getETag();
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.etag.equals(etag)) {
+				hits.incrementAndGet();
+				return (entry.view);
+			}
+		}
+		misses.incrementAndGet();
+		FastStartView view = null;
+		try {
+			Mp4File mp4;
+			FileChannel channel = file.acquire();
+			try {
+				mp4 = Mp4File.read(channel, file.length());
+			} finally {
+				file.release();
+			}
+			if (!mp4.isFastStart()) {
+				view = FastStartView.create(mp4);
+				created.incrementAndGet();
+				ServerLog.i(TAG, "serving " + path + " with the moov box moved to the front (" + view.getHeaderSize() + " bytes)");
+			}
+		} catch (IOException e) {
+			if (ServerLog.isDebug()) {
+				ServerLog.d(TAG, "serving " + path + " as it is: " + e.getMessage());
+			}
+		}
+		synchronized (this) {
+			entries.put(path, new Entry(etag, view));
+			Iterator<Entry> it = entries.values().iterator();
+			while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		return (view);
+	}
+
+	/**
+	 * Forget the cached layouts.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		synchronized (this) {
+			report.put("entries", (long) entries.size());
+		}
+		report.put("hits", hits.get());
+		report.put("misses", misses.get());
+		report.put("created", created.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private static class Entry {
+
+		// the validator of the file the entry was created from
+		private String etag;
+
+		// the layout, or null if the file is served as it is
+		private FastStartView view;
+
+		public Entry(String etag, FastStartView view) {
+			this.etag = etag;
+			this.view = view;
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that implements a virtual faststart layout of an MP4 file whose moov box is behind the media data. The file is served as
+ * if the moov box had been moved in front of the mdat box, without rewriting the file: the boxes before the mdat box and the
+ * media data are sent from the file, the moov box from memory with its chunk offsets adjusted to the new layout. The layout has
+ * the same size as the file.
+ *
+ * @author Tuomas Tikka
+ */
+public class FastStartView {
+
+	// the moov box, with the chunk offsets pointing into the faststart layout
+	private ByteBuffer moov;
+
+	// the parts of the layout: where each part starts, and where it comes from in the file (-1 = the moov box)
+	private long[] starts;
+	private long[] sources;
+
+	// the size of the layout (and the file)
+	private long size;
+
+	private FastStartView() {
+	}
+
+	/**
+	 * Create the faststart layout of a file.
+	 *
+	 * @param mp4 The layout of the file, with the moov box behind the mdat box
+	 * @return The faststart layout
+	 * @throws IOException If the chunk offsets do not fit in the moov box after moving it
+	 */
+	public static FastStartView create(Mp4File mp4) throws IOException {
+		FastStartView view = new FastStartView();
+		ByteBuffer original = mp4.getMoov();
+		view.moov = ByteBuffer.allocate(original.remaining());
+		view.moov.put(original);
+		view.moov.flip();
+		for (Mp4Track track : mp4.getTracks()) {
+			// the entries follow the version, flags and entry count
+			int pos = Mp4File.boxContent(view.moov, track.getChunkOffsetBox()) + 8;
+			for (long offset : track.getChunkOffsets()) {
+				long moved = mp4.toFastStart(offset);
+				if (track.hasLargeOffsets()) {
+					view.moov.putLong(pos, moved);
+					pos += 8;
+				} else {
+					if (moved > 0xffffffffL) {
+						throw new IOException("chunk offset does not fit in 32 bits after moving the moov box");
+					}
+					view.moov.putInt(pos, (int) moved);
+					pos += 4;
+				}
+			}
+		}
+		long mdat = mp4.getMdatOffset();
+		long moovEnd = mp4.getMoovOffset() + mp4.getMoovSize();
+		view.size = mp4.getSize();
+		view.starts = new long[] { 0, mdat, mdat + mp4.getMoovSize(), moovEnd };
+		view.sources = new long[] { 0, -1, mdat, moovEnd };
+		return (view);
+	}
+
+	/**
+	 * Create a body sending a range of the layout.
+	 *
+	 * @param file The file
+	 * @param start The first byte to send
+	 * @param length The number of bytes to send
+	 * @param readAhead The read-ahead notified of the progress
+	 * @return The body
+	 * @throws IOException If the file could not be opened
+	 */
+	public ResponseBody createBody(CachedFile file, long start, long length, ReadAhead readAhead) throws IOException {
+		CompositeBody body = new CompositeBody();
+		long end = start + length;
+		try {
+			for (int i = 0; i < starts.length; i++) {
+				long partStart = starts[i];
+				long partEnd = i + 1 < starts.length ? starts[i + 1] : size;
+				long from = Math.max(start, partStart);
+				long until = Math.min(end, partEnd);
+				if (from >= until) {
+					continue;
+				}
+				if (sources[i] == -1) {
+					ByteBuffer part = moov.duplicate();
+					part.position((int) (from - partStart));
+					part.limit((int) (until - partStart));
+					body.add(new BufferBody(part));
+				} else {
+					body.add(new FileBody(file, sources[i] + from - partStart, until - from, readAhead));
+				}
+			}
+		} catch (IOException e) {
+			body.close();
+			throw e;
+		}
+		return (body);
+	}
+
+	/**
+	 * Return where a byte of the layout comes from in the file (e.g. for the read-ahead). Bytes of the moov box are mapped to
+	 * the start of the mdat box, the next byte read from the file.
+	 *
+	 * @param position The position in the layout
+	 * @return The position in the file
+	 */
+	public long toFilePosition(long position) {
+		for (int i = starts.length - 1; i >= 0; i--) {
+			if (position >= starts[i]) {
+				return (sources[i] == -1 ? sources[i + 1] : sources[i] + position - starts[i]);
+			}
+		}
+		return (position);
+	}
+
+	/**
+	 * Return the size of the moov box served from memory.
+	 *
+	 * @return The size in bytes
+	 */
+	public int getHeaderSize() {
+		return (moov.limit());
+	}
+
+}
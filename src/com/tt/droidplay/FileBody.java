@@ -0,0 +1,215 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Class that implements a response body backed by a region of a file. The data is moved with FileChannel.transferTo, so
+ * it is not copied through user space when the target is a socket channel. The channel is shared through the file cache.
+ *
+ * The region is walked in windows of a bounded size, so the memory used does not depend on the length of the region (a range
+ * of a 4K recording can be larger than 2 GB). If the channel cannot transfer directly (e.g. sendfile fails beyond 2 GB on some
+ * 32-bit kernels), the rest of the region is copied through a buffer of one window.
+ *
+ * @author Tuomas Tikka
+ */
+public class FileBody implements ResponseBody {
+
+	private static final String TAG = "FileBody";
+
+	// the largest part of the file moved by one transfer or copy (bytes)
+	private static volatile int window = 256 * 1024;
+
+	// the cached file
+	private CachedFile file;
+
+	// the shared file channel
+	private FileChannel channel;
+
+	// the current position in the file
+	private long position;
+
+	// the number of bytes left to read from the file
+	private long remaining;
+
+	// the total length of the body
+	private long length;
+
+	// the read-ahead notified of the progress, or null
+	private ReadAhead readAhead;
+
+	// the buffer the data is copied through, once the channel could not transfer directly
+	private ByteBuffer buffer;
+
+	/**
+	 * Initialize the body.
+	 *
+	 * @param file The cached file
+	 * @param start The first byte to send
+	 * @param length The number of bytes to send
+	 * @throws IOException If the file could not be opened
+	 */
+	public FileBody(CachedFile file, long start, long length) throws IOException {
+		this.file = file;
+		this.channel = file.acquire();
+		this.position = start;
+		this.remaining = length;
+		this.length = length;
+	}
+
+	/**
+	 * Initialize the body, keeping the read-ahead informed of the progress.
+	 *
+	 * @param file The cached file
+	 * @param start The first byte to send
+	 * @param length The number of bytes to send
+	 * @param readAhead The read-ahead
+	 * @throws IOException If the file could not be opened
+	 */
+	public FileBody(CachedFile file, long start, long length, ReadAhead readAhead) throws IOException {
+		this(file, start, length);
+		this.readAhead = readAhead;
+	}
+
+	@Override
+	public long getLength() {
+		return (length);
+	}
+
+	@Override
+	public long writeTo(WritableByteChannel target, long limit) throws IOException {
+		long written = 0;
+		while (!isComplete() && written < limit) {
+			long i;
+			if (buffer == null) {
+				i = transfer(target, Math.min(limit - written, window));
+			} else {
+				i = copy(target, limit - written);
+			}
+			if (i == 0) {
+				break;
+			}
+			written += i;
+		}
+		if (readAhead != null && written > 0) {
+			readAhead.onProgress(file, position);
+		}
+		return (written);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		if (this.buffer != null && this.buffer.hasRemaining()) {
+			// the data already copied out of the file comes first
+			int n = Math.min(buffer.remaining(), this.buffer.remaining());
+			int end = this.buffer.limit();
+			this.buffer.limit(this.buffer.position() + n);
+			buffer.put(this.buffer);
+			this.buffer.limit(end);
+			return (n);
+		}
+		int end = buffer.limit();
+		if (buffer.remaining() > remaining) {
+			buffer.limit(buffer.position() + (int) remaining);
+		}
+		int n = 0;
+		try {
+			while (buffer.hasRemaining()) {
+				int i = channel.read(buffer, position);
+				if (i <= 0) {
+					throw new IOException("unexpected end of file at position " + position);
+				}
+				position += i;
+				remaining -= i;
+				n += i;
+			}
+		} finally {
+			buffer.limit(end);
+		}
+		return (n);
+	}
+
+	@Override
+	public boolean isComplete() {
+		return (remaining == 0 && (buffer == null || !buffer.hasRemaining()));
+	}
+
+	@Override
+	public void close() {
+		if (channel != null) {
+			channel = null;
+			file.release();
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Set the largest part of a file moved by one transfer or copy. The window is read on every write, so bodies already being
+	 * sent use it from their next transfer (a body that has fallen back to copying keeps the size of its buffer).
+	 *
+	 * @param window The window (bytes)
+	 */
+	public static void setWindow(int window) {
+		FileBody.window = Math.max(4096, window);
+	}
+
+	public static int getWindow() {
+		return window;
+	}
+
+	//
+	// Private
+	//
+
+	private long transfer(WritableByteChannel target, long limit) throws IOException {
+		long i;
+		try {
+			// let the kernel move the data (sendfile) when the target is a socket channel
+			i = channel.transferTo(position, Math.min(remaining, limit), target);
+		} catch (IOException e) {
+			if (!target.isOpen()) {
+				throw e;
+			}
+			// copy the rest, if the target is broken the next write fails anyway
+			ServerLog.w(TAG, "transfer failed at position " + position + ", copying instead: " + e.getMessage());
+			buffer = ByteBuffer.allocateDirect(window);
+			buffer.flip();
+			return (copy(target, limit));
+		}
+		if (i == 0 && position >= channel.size()) {
+			throw new IOException("unexpected end of file at position " + position);
+		}
+		position += i;
+		remaining -= i;
+		return (i);
+	}
+
+	private long copy(WritableByteChannel target, long limit) throws IOException {
+		if (!buffer.hasRemaining()) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) {
+				buffer.limit((int) remaining);
+			}
+			int i = channel.read(buffer, position);
+			if (i <= 0) {
+				throw new IOException("unexpected end of file at position " + position);
+			}
+			position += i;
+			remaining -= i;
+			buffer.flip();
+		}
+		// the data read but not yet written stays in the buffer for the next call
+		int end = buffer.limit();
+		if (buffer.remaining() > limit) {
+			buffer.limit(buffer.position() + (int) limit);
+		}
+		try {
+			return (target.write(buffer));
+		} finally {
+			buffer.limit(end);
+		}
+	}
+
+}
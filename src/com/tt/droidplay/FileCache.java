@@ -0,0 +1,198 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that implements a server-wide cache of file metadata and open file channels, keyed by path. Receivers issue many range
+ * requests for the same file while seeking, and on FUSE-backed storage every stat and open is a slow system call. Entries are
+ * re-validated against the file system at most once per stat interval, evicted in LRU order when there are too many, and
+ * closed after they have been idle for a while.
+ *
+ * @author Tuomas Tikka
+ */
+public class FileCache implements ReportSource {
+
+	private static final String TAG = "FileCache";
+
+	// the maximum number of cached entries
+	private int maxEntries = 16;
+
+	// how long cached metadata is trusted before it is re-validated (milliseconds)
+	private volatile long statInterval = 2 * 1000;
+
+	// how long an unused entry is kept (milliseconds)
+	private long idleTimeout = 60 * 1000;
+
+	// the entries, in access order (least recently used first)
+	private LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+
+	// when the idle entries were last swept
+	private long lastSweep = 0;
+
+	// the number of lookups served from the cache, and the number that had to read the file system
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Initialize the cache.
+	 */
+	public FileCache() {
+	}
+
+	/**
+	 * Return the cached entry for a path, reading the metadata from the file system if the entry is missing or its metadata is
+	 * too old. Entries of files that have changed on disk are replaced. The file system is read without holding the lock of
+	 * the cache, so a slow stat only delays the requests for that file.
+	 *
+	 * @param path The absolute path of the file
+	 * @return The entry (check exists() and canRead() before use)
+	 */
+	public CachedFile get(String path) {
+		long now = System.currentTimeMillis();
+		CachedFile entry;
+		synchronized (this) {
+			sweep(now);
+			entry = entries.get(path);
+			if (entry != null && now - entry.getStatTime() < statInterval) {
+				hits.incrementAndGet();
+				entry.touch();
+				return (entry);
+			}
+		}
+		CachedFile fresh = (entry == null || entry.isModified() ? new CachedFile(new File(path)) : null);
+		synchronized (this) {
+			CachedFile current = entries.get(path);
+			if (current != null && current != entry) {
+				// another request published a newer entry in the meantime
+				hits.incrementAndGet();
+				entry = current;
+			} else if (fresh == null) {
+				// unchanged (if it was evicted in the meantime, it is used once more and closed after use)
+				hits.incrementAndGet();
+				entry.touchStat();
+			} else {
+				misses.incrementAndGet();
+				if (current != null) {
+					ServerLog.d(TAG, "file changed on disk: " + path);
+					entries.remove(path);
+					current.evict();
+				}
+				entry = fresh;
+				entries.put(path, entry);
+				trim();
+			}
+			entry.touch();
+			return (entry);
+		}
+	}
+
+	/**
+	 * Return the current entry for a file that has already been looked up (e.g. when it was published). While the metadata of
+	 * the entry is fresh and the entry is still cached, it is returned without taking the lock of the cache; otherwise the path
+	 * is looked up again.
+	 *
+	 * @param entry The entry from an earlier lookup
+	 * @return The current entry (check exists() and canRead() before use)
+	 */
+	public CachedFile get(CachedFile entry) {
+		if (!entry.isEvicted() && System.currentTimeMillis() - entry.getStatTime() < statInterval) {
+			hits.incrementAndGet();
+			entry.touch();
+			return (entry);
+		}
+		return (get(entry.getFile().getAbsolutePath()));
+	}
+
+	/**
+	 * Remove the entry for a path (e.g. when the file is known to have changed).
+	 *
+	 * @param path The absolute path of the file
+	 */
+	public synchronized void invalidate(String path) {
+		CachedFile entry = entries.remove(path);
+		if (entry != null) {
+			entry.evict();
+		}
+	}
+
+	/**
+	 * Remove all entries and close all channels that are not in use.
+	 */
+	public synchronized void clear() {
+		for (CachedFile entry : entries.values()) {
+			entry.evict();
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Return the number of cached entries.
+	 *
+	 * @return The number of entries
+	 */
+	public synchronized int size() {
+		return (entries.size());
+	}
+
+	@Override
+	public synchronized Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("entries", (long) entries.size());
+		report.put("maxEntries", (long) maxEntries);
+		report.put("hits", hits.get());
+		report.put("misses", misses.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private void trim() {
+		// evict least recently used entries, preferring those that are not in use
+		Iterator<Map.Entry<String, CachedFile>> i = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && i.hasNext()) {
+			CachedFile entry = i.next().getValue();
+			if (!entry.isInUse()) {
+				i.remove();
+				entry.evict();
+			}
+		}
+	}
+
+	private void sweep(long now) {
+		if (now - lastSweep < 1000) {
+			return;
+		}
+		lastSweep = now;
+		Iterator<Map.Entry<String, CachedFile>> i = entries.entrySet().iterator();
+		while (i.hasNext()) {
+			CachedFile entry = i.next().getValue();
+			if (!entry.isInUse() && now - entry.getLastAccess() >= idleTimeout) {
+				i.remove();
+				entry.evict();
+			}
+		}
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public void setStatInterval(long statInterval) {
+		this.statInterval = statInterval;
+	}
+
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+}
@@ -59,4 +59,23 @@ public class FileUtils {
 		return (file != null && isImage(file.getName()));
 	}
 	
+	/**
+	 * Return the content type of a file, based on its extension.
+	 * 
+	 * @param filename The filename
+	 * @return The content type (application/octet-stream if the extension is not known)
+	 */
+	public static String getContentType(String filename) {
+		String lc = filename == null ? "" : filename.toLowerCase();
+		if (lc.endsWith(".mp4")) {
+			return ("video/mp4");
+		} else if (lc.endsWith(".png")) {
+			return ("image/png");
+		} else if (lc.endsWith("jpg") || lc.endsWith("jpeg")) {
+			return ("image/jpeg");
+		} else {
+			return ("application/octet-stream");
+		}
+	}
+
 }
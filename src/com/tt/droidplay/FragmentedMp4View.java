@@ -0,0 +1,331 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that implements a virtual fragmented MP4 layout of an MP4 file, as used by HLS. The file is not rewritten: the
+ * initialization segment is a copy of the moov box with empty sample tables (and an mvex box), and each media segment is a moof
+ * box describing the samples of the segment, built from the sample tables, followed by an mdat box whose content is sent from
+ * the file. Segments are cut at keyframes of the video track, so each one can be decoded on its own.
+ *
+ * @author Tuomas Tikka
+ */
+public class FragmentedMp4View {
+
+	private static final int TRAK = Mp4File.TRAK;
+	private static final int MDIA = Mp4File.type("mdia");
+	private static final int MINF = Mp4File.type("minf");
+	private static final int STBL = Mp4File.type("stbl");
+	private static final int STSD = Mp4File.type("stsd");
+	private static final int MVEX = Mp4File.type("mvex");
+
+	// the flags of a keyframe and of any other sample in a trun box (sample_depends_on and sample_is_non_sync_sample)
+	private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+	private static final int OTHER_SAMPLE_FLAGS = 0x01010000;
+
+	// the trun box has a data offset, and a duration, size, flags and (optionally) composition offset per sample
+	private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+	private static final int TRUN_COMPOSITION_OFFSETS = 0x000800;
+
+	// the data offsets in the tfhd box are relative to the moof box
+	private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+	// the initialization segment
+	private ByteBuffer init;
+
+	// the tracks in the segments, the video track first
+	private Mp4Track[] tracks;
+
+	// the first sample of each segment in each track, followed by the number of samples of the track
+	private int[][] firstSamples;
+
+	// the start time of each segment and the end of the last one (in the timescale of the video track)
+	private long[] times;
+
+	// the timescale of the video track
+	private long timescale;
+
+	private FragmentedMp4View() {
+	}
+
+	/**
+	 * Create the fragmented layout of a file.
+	 *
+	 * @param mp4 The layout of the file
+	 * @param targetDuration The shortest duration of a segment (seconds), segments are cut at the first keyframe after this
+	 * @return The fragmented layout
+	 * @throws IOException If the file has no video samples, or is already fragmented
+	 */
+	public static FragmentedMp4View create(Mp4File mp4, double targetDuration) throws IOException {
+		ByteBuffer moov = mp4.getMoov();
+		if (Mp4File.findBox(moov, Mp4File.boxContent(moov, 0), moov.limit(), MVEX) != -1) {
+			// the samples are in movie fragments, the sample tables are empty
+			throw new IOException("already fragmented");
+		}
+		Mp4Track video = mp4.getTrack("vide");
+		if (video == null || video.getSampleCount() == 0) {
+			throw new IOException("no video samples");
+		}
+		Mp4Track audio = mp4.getTrack("soun");
+		if (audio != null && audio.getSampleCount() == 0) {
+			audio = null;
+		}
+		FragmentedMp4View view = new FragmentedMp4View();
+		view.tracks = audio == null ? new Mp4Track[] { video } : new Mp4Track[] { video, audio };
+		view.timescale = video.getTimescale();
+
+		// cut at the first keyframe at least the target duration after the start of the segment
+		long target = (long) (targetDuration * video.getTimescale());
+		List<long[]> cuts = new ArrayList<long[]>();
+		cuts.add(new long[] { 0, 0 });
+		for (long[] keyframe : video.getKeyframes()) {
+			if (keyframe[0] - cuts.get(cuts.size() - 1)[0] >= target) {
+				cuts.add(new long[] { keyframe[0], keyframe[2] });
+			}
+		}
+		int n = cuts.size();
+		view.times = new long[n + 1];
+		view.firstSamples = new int[view.tracks.length][n + 1];
+		for (int i = 0; i < n; i++) {
+			long time = cuts.get(i)[0];
+			view.times[i] = time;
+			view.firstSamples[0][i] = (int) cuts.get(i)[1];
+			for (int t = 1; t < view.tracks.length; t++) {
+				// the other tracks are cut at the same time
+				Mp4Track track = view.tracks[t];
+				view.firstSamples[t][i] = i == 0 ? 0 : track.findSample(time * track.getTimescale() / view.timescale);
+			}
+		}
+		view.times[n] = Math.max(video.getDuration(), view.times[n - 1]);
+		for (int t = 0; t < view.tracks.length; t++) {
+			view.firstSamples[t][n] = view.tracks[t].getSampleCount();
+		}
+		view.init = createInit(mp4, view.tracks);
+		return (view);
+	}
+
+	/**
+	 * Create a body sending the initialization segment.
+	 *
+	 * @return The body
+	 */
+	public ResponseBody createInitBody() {
+		return (new BufferBody(init.duplicate()));
+	}
+
+	/**
+	 * Create a body sending a media segment.
+	 *
+	 * @param file The file
+	 * @param segment The segment number
+	 * @return The body
+	 * @throws IOException If the file could not be opened
+	 */
+	public ResponseBody createSegmentBody(CachedFile file, int segment) throws IOException {
+		List<List<Mp4Track.Sample>> samples = new ArrayList<List<Mp4Track.Sample>>();
+		int moofSize = 8 + 16;
+		long dataSize = 0;
+		for (int t = 0; t < tracks.length; t++) {
+			int first = firstSamples[t][segment];
+			List<Mp4Track.Sample> run = tracks[t].getSamples(first, firstSamples[t][segment + 1] - first);
+			samples.add(run);
+			if (!run.isEmpty()) {
+				moofSize += getTrafSize(tracks[t], run.size());
+				for (Mp4Track.Sample sample : run) {
+					dataSize += sample.getSize();
+				}
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(moofSize + 8);
+		header.putInt(moofSize).putInt(type("moof"));
+		header.putInt(16).putInt(type("mfhd")).putInt(0).putInt(segment + 1);
+		// the data of the tracks follows the mdat header in the order of the tracks
+		long dataOffset = moofSize + 8;
+		for (int t = 0; t < tracks.length; t++) {
+			List<Mp4Track.Sample> run = samples.get(t);
+			if (!run.isEmpty()) {
+				putTraf(header, tracks[t], run, dataOffset);
+				for (Mp4Track.Sample sample : run) {
+					dataOffset += sample.getSize();
+				}
+			}
+		}
+		if (dataSize + 8 > 0xffffffffL) {
+			throw new IOException("segment too large: " + dataSize);
+		}
+		header.putInt((int) (dataSize + 8)).putInt(Mp4File.MDAT);
+		header.flip();
+		CompositeBody body = new CompositeBody();
+		body.add(new BufferBody(header));
+		try {
+			// samples stored one after another in the file are sent as one part
+			for (List<Mp4Track.Sample> run : samples) {
+				long start = -1;
+				long end = -1;
+				for (Mp4Track.Sample sample : run) {
+					if (sample.getOffset() != end) {
+						if (start != -1) {
+							body.add(new FileBody(file, start, end - start));
+						}
+						start = sample.getOffset();
+						end = start;
+					}
+					end += sample.getSize();
+				}
+				if (start != -1) {
+					body.add(new FileBody(file, start, end - start));
+				}
+			}
+		} catch (IOException e) {
+			body.close();
+			throw e;
+		}
+		return (body);
+	}
+
+	/**
+	 * Return the number of media segments.
+	 *
+	 * @return The number of segments
+	 */
+	public int getSegmentCount() {
+		return (times.length - 1);
+	}
+
+	/**
+	 * Return the duration of a media segment.
+	 *
+	 * @param segment The segment number
+	 * @return The duration in seconds
+	 */
+	public double getDuration(int segment) {
+		return ((double) (times[segment + 1] - times[segment]) / timescale);
+	}
+
+	/**
+	 * Return the size of the initialization segment.
+	 *
+	 * @return The size in bytes
+	 */
+	public int getInitSize() {
+		return (init.limit());
+	}
+
+	//
+	// Private
+	//
+
+	private static ByteBuffer createInit(Mp4File mp4, Mp4Track[] tracks) throws IOException {
+		ByteBuffer moov = mp4.getMoov();
+		ByteBuffer out = ByteBuffer.allocate(moov.limit() + 64 + tracks.length * 32);
+		out.putInt(28).putInt(Mp4File.FTYP).putInt(type("iso6")).putInt(0);
+		out.putInt(type("iso6")).putInt(type("isom")).putInt(type("mp41"));
+		int start = out.position();
+		out.putInt(0).putInt(Mp4File.MOOV);
+		int pos = Mp4File.boxContent(moov, 0);
+		while (pos + 8 <= moov.limit()) {
+			int end = Mp4File.boxEnd(moov, pos);
+			if (end == -1) {
+				throw new IOException("invalid box in moov at " + pos);
+			}
+			int type = moov.getInt(pos + 4);
+			if (type == TRAK) {
+				// only the tracks sent in the segments are declared
+				for (Mp4Track track : tracks) {
+					if (track.getTrak() == pos) {
+						copyTrak(moov, pos, out);
+					}
+				}
+			} else if (type != MVEX) {
+				copy(moov, pos, end, out);
+			}
+			pos = end;
+		}
+		// the samples are in the movie fragments, with no defaults
+		out.putInt(8 + tracks.length * 32).putInt(MVEX);
+		for (Mp4Track track : tracks) {
+			out.putInt(32).putInt(type("trex")).putInt(0);
+			out.putInt(track.getTrackId()).putInt(1).putInt(0).putInt(0).putInt(0);
+		}
+		out.putInt(start, out.position() - start);
+		out.flip();
+		return (out);
+	}
+
+	private static void copyTrak(ByteBuffer moov, int box, ByteBuffer out) throws IOException {
+		int type = moov.getInt(box + 4);
+		int start = out.position();
+		out.putInt(0).putInt(type);
+		if (type == STBL) {
+			// the sample descriptions stay, the sample tables are empty
+			int stsd = Mp4File.findBox(moov, Mp4File.boxContent(moov, box), Mp4File.boxEnd(moov, box), STSD);
+			if (stsd == -1) {
+				throw new IOException("missing box: stsd");
+			}
+			copy(moov, stsd, Mp4File.boxEnd(moov, stsd), out);
+			out.putInt(16).putInt(type("stts")).putInt(0).putInt(0);
+			out.putInt(16).putInt(type("stsc")).putInt(0).putInt(0);
+			out.putInt(20).putInt(type("stsz")).putInt(0).putInt(0).putInt(0);
+			out.putInt(16).putInt(type("stco")).putInt(0).putInt(0);
+		} else {
+			int pos = Mp4File.boxContent(moov, box);
+			int end = Mp4File.boxEnd(moov, box);
+			while (pos + 8 <= end) {
+				int next = Mp4File.boxEnd(moov, pos);
+				if (next == -1 || next > end) {
+					throw new IOException("invalid box in moov at " + pos);
+				}
+				int child = moov.getInt(pos + 4);
+				if (child == MDIA || child == MINF || child == STBL) {
+					copyTrak(moov, pos, out);
+				} else {
+					copy(moov, pos, next, out);
+				}
+				pos = next;
+			}
+		}
+		out.putInt(start, out.position() - start);
+	}
+
+	private static void copy(ByteBuffer moov, int start, int end, ByteBuffer out) {
+		ByteBuffer part = moov.duplicate();
+		part.limit(end);
+		part.position(start);
+		out.put(part);
+	}
+
+	private static int getTrafSize(Mp4Track track, int samples) {
+		int entry = track.hasCompositionOffsets() ? 16 : 12;
+		// traf header, tfhd, tfdt (version 1) and trun
+		return (8 + 16 + 20 + 20 + samples * entry);
+	}
+
+	private static void putTraf(ByteBuffer out, Mp4Track track, List<Mp4Track.Sample> samples, long dataOffset) throws IOException {
+		if (dataOffset > Integer.MAX_VALUE) {
+			throw new IOException("segment too large: " + dataOffset);
+		}
+		boolean composition = track.hasCompositionOffsets();
+		out.putInt(getTrafSize(track, samples.size())).putInt(type("traf"));
+		out.putInt(16).putInt(type("tfhd")).putInt(TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.getTrackId());
+		out.putInt(20).putInt(type("tfdt")).putInt(1 << 24).putLong(samples.get(0).getTime());
+		int entry = composition ? 16 : 12;
+		int flags = TRUN_FLAGS | (composition ? TRUN_COMPOSITION_OFFSETS : 0);
+		out.putInt(20 + samples.size() * entry).putInt(type("trun")).putInt((track.getCompositionVersion() << 24) | flags);
+		out.putInt(samples.size()).putInt((int) dataOffset);
+		for (Mp4Track.Sample sample : samples) {
+			out.putInt(sample.getDuration()).putInt(sample.getSize());
+			out.putInt(sample.isSync() ? SYNC_SAMPLE_FLAGS : OTHER_SAMPLE_FLAGS);
+			if (composition) {
+				out.putInt(sample.getCompositionOffset());
+			}
+		}
+	}
+
+	private static int type(String name) {
+		return (Mp4File.type(name));
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.FileObserver;
+
+/**
+ * Class that follows a file while it is being written (e.g. a screen or camera recording in progress). The file system notifies
+ * the object of every write, so readers waiting for more data are woken when it arrives instead of polling the file. The file is
+ * finished when the writer closes it or deletes it, or when it has not grown for the idle timeout (the writer may have closed it
+ * before it was watched).
+ *
+ * @author Tuomas Tikka
+ */
+public class GrowingFile {
+
+	private static final String TAG = "GrowingFile";
+
+	// the file
+	private File file;
+
+	// how long the file may stay the same size before it is considered finished (milliseconds)
+	private long idleTimeout;
+
+	// the observer notified of writes to the file
+	private FileObserver observer;
+
+	// the size of the file at the last notification
+	private volatile long length;
+
+	// when the file last grew
+	private volatile long grownAt;
+
+	// has the writer closed (or deleted) the file?
+	private volatile boolean closed = false;
+
+	// the number of notifications so far, so waiters can tell if something changed after they looked
+	private long version = 0;
+
+	// the listeners called once on the next change (non-blocking writers)
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+
+	/**
+	 * Initialize the object and start watching the file.
+	 *
+	 * @param file The file
+	 * @param idleTimeout How long the file may stay the same size before it is considered finished (milliseconds)
+	 */
+	public GrowingFile(File file, long idleTimeout) {
+		this.file = file;
+		this.idleTimeout = idleTimeout;
+		this.length = file.length();
+		// a file that is not written any more is finished one idle timeout after its last write, not after the first request
+		this.grownAt = file.lastModified();
+		this.observer = new FileObserver(file.getAbsolutePath(), FileObserver.MODIFY | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF) {
+			@Override
+			public void onEvent(int event, String path) {
+				onFileEvent(event);
+			}
+		};
+		observer.startWatching();
+	}
+
+	/**
+	 * Stop watching the file. Waiting readers are woken and see the file as finished.
+	 */
+	public void stop() {
+		observer.stopWatching();
+		onFileEvent(FileObserver.CLOSE_WRITE);
+	}
+
+	/**
+	 * Has the file been completely written?
+	 *
+	 * @return True if the writer closed the file, or it has not grown for the idle timeout
+	 */
+	public boolean isFinished() {
+		return (closed || System.currentTimeMillis() - grownAt >= idleTimeout);
+	}
+
+	/**
+	 * Return the number of changes seen so far. Read it before checking the length, then wait for a different version.
+	 *
+	 * @return The version
+	 */
+	public synchronized long getVersion() {
+		return (version);
+	}
+
+	/**
+	 * Wait until the file changes (thread per connection mode).
+	 *
+	 * @param seen The version seen by the caller
+	 * @param timeout The longest time to wait (milliseconds)
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public synchronized void await(long seen, long timeout) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeout;
+		long now;
+		while (version == seen && !closed && (now = System.currentTimeMillis()) < until) {
+			wait(until - now);
+		}
+	}
+
+	/**
+	 * Ask to be called once when the file changes (non-blocking mode). The listener is called on the thread of the observer, or
+	 * right away if the file has already changed.
+	 *
+	 * @param seen The version seen by the caller
+	 * @param listener The listener
+	 */
+	public void notifyOnChange(long seen, Runnable listener) {
+		synchronized (this) {
+			if (version == seen && !closed) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	//
+	// Private
+	//
+
+	private void onFileEvent(int event) {
+		List<Runnable> notify;
+		synchronized (this) {
+			if ((event & FileObserver.MODIFY) != 0) {
+				long l = file.length();
+				if (l > length) {
+					length = l;
+					grownAt = System.currentTimeMillis();
+				}
+			} else {
+				if (!closed && ServerLog.isDebug()) {
+					ServerLog.d(TAG, "writer finished " + file.getName() + " at " + file.length() + " bytes");
+				}
+				length = Math.max(length, file.length());
+				closed = true;
+			}
+			version++;
+			notifyAll();
+			if (listeners.isEmpty()) {
+				return;
+			}
+			notify = listeners;
+			listeners = new ArrayList<Runnable>();
+		}
+		for (Runnable listener : notify) {
+			listener.run();
+		}
+	}
+
+	//
+	// Getters
+	//
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+}
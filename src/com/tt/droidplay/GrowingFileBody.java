@@ -0,0 +1,243 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Class that implements a response body following a file while it is being written. Whatever has been written is sent, then the
+ * body waits for the next write, until the file is finished. The length is not known in advance, so the body is sent with the
+ * chunked transfer coding (one chunk per window of new data), or as is until the connection closes for HTTP/1.0 clients.
+ *
+ * The body never blocks: when it has caught up with the writer, writeTo() returns and isWaiting() tells the writer to wait for
+ * the file with await() or notifyOnChange().
+ *
+ * @author Tuomas Tikka
+ */
+public class GrowingFileBody implements ResponseBody {
+
+	private static final String TAG = "GrowingFileBody";
+
+	// room for the end of the previous chunk and the size line of the next one (bytes)
+	private static final int FRAME_SIZE = 32;
+
+	// the cached file
+	private CachedFile file;
+
+	// the shared file channel
+	private FileChannel channel;
+
+	// the file being written
+	private GrowingFile growing;
+
+	// the tracker the growing file is released to
+	private GrowingFileTracker tracker;
+
+	// is the body sent with the chunked transfer coding?
+	private boolean chunked;
+
+	// the current position in the file
+	private long position;
+
+	// the number of bytes left in the current chunk
+	private long chunkRemaining = 0;
+
+	// the framing of the chunks not yet written (ready to be read)
+	private ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+
+	// has the end of the body been framed?
+	private boolean ending = false;
+
+	// did the last write stop because all the data written so far has been sent?
+	private boolean waiting = false;
+
+	// the version of the growing file when the body caught up with it
+	private long seen;
+
+	/**
+	 * Initialize the body.
+	 *
+	 * @param file The cached file
+	 * @param growing The file being written
+	 * @param tracker The tracker the growing file is released to when the body is closed
+	 * @param start The first byte to send
+	 * @param chunked Should the body be sent with the chunked transfer coding?
+	 * @throws IOException If the file could not be opened
+	 */
+	public GrowingFileBody(CachedFile file, GrowingFile growing, GrowingFileTracker tracker, long start, boolean chunked) throws IOException {
+		this.file = file;
+		this.channel = file.acquire();
+		this.growing = growing;
+		this.tracker = tracker;
+		this.position = start;
+		this.chunked = chunked;
+		frame.flip();
+	}
+
+	@Override
+	public long getLength() {
+		return (-1);
+	}
+
+	@Override
+	public long writeTo(WritableByteChannel target, long limit) throws IOException {
+		long written = 0;
+		waiting = false;
+		while (!isComplete() && written < limit) {
+			long i;
+			if (frame.hasRemaining()) {
+				i = writeFrame(target, limit - written);
+			} else if (chunkRemaining > 0) {
+				i = channel.transferTo(position, Math.min(chunkRemaining, Math.min(limit - written, FileBody.getWindow())), target);
+				position += i;
+				chunkRemaining -= i;
+				if (chunkRemaining == 0 && chunked) {
+					putFrame("\r\n");
+				}
+			} else if (!nextChunk()) {
+				waiting = true;
+				break;
+			} else {
+				continue;
+			}
+			if (i == 0) {
+				break;
+			}
+			written += i;
+		}
+		return (written);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		if (frame.hasRemaining() || chunkRemaining > 0 || ending) {
+			return (0);
+		}
+		// one complete chunk: the size line, the data and the line break after it
+		long available = growing.getLength() - position;
+		int n = (int) Math.min(available, buffer.remaining() - (chunked ? FRAME_SIZE : 0));
+		if (n <= 0) {
+			return (0);
+		}
+		int start = buffer.position();
+		if (chunked) {
+			putAscii(buffer, Integer.toHexString(n) + "\r\n");
+		}
+		int end = buffer.limit();
+		buffer.limit(buffer.position() + n);
+		try {
+			while (buffer.hasRemaining()) {
+				int i = channel.read(buffer, position);
+				if (i <= 0) {
+					throw new IOException("unexpected end of file at position " + position);
+				}
+				position += i;
+			}
+		} finally {
+			buffer.limit(end);
+		}
+		if (chunked) {
+			putAscii(buffer, "\r\n");
+		}
+		return (buffer.position() - start);
+	}
+
+	@Override
+	public boolean isComplete() {
+		return (ending && !frame.hasRemaining());
+	}
+
+	@Override
+	public void close() {
+		if (channel != null) {
+			channel = null;
+			file.release();
+			tracker.release(growing);
+		}
+	}
+
+	/**
+	 * Did the last write stop because everything written to the file so far has been sent?
+	 *
+	 * @return True if the writer should wait for the file to change
+	 */
+	public boolean isWaiting() {
+		return (waiting);
+	}
+
+	/**
+	 * Wait until the file changes (thread per connection mode).
+	 *
+	 * @param timeout The longest time to wait (milliseconds), after which the writer should try again
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public void await(long timeout) throws InterruptedException {
+		tracker.onWait();
+		growing.await(seen, timeout);
+	}
+
+	/**
+	 * Ask to be called once when the file changes (non-blocking mode).
+	 *
+	 * @param listener The listener, called on the thread of the file observer
+	 */
+	public void notifyOnChange(Runnable listener) {
+		tracker.onWait();
+		growing.notifyOnChange(seen, listener);
+	}
+
+	//
+	// Private
+	//
+
+	private boolean nextChunk() {
+		seen = growing.getVersion();
+		// check for the end first, the data written before the end is then already visible
+		boolean finished = growing.isFinished();
+		long available = growing.getLength() - position;
+		if (available > 0) {
+			chunkRemaining = Math.min(available, FileBody.getWindow());
+			if (chunked) {
+				putFrame(Long.toHexString(chunkRemaining) + "\r\n");
+			}
+			return (true);
+		}
+		if (finished) {
+			if (chunked) {
+				putFrame("0\r\n\r\n");
+			}
+			ending = true;
+			if (ServerLog.isDebug()) {
+				ServerLog.d(TAG, "end of " + growing.getFile().getName() + " at " + position + " bytes");
+			}
+			return (true);
+		}
+		return (false);
+	}
+
+	private void putFrame(String s) {
+		frame.compact();
+		putAscii(frame, s);
+		frame.flip();
+	}
+
+	private long writeFrame(WritableByteChannel target, long limit) throws IOException {
+		int end = frame.limit();
+		if (frame.remaining() > limit) {
+			frame.limit(frame.position() + (int) limit);
+		}
+		try {
+			return (target.write(frame));
+		} finally {
+			frame.limit(end);
+		}
+	}
+
+	private static void putAscii(ByteBuffer buffer, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			buffer.put((byte) s.charAt(i));
+		}
+	}
+
+}
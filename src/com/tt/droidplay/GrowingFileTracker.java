@@ -0,0 +1,154 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that tells which published files are still being written, and shares one GrowingFile per file between the streams
+ * following it. A file counts as being written when it was modified within the live window before the request; it is watched
+ * while at least one stream follows it.
+ *
+ * @author Tuomas Tikka
+ */
+public class GrowingFileTracker implements ReportSource {
+
+	private static final String TAG = "GrowingFileTracker";
+
+	// a file modified this recently is considered to be still written (milliseconds)
+	private volatile long liveWindow = 3 * 1000;
+
+	// how long a followed file may stay the same size before its streams end (milliseconds)
+	private volatile long idleTimeout = 5 * 1000;
+
+	// the files being followed, by path
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	// the number of streams started on growing files, and the number of times a stream had to wait for data
+	private AtomicLong streams = new AtomicLong();
+	private AtomicLong waits = new AtomicLong();
+
+	/**
+	 * Start following a file if it is being written.
+	 *
+	 * @param file The file
+	 * @return The growing file (release it when done), or null if the file is complete
+	 */
+	public GrowingFile acquire(CachedFile file) {
+		String path = file.getFile().getAbsolutePath();
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && !entry.file.isFinished()) {
+				entry.references++;
+				streams.incrementAndGet();
+				return (entry.file);
+			}
+		}
+		// the cached metadata may be older than the last write, ask the file system
+		File f = file.getFile();
+		if (System.currentTimeMillis() - f.lastModified() > liveWindow) {
+			return (null);
+		}
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.file.isFinished()) {
+				// the writer is done, the file is served like any other
+				return (null);
+			}
+			if (entry == null) {
+				entry = new Entry(new GrowingFile(f, idleTimeout));
+				entries.put(path, entry);
+				ServerLog.i(TAG, "following " + path + " while it is being written (" + entry.file.getLength() + " bytes so far)");
+			}
+			entry.references++;
+			streams.incrementAndGet();
+			return (entry.file);
+		}
+	}
+
+	/**
+	 * Stop following a file for one stream. The file is no longer watched when the last stream is done with it.
+	 *
+	 * @param file The growing file
+	 */
+	public synchronized void release(GrowingFile file) {
+		String path = file.getFile().getAbsolutePath();
+		Entry entry = entries.get(path);
+		if (entry == null || entry.file != file) {
+			return;
+		}
+		if (--entry.references <= 0) {
+			entries.remove(path);
+			file.stop();
+		}
+	}
+
+	/**
+	 * Count a stream waiting for more data to be written.
+	 */
+	public void onWait() {
+		waits.incrementAndGet();
+	}
+
+	/**
+	 * Stop following all files. The streams following them end with the data written so far.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			entry.file.stop();
+		}
+		entries.clear();
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		synchronized (this) {
+			report.put("files", (long) entries.size());
+		}
+		report.put("streams", streams.get());
+		report.put("waits", waits.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private static class Entry {
+
+		// the file being followed
+		private GrowingFile file;
+
+		// the number of streams following it
+		private int references = 0;
+
+		public Entry(GrowingFile file) {
+			this.file = file;
+		}
+
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public void setLiveWindow(long liveWindow) {
+		this.liveWindow = Math.max(0, liveWindow);
+	}
+
+	public long getLiveWindow() {
+		return liveWindow;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(1000, idleTimeout);
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+}
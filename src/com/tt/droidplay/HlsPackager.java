@@ -0,0 +1,314 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that packages published MP4 files as HLS on the fly, with fragmented MP4 segments (see FragmentedMp4View): the playlist
+ * of a file lists an initialization segment and one media segment per group of pictures, cut at keyframes taken from the sample
+ * table of the video track. The segments are built from the sample tables and the media data of the file, which is not
+ * rewritten. A receiver can start playing the first segment without probing the file, and seeks by requesting the segment
+ * containing the position.
+ *
+ * The layout of a file is computed once on a background thread (started with prepare() before the playlist is requested) and
+ * cached until the file changes. A file that cannot be packaged is remembered as such, so it is not parsed again.
+ *
+ * @author Tuomas Tikka
+ */
+public class HlsPackager implements ReportSource {
+
+	private static final String TAG = "HlsPackager";
+
+	/**
+	 * The suffix added to the uri of a published file to request its playlist.
+	 */
+	public static final String PLAYLIST_SUFFIX = ".m3u8";
+
+	/**
+	 * The suffix added to the uri of a published file to request its initialization segment.
+	 */
+	public static final String INIT_SUFFIX = ".init.mp4";
+
+	/**
+	 * The suffix of the uri of a media segment, which is the uri of the published file, a dot and the segment number.
+	 */
+	public static final String SEGMENT_SUFFIX = ".m4s";
+
+	// the maximum number of cached segment indexes
+	private static final int MAX_ENTRIES = 8;
+
+	// the longest a request waits for the index of a file being built (milliseconds)
+	private static final long INDEX_TIMEOUT = 10 * 1000;
+
+	// the shortest duration of a segment (seconds), segments are cut at the first keyframe after this
+	private volatile double targetDuration = 6.0;
+
+	// the segment indexes, by path in access order (least recently used first)
+	private LinkedHashMap<String, SegmentIndex> indexes = new LinkedHashMap<String, SegmentIndex>(16, 0.75f, true);
+
+	// the indexes being built, by path
+	private Map<String, Future<SegmentIndex>> building = new HashMap<String, Future<SegmentIndex>>();
+
+	// the background thread building the indexes, with a short queue
+	private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_ENTRIES));
+
+	// the number of requests served from a cached index, indexes built and failed
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	// the time spent building the last index (milliseconds)
+	private volatile long lastIndexMillis;
+
+	/**
+	 * Initialize the packager.
+	 */
+	public HlsPackager() {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Build the index of a file, so the playlist and the segments can be served without parsing the file when they are
+	 * requested. The index is built on the background thread, the caller waits for it.
+	 *
+	 * @param file The file
+	 * @return Can the file be packaged? If not, it should be played as it is
+	 */
+	public boolean prepare(CachedFile file) {
+		try {
+			getIndex(file);
+			return (true);
+		} catch (IOException e) {
+			ServerLog.w(TAG, "cannot package " + file.getFile().getName() + ": " + e.getMessage());
+			return (false);
+		}
+	}
+
+	/**
+	 * Create the playlist of a published file.
+	 *
+	 * @param file The file
+	 * @param media The published file, whose uri is used for the segments
+	 * @return The playlist
+	 * @throws IOException If the file is not an MP4 file that can be segmented
+	 */
+	public String getPlaylist(CachedFile file, MediaEntry media) throws IOException {
+		FragmentedMp4View view = getIndex(file).view;
+		// segment uris are relative to the playlist, which is served next to the file
+		String uri = media.getToken();
+		int n = view.getSegmentCount();
+		int maxDuration = 1;
+		for (int i = 0; i < n; i++) {
+			maxDuration = Math.max(maxDuration, (int) Math.ceil(view.getDuration(i)));
+		}
+		StringBuilder sb = new StringBuilder(128 + n * 64);
+		sb.append("#EXTM3U\n");
+		sb.append("#EXT-X-VERSION:7\n");
+		sb.append("#EXT-X-TARGETDURATION:").append(maxDuration).append("\n");
+		sb.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+		sb.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+		// every segment starts with a keyframe
+		sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+		sb.append("#EXT-X-MAP:URI=\"").append(uri).append(INIT_SUFFIX).append("\"\n");
+		for (int i = 0; i < n; i++) {
+			sb.append("#EXTINF:").append(String.format(Locale.US, "%.3f", view.getDuration(i))).append(",\n");
+			sb.append(uri).append(".").append(i).append(SEGMENT_SUFFIX).append("\n");
+		}
+		sb.append("#EXT-X-ENDLIST\n");
+		return (sb.toString());
+	}
+
+	/**
+	 * Create the body of the initialization segment of a file.
+	 *
+	 * @param file The file
+	 * @return The body
+	 * @throws IOException If the file is not an MP4 file that can be segmented
+	 */
+	public ResponseBody createInitBody(CachedFile file) throws IOException {
+		return (getIndex(file).view.createInitBody());
+	}
+
+	/**
+	 * Create the body of a media segment of a file.
+	 *
+	 * @param file The file
+	 * @param segment The segment number
+	 * @return The body, or null if there is no such segment
+	 * @throws IOException If the file is not an MP4 file that can be segmented, or could not be opened
+	 */
+	public ResponseBody createSegmentBody(CachedFile file, int segment) throws IOException {
+		FragmentedMp4View view = getIndex(file).view;
+		if (segment < 0 || segment >= view.getSegmentCount()) {
+			return (null);
+		}
+		return (view.createSegmentBody(file, segment));
+	}
+
+	/**
+	 * Forget the cached indexes.
+	 */
+	public synchronized void clear() {
+		indexes.clear();
+		for (Future<SegmentIndex> future : building.values()) {
+			future.cancel(false);
+		}
+		building.clear();
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		synchronized (this) {
+			report.put("indexes", (long) indexes.size());
+		}
+		report.put("hits", hits.get());
+		report.put("misses", misses.get());
+		report.put("failures", failures.get());
+		report.put("lastIndexMillis", lastIndexMillis);
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private SegmentIndex getIndex(CachedFile file) throws IOException {
+		String path = file.getFile().getAbsolutePath();
+		String etag = file.getETag();
+		Future<SegmentIndex> future;
+		synchronized (this) {
+			SegmentIndex index = getCached(path, etag);
+			if (index != null) {
+				hits.incrementAndGet();
+				if (index.view == null) {
+					throw new IOException(index.error);
+				}
+				return (index);
+			}
+			future = startIndex(file, path, etag);
+		}
+		// the index is built on the background thread, the request only waits for it
+		try {
+			return (future.get(INDEX_TIMEOUT, TimeUnit.MILLISECONDS));
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+		} catch (TimeoutException e) {
+			throw new IOException("index of " + file.getFile().getName() + " not ready in " + INDEX_TIMEOUT + " ms");
+		} catch (CancellationException e) {
+			throw new IOException("index of " + file.getFile().getName() + " cancelled");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		}
+	}
+
+	private SegmentIndex getCached(String path, String etag) {
+		SegmentIndex index = indexes.get(path);
+		return (index != null && index.etag.equals(etag) ? index : null);
+	}
+
+	private Future<SegmentIndex> startIndex(final CachedFile file, final String path, final String etag) throws IOException {
+		// called with the lock held: a file is indexed once, whoever asks first
+		Future<SegmentIndex> future = building.get(path);
+		if (future != null) {
+			return (future);
+		}
+		misses.incrementAndGet();
+		try {
+			future = executor.submit(new Callable<SegmentIndex>() {
+				@Override
+				public SegmentIndex call() throws IOException {
+					try {
+						return (buildIndex(file, path, etag));
+					} finally {
+						synchronized (HlsPackager.this) {
+							building.remove(path);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("too many files waiting to be indexed");
+		}
+		building.put(path, future);
+		return (future);
+	}
+
+	private SegmentIndex buildIndex(CachedFile file, String path, String etag) throws IOException {
+		long t = System.currentTimeMillis();
+		SegmentIndex index = new SegmentIndex();
+		index.etag = etag;
+		try {
+			Mp4File mp4;
+			FileChannel channel = file.acquire();
+			try {
+				mp4 = Mp4File.read(channel, file.length());
+			} finally {
+				file.release();
+			}
+			index.view = FragmentedMp4View.create(mp4, targetDuration);
+		} catch (IOException e) {
+			// remembered until the file changes, the next requests fail without parsing it again
+			failures.incrementAndGet();
+			index.error = e.getMessage() == null ? e.toString() : e.getMessage();
+		}
+		lastIndexMillis = System.currentTimeMillis() - t;
+		if (index.view != null && ServerLog.isDebug()) {
+			ServerLog.d(TAG, "indexed " + path + ": " + index.view.getSegmentCount() + " segments in " + lastIndexMillis + " ms");
+		}
+		synchronized (this) {
+			indexes.put(path, index);
+			Iterator<SegmentIndex> it = indexes.values().iterator();
+			while (indexes.size() > MAX_ENTRIES && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		if (index.view == null) {
+			throw new IOException(index.error);
+		}
+		return (index);
+	}
+
+	private static class SegmentIndex {
+
+		// the validator of the file the index was built from
+		private String etag;
+
+		// the fragmented layout of the file, or null if it cannot be packaged
+		private FragmentedMp4View view;
+
+		// why the file cannot be packaged
+		private String error;
+
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public void setTargetDuration(double targetDuration) {
+		this.targetDuration = Math.max(1.0, targetDuration);
+	}
+
+	public double getTargetDuration() {
+		return targetDuration;
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.tt.droidplay;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps the content of small, frequently requested files (images, short clips) in memory, so re-casting a photo or a
+ * receiver fetching a file again after reconnecting does not go back to storage. The content is held in direct buffers, which
+ * are written to the socket as they are, without being copied. The cache is bounded by the total size of the content (not the
+ * number of files) and evicts the least recently used files first. An entry is valid as long as the entity tag of the file is
+ * the same.
+ *
+ * @author Tuomas Tikka
+ */
+public class HotCache implements ReportSource {
+
+	private static final String TAG = "HotCache";
+
+	// the memory used for the content of all files (bytes, 0 = the cache is off)
+	private long budget = 16 * 1024 * 1024;
+
+	// the largest file kept (bytes)
+	private long maxFileSize = 2 * 1024 * 1024;
+
+	// the cached content, by path in access order (least recently used first)
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// the total size of the cached content (bytes)
+	private long size = 0;
+
+	// the number of requests served from memory, the number that had to read the file, and the entries evicted
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Return the content of a file, reading it into the cache if it is small enough.
+	 *
+	 * @param file The file
+	 * @return The content (a read-only view of the whole file for the caller to position), or null if the file is not cached
+	 */
+	public ByteBuffer get(CachedFile file) {
+		long length = file.length();
+		String path = file.getFile().getAbsolutePath();
+		String etag = file.getETag();
+		synchronized (this) {
+			if (length <= 0 || length > maxFileSize || length > budget) {
+				return (null);
+			}
+			Entry entry = entries.get(path);
+			if (entry != null && entry.etag.equals(etag)) {
+				hits.incrementAndGet();
+				return (entry.content.duplicate());
+			}
+		}
+		misses.incrementAndGet();
+		ByteBuffer content;
+		try {
+			content = read(file, (int) length);
+		} catch (IOException e) {
+			ServerLog.w(TAG, "could not read " + path + " into memory: " + e.getMessage());
+			return (null);
+		}
+		if (ServerLog.isDebug()) {
+			ServerLog.d(TAG, "cached " + path + " (" + length + " bytes)");
+		}
+		synchronized (this) {
+			Entry old = entries.put(path, new Entry(etag, content));
+			if (old != null) {
+				size -= old.content.capacity();
+			}
+			size += content.capacity();
+			trim();
+		}
+		return (content.duplicate());
+	}
+
+	/**
+	 * Forget the cached content.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		synchronized (this) {
+			report.put("entries", (long) entries.size());
+			report.put("bytes", size);
+			report.put("budget", budget);
+		}
+		report.put("hits", hits.get());
+		report.put("misses", misses.get());
+		report.put("evictions", evictions.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private static ByteBuffer read(CachedFile file, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		FileChannel channel = file.acquire();
+		try {
+			long position = 0;
+			while (buffer.hasRemaining()) {
+				int i = channel.read(buffer, position);
+				if (i == -1) {
+					throw new EOFException("unexpected end of file at position " + position);
+				}
+				position += i;
+			}
+		} finally {
+			file.release();
+		}
+		buffer.flip();
+		// responses get views of the content, none of them can change it
+		return (buffer.asReadOnlyBuffer());
+	}
+
+	private void trim() {
+		// bodies still sending an evicted file keep their views, the memory is freed after them
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > budget && it.hasNext()) {
+			size -= it.next().content.capacity();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static class Entry {
+
+		// the validator of the file the content was read from
+		private String etag;
+
+		// the content (read-only)
+		private ByteBuffer content;
+
+		public Entry(String etag, ByteBuffer content) {
+			this.etag = etag;
+			this.content = content;
+		}
+
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public synchronized void setBudget(long budget) {
+		this.budget = Math.max(0, budget);
+		trim();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = Math.max(0, maxFileSize);
+	}
+
+	public synchronized long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.tt.droidplay;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Class that formats dates for HTTP headers. The Date header of the current second is shared by all responses and refreshed
+ * at most once per second, so responses do not create formatters or look up time zones.
+ *
+ * @author Tuomas Tikka
+ */
+public class HttpDate {
+
+	// the formatter for each thread (SimpleDateFormat is not thread safe)
+	private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			// Example: Thu, 26 Mar 2015 09:03:53 GMT
+			SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			simpleDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return (simpleDateFormat);
+		}
+	};
+
+	// the Date header of the current second
+	private static volatile Clock clock = new Clock(-1, null);
+
+	/**
+	 * Return the Date header for the current time.
+	 *
+	 * @return The pre-encoded header
+	 */
+	public static HttpHeader getDateHeader() {
+		long second = System.currentTimeMillis() / 1000;
+		Clock c = clock;
+		if (c.second != second) {
+			c = new Clock(second, new HttpHeader("Date", format(second * 1000), true));
+			clock = c;
+		}
+		return (c.header);
+	}
+
+	/**
+	 * Format a date for a HTTP header.
+	 *
+	 * @param milliseconds The time
+	 * @return The formatted date (e.g. Thu, 26 Mar 2015 09:03:53 GMT)
+	 */
+	public static String format(long milliseconds) {
+		return (FORMAT.get().format(new Date(milliseconds)));
+	}
+
+	/**
+	 * Parse a date from a HTTP header (e.g. If-Modified-Since).
+	 *
+	 * @param value The header value
+	 * @return The time in milliseconds, or -1 if the date could not be parsed
+	 */
+	public static long parse(String value) {
+		try {
+			return (FORMAT.get().parse(value.trim()).getTime());
+		} catch (Exception e) {
+			return (-1);
+		}
+	}
+
+	//
+	// Private
+	//
+
+	private static class Clock {
+
+		private long second;
+
+		private HttpHeader header;
+
+		private Clock(long second, HttpHeader header) {
+			this.second = second;
+			this.header = header;
+		}
+
+	}
+
+}
@@ -1,10 +1,8 @@
 package com.tt.droidplay;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
- * Class that implements the head of a HTTP request.
+ * Class that implements the head of a HTTP request. The headers are kept in the buffer of the parser, so the head is only valid
+ * until the parser moves on to the next request.
  * 
  * @author Tuomas Tikka
  */
@@ -21,18 +19,46 @@ public class HttpHead {
 	// the protocol, including the version (e.g. HTTP/1.1)
 	private String protocol;
 	
-	// the request headers
-	private Map<String, String> headers;
+	// the parser holding the request headers
+	private HttpRequestParser parser;
 
 	/**
 	 * Initialize the http head object.
+	 * 
+	 * @param parser The parser holding the request headers
 	 */
-	public HttpHead() {
-		headers = new HashMap<String, String>();
+	public HttpHead(HttpRequestParser parser) {
+		this.parser = parser;
 	}
 
-	public void addHeader(String name, String value) {
-		headers.put(name, value);
+	/**
+	 * Return the value of a request header. Header names are case-insensitive.
+	 * 
+	 * @param name The header name
+	 * @return The value, or null if there is no such header
+	 */
+	public String getHeader(String name) {
+		return (parser.getHeader(name));
+	}
+	
+	/**
+	 * Does a request header have the given value? Both are compared case-insensitively.
+	 * 
+	 * @param name The header name
+	 * @param value The value to compare with
+	 * @return True if the header exists and has the value
+	 */
+	public boolean hasHeaderValue(String name, String value) {
+		return (parser.hasHeaderValue(name, value));
+	}
+	
+	/**
+	 * Return the number of request headers.
+	 * 
+	 * @return The number of headers
+	 */
+	public int getHeaderCount() {
+		return (parser.getHeaderCount());
 	}
 
 	//
@@ -63,12 +89,4 @@ public class HttpHead {
 		this.protocol = protocol;
 	}
 
-	public Map<String, String> getHeaders() {
-		return headers;
-	}
-
-	public void setHeaders(Map<String, String> headers) {
-		this.headers = headers;
-	}
-	
 }
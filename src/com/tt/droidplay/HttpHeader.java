@@ -0,0 +1,127 @@
+package com.tt.droidplay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class that implements a single HTTP response header. Headers that do not change between responses are created once and kept
+ * pre-encoded, so sending them is a plain copy of bytes.
+ *
+ * @author Tuomas Tikka
+ */
+public class HttpHeader {
+
+	private static final String TAG = "HttpHeader";
+
+	public static final HttpHeader SERVER = new HttpHeader("Server", "DroidPlay/0.2.4 (Android)", true);
+
+	public static final HttpHeader ACCEPT_RANGES = new HttpHeader("Accept-Ranges", "bytes", true);
+
+	public static final HttpHeader CACHE_CONTROL = new HttpHeader("Cache-Control", "private, max-age=0", true);
+
+	public static final HttpHeader CACHE_CONTROL_NO_STORE = new HttpHeader("Cache-Control", "no-store", true);
+
+	public static final HttpHeader CONNECTION_CLOSE = new HttpHeader("Connection", "close", true);
+
+	public static final HttpHeader CONNECTION_KEEP_ALIVE = new HttpHeader("Connection", "keep-alive", true);
+
+	public static final HttpHeader CONTENT_LENGTH_ZERO = new HttpHeader("Content-Length", "0", true);
+
+	public static final HttpHeader CONTENT_TYPE_MP4 = new HttpHeader("Content-Type", "video/mp4", true);
+
+	public static final HttpHeader CONTENT_TYPE_M3U8 = new HttpHeader("Content-Type", "application/vnd.apple.mpegurl", true);
+
+	public static final HttpHeader CONTENT_TYPE_JSON = new HttpHeader("Content-Type", "application/json; charset=utf-8", true);
+
+	public static final HttpHeader ALLOW = new HttpHeader("Allow", "GET, HEAD", true);
+
+	public static final HttpHeader RETRY_AFTER = new HttpHeader("Retry-After", "1", true);
+
+	public static final HttpHeader TRANSFER_ENCODING_CHUNKED = new HttpHeader("Transfer-Encoding", "chunked", true);
+
+	// the header name
+	private String name;
+
+	// the header value
+	private String value;
+
+	// the encoded header line (including the line terminator), or null if encoded on the fly
+	private byte[] line;
+
+	/**
+	 * Initialize a header that is encoded when the response is written.
+	 *
+	 * @param name The header name
+	 * @param value The header value
+	 */
+	public HttpHeader(String name, String value) {
+		this(name, value, false);
+	}
+
+	/**
+	 * Initialize a header.
+	 *
+	 * @param name The header name
+	 * @param value The header value
+	 * @param encode Should the header line be encoded now (for headers that are sent many times)?
+	 */
+	public HttpHeader(String name, String value, boolean encode) {
+		this.name = name;
+		this.value = value;
+		if (encode) {
+			ByteBuffer buffer = ByteBuffer.allocate(name.length() + value.length() + 4);
+			encodeTo(buffer);
+			this.line = buffer.array();
+		}
+	}
+
+	/**
+	 * Write the header line into a buffer. Header names and values are ASCII, so characters are copied as bytes without going
+	 * through a charset encoder.
+	 *
+	 * @param buffer The buffer to write to
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		if (line != null) {
+			buffer.put(line);
+			return;
+		}
+		put(name, buffer);
+		buffer.put((byte) ':');
+		buffer.put((byte) ' ');
+		put(value, buffer);
+		buffer.put((byte) '\r');
+		buffer.put((byte) '\n');
+	}
+
+	/**
+	 * Return the number of bytes in the encoded header line.
+	 *
+	 * @return The length
+	 */
+	public int getEncodedLength() {
+		return (line != null ? line.length : name.length() + value.length() + 4);
+	}
+
+	//
+	// Private
+	//
+
+	private static void put(String s, ByteBuffer buffer) {
+		for (int i = 0; i < s.length(); i++) {
+			buffer.put((byte) s.charAt(i));
+		}
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public String getName() {
+		return name;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+}
@@ -0,0 +1,412 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that implements an incremental parser for the heads of HTTP requests. The bytes are read into a buffer owned by the
+ * parser, which is reused for every request on the connection, and the head is parsed in place: only the offsets of the request
+ * line and the headers are recorded, so nothing is allocated per header. Header values are turned into strings only when they
+ * are looked up.
+ *
+ * The same parser works with blocking streams (fill) and non-blocking channels (read into getBuffer). Bytes following a
+ * complete head (pipelined requests) are kept for the next call to parse.
+ *
+ * @author Tuomas Tikka
+ */
+public class HttpRequestParser {
+
+	/**
+	 * The result of parsing the buffered bytes.
+	 */
+	public enum State {
+
+		// the head is not complete yet, more bytes are needed
+		NEED_MORE,
+
+		// the head is complete and can be handled
+		COMPLETE,
+
+		// the head is invalid or too large, see getErrorStatus()
+		ERROR
+
+	}
+
+	// the default size of the buffer, which is also the maximum size of a request head
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	// the maximum length of the request line or a header line
+	public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	// the maximum number of headers in a request
+	public static final int MAX_HEADERS = 64;
+
+	// the buffer, in write mode: the bytes between 0 and position have been received
+	private ByteBuffer buffer;
+
+	// the backing array of the buffer
+	private byte[] bytes;
+
+	// the offset where scanning for the next line feed continues
+	private int scan = 0;
+
+	// the offset of the line being parsed
+	private int lineStart = 0;
+
+	// the offset following the complete head, or -1
+	private int headEnd = -1;
+
+	// has the request line been parsed?
+	private boolean requestLine = false;
+
+	// the status code to respond with if the head is invalid
+	private int errorStatus = 0;
+
+	// the offsets of the header names and values
+	private int[] nameStart = new int[MAX_HEADERS];
+	private int[] nameEnd = new int[MAX_HEADERS];
+	private int[] valueStart = new int[MAX_HEADERS];
+	private int[] valueEnd = new int[MAX_HEADERS];
+
+	// the number of headers parsed
+	private int headerCount = 0;
+
+	// the head handed out for the current request (reused)
+	private HttpHead head = new HttpHead(this);
+
+	/**
+	 * Initialize the parser with the default buffer size.
+	 */
+	public HttpRequestParser() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Initialize the parser.
+	 *
+	 * @param size The size of the buffer, which is also the maximum size of a request head
+	 */
+	public HttpRequestParser(int size) {
+		bytes = new byte[size];
+		buffer = ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Return the buffer to read from a non-blocking channel into. The buffer is in write mode.
+	 *
+	 * @return The buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return (buffer);
+	}
+
+	/**
+	 * Read available bytes from a blocking stream into the buffer.
+	 *
+	 * @param in The stream to read from
+	 * @return The number of bytes read (zero if the buffer is full), or -1 at the end of the stream
+	 * @throws IOException If there are any problems reading the stream
+	 */
+	public int fill(InputStream in) throws IOException {
+		int position = buffer.position();
+		if (position == bytes.length) {
+			return (0);
+		}
+		int i = in.read(bytes, position, bytes.length - position);
+		if (i > 0) {
+			buffer.position(position + i);
+		}
+		return (i);
+	}
+
+	/**
+	 * Parse the bytes received so far. Scanning continues where the previous call stopped, so each byte is looked at only once.
+	 *
+	 * @return The state of the head
+	 */
+	public State parse() {
+		if (headEnd != -1) {
+			return (State.COMPLETE);
+		}
+		if (errorStatus != 0) {
+			return (State.ERROR);
+		}
+		int limit = buffer.position();
+		for (; scan < limit; scan++) {
+			if (bytes[scan] != '\n') {
+				continue;
+			}
+			int end = scan;
+			if (end > lineStart && bytes[end - 1] == '\r') {
+				end--;
+			}
+			if (end - lineStart > MAX_LINE_LENGTH) {
+				return (fail(requestLine ? 431 : 414));
+			}
+			if (!requestLine) {
+				// empty lines before the request line are ignored (RFC 7230, section 3.5)
+				if (end > lineStart && !parseRequestLine(lineStart, end)) {
+					return (fail(400));
+				}
+			} else if (end == lineStart) {
+				headEnd = scan + 1;
+				scan++;
+				return (State.COMPLETE);
+			} else if (!parseHeader(lineStart, end)) {
+				return (State.ERROR);
+			}
+			lineStart = scan + 1;
+		}
+		if (limit - lineStart > MAX_LINE_LENGTH) {
+			return (fail(requestLine ? 431 : 414));
+		}
+		if (limit == bytes.length) {
+			// the buffer is full, but the head is not complete
+			return (fail(431));
+		}
+		return (State.NEED_MORE);
+	}
+
+	/**
+	 * Return the parsed head. The head is reused by the parser and its headers refer to the buffer, so it is only valid until
+	 * next() is called.
+	 *
+	 * @return The head, or null if the head is not complete
+	 */
+	public HttpHead getHead() {
+		return (headEnd == -1 ? null : head);
+	}
+
+	/**
+	 * Discard the current head and prepare for the next request. Any bytes received after the head are kept.
+	 */
+	public void next() {
+		int position = buffer.position();
+		int start = (headEnd == -1 ? position : headEnd);
+		int remaining = position - start;
+		if (remaining > 0) {
+			System.arraycopy(bytes, start, bytes, 0, remaining);
+		}
+		buffer.clear();
+		buffer.position(remaining);
+		scan = 0;
+		lineStart = 0;
+		headEnd = -1;
+		requestLine = false;
+		errorStatus = 0;
+		headerCount = 0;
+		head.setMethod(null);
+		head.setUri(null);
+		head.setProtocol(null);
+	}
+
+	/**
+	 * Are there bytes received but not parsed yet (e.g. a pipelined request)?
+	 *
+	 * @return True if the buffer holds unparsed bytes
+	 */
+	public boolean hasBufferedData() {
+		return (buffer.position() > (headEnd == -1 ? 0 : headEnd));
+	}
+
+	/**
+	 * Return the status code to respond with, if the head is invalid.
+	 *
+	 * @return The status code (400, 414 or 431), or zero if there is no error
+	 */
+	public int getErrorStatus() {
+		return (errorStatus);
+	}
+
+	/**
+	 * Return the number of headers in the current head.
+	 *
+	 * @return The number of headers
+	 */
+	public int getHeaderCount() {
+		return (headerCount);
+	}
+
+	/**
+	 * Return the name of a header.
+	 *
+	 * @param index The index of the header
+	 * @return The name
+	 */
+	public String getHeaderName(int index) {
+		return (toString(nameStart[index], nameEnd[index]));
+	}
+
+	/**
+	 * Return the value of a header.
+	 *
+	 * @param index The index of the header
+	 * @return The value, without surrounding whitespace
+	 */
+	public String getHeaderValue(int index) {
+		return (toString(valueStart[index], valueEnd[index]));
+	}
+
+	/**
+	 * Return the value of the first header with the given name. Header names are compared case-insensitively.
+	 *
+	 * @param name The header name
+	 * @return The value, or null if there is no such header
+	 */
+	public String getHeader(String name) {
+		int i = indexOf(name);
+		return (i == -1 ? null : getHeaderValue(i));
+	}
+
+	/**
+	 * Does the first header with the given name have the given value? Both the name and the value are compared
+	 * case-insensitively, without creating strings.
+	 *
+	 * @param name The header name
+	 * @param value The value to compare with
+	 * @return True if the header exists and has the value
+	 */
+	public boolean hasHeaderValue(String name, String value) {
+		int i = indexOf(name);
+		return (i != -1 && equalsIgnoreCase(valueStart[i], valueEnd[i], value));
+	}
+
+	//
+	// Private
+	//
+
+	private State fail(int status) {
+		errorStatus = status;
+		return (State.ERROR);
+	}
+
+	private boolean parseRequestLine(int start, int end) {
+		// method SP request-target SP HTTP-version
+		int sp1 = indexOf(' ', start, end);
+		int sp2 = (sp1 == -1 ? -1 : indexOf(' ', sp1 + 1, end));
+		if (sp1 <= start || sp2 <= sp1 + 1 || sp2 + 1 >= end || indexOf(' ', sp2 + 1, end) != -1) {
+			return (false);
+		}
+		head.setMethod(toMethod(start, sp1));
+		head.setUri(toString(sp1 + 1, sp2));
+		head.setProtocol(toProtocol(sp2 + 1, end));
+		requestLine = true;
+		return (true);
+	}
+
+	private boolean parseHeader(int start, int end) {
+		if (bytes[start] == ' ' || bytes[start] == '\t') {
+			// obsolete line folding is rejected (RFC 7230, section 3.2.4)
+			fail(400);
+			return (false);
+		}
+		if (headerCount == MAX_HEADERS) {
+			fail(431);
+			return (false);
+		}
+		int colon = indexOf(':', start, end);
+		if (colon <= start) {
+			fail(400);
+			return (false);
+		}
+		// no whitespace is allowed between the name and the colon
+		if (bytes[colon - 1] == ' ' || bytes[colon - 1] == '\t') {
+			fail(400);
+			return (false);
+		}
+		int from = colon + 1;
+		int to = end;
+		while (from < to && (bytes[from] == ' ' || bytes[from] == '\t')) {
+			from++;
+		}
+		while (to > from && (bytes[to - 1] == ' ' || bytes[to - 1] == '\t')) {
+			to--;
+		}
+		nameStart[headerCount] = start;
+		nameEnd[headerCount] = colon;
+		valueStart[headerCount] = from;
+		valueEnd[headerCount] = to;
+		headerCount++;
+		return (true);
+	}
+
+	private int indexOf(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (equalsIgnoreCase(nameStart[i], nameEnd[i], name)) {
+				return (i);
+			}
+		}
+		return (-1);
+	}
+
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == c) {
+				return (i);
+			}
+		}
+		return (-1);
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return (false);
+		}
+		for (int i = start; i < end; i++) {
+			int a = bytes[i];
+			int b = s.charAt(i - start);
+			if (a != b && toLowerCase(a) != toLowerCase(b)) {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+	private boolean equals(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return (false);
+		}
+		for (int i = start; i < end; i++) {
+			if (bytes[i] != s.charAt(i - start)) {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+	}
+
+	private String toMethod(int start, int end) {
+		// the common methods are returned as constants, so no string is created for them
+		if (equals(start, end, "GET")) {
+			return ("GET");
+		}
+		if (equals(start, end, "HEAD")) {
+			return ("HEAD");
+		}
+		return (toString(start, end));
+	}
+
+	private String toProtocol(int start, int end) {
+		if (equals(start, end, "HTTP/1.1")) {
+			return ("HTTP/1.1");
+		}
+		if (equals(start, end, "HTTP/1.0")) {
+			return ("HTTP/1.0");
+		}
+		return (toString(start, end));
+	}
+
+	private String toString(int start, int end) {
+		// heads are ISO-8859-1
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char) (bytes[i] & 0xff);
+		}
+		return (new String(chars));
+	}
+
+}
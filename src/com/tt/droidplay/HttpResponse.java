@@ -0,0 +1,342 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that implements a HTTP response: the status line, the headers and an optional body. The response is written incrementally,
+ * so it can be sent over both blocking and non-blocking channels.
+ *
+ * @author Tuomas Tikka
+ */
+public class HttpResponse {
+
+	private static final String TAG = "HttpResponse";
+
+	// the encoded status lines, by status code
+	private static final byte[][] STATUS_LINES = new byte[600][];
+
+	// the largest part of the body written at once, so the progress is visible while a long body is sent
+	private static final long WRITE_CHUNK = 1024 * 1024;
+
+	// the status code (e.g. 206)
+	private int status;
+
+	// the reason phrase (e.g. Partial Content)
+	private String reason;
+
+	// the response headers, in the order they are sent
+	private List<HttpHeader> headers;
+
+	// the body, or null if there is none
+	private ResponseBody body;
+
+	// should the connection be closed after the response?
+	private boolean close;
+
+	// the encoded head (status line and headers)
+	private ByteBuffer head;
+
+	// the start of the body, sent together with the head, or null
+	private ByteBuffer firstChunk;
+
+	// the head and the first chunk, for gathering writes
+	private ByteBuffer[] gather;
+
+	// the priority of the response for bandwidth shaping
+	private BandwidthShaper.Priority priority = BandwidthShaper.Priority.PREFETCH;
+
+	// did the last write stop because the throttle had no tokens?
+	private boolean throttled;
+
+	// did the last write stop because the body has sent everything written to its file so far?
+	private volatile boolean waiting;
+
+	// the number of bytes written so far (head and body), read by the statistics while the response is being sent
+	private volatile long bytesWritten = 0;
+
+	// when the first bytes were written to the channel (nanoseconds), valid once bytesWritten is not 0
+	private volatile long firstByteAt;
+
+	// is the response counted in the server statistics (false for the statistics themselves)?
+	private boolean counted = true;
+
+	/**
+	 * Initialize the response.
+	 *
+	 * @param status The status code
+	 * @param reason The reason phrase
+	 */
+	public HttpResponse(int status, String reason) {
+		this.status = status;
+		this.reason = reason;
+		this.headers = new ArrayList<HttpHeader>();
+	}
+
+	/**
+	 * Add a response header.
+	 *
+	 * @param name The header name
+	 * @param value The header value
+	 */
+	public void addHeader(String name, String value) {
+		headers.add(new HttpHeader(name, value));
+	}
+
+	/**
+	 * Add a response header (e.g. one of the pre-encoded constants).
+	 *
+	 * @param header The header
+	 */
+	public void addHeader(HttpHeader header) {
+		headers.add(header);
+	}
+
+	/**
+	 * Encode the head (status line and headers) of the response into a buffer, so the whole head can be sent with one write.
+	 *
+	 * @param buffer The reusable buffer to encode into, or null to allocate one (a larger buffer is allocated if it is too small)
+	 * @return The encoded head, ready to be written
+	 */
+	public ByteBuffer encodeHead(ByteBuffer buffer) {
+		byte[] statusLine = getStatusLine();
+		int length = statusLine.length + 2;
+		for (HttpHeader header : headers) {
+			length += header.getEncodedLength();
+		}
+		if (buffer == null || buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(length);
+		}
+		buffer.clear();
+		buffer.put(statusLine);
+		for (HttpHeader header : headers) {
+			header.encodeTo(buffer);
+		}
+		buffer.put((byte) '\r');
+		buffer.put((byte) '\n');
+		buffer.flip();
+		head = buffer;
+		return (head);
+	}
+
+	/**
+	 * Move the start of the body into a buffer, so the head and the first chunk of the body are sent with one gathering write
+	 * (one system call, and a full first segment rather than a small one with the head only). Call after encodeHead().
+	 *
+	 * @param buffer The reusable buffer to fill (its capacity decides the size of the first chunk)
+	 * @throws IOException If the body could not be read
+	 */
+	public void readFirstChunk(ByteBuffer buffer) throws IOException {
+		if (body == null || body.isComplete()) {
+			return;
+		}
+		if (body instanceof BufferBody) {
+			// bytes already in memory are sent from where they are
+			firstChunk = ((BufferBody) body).take(buffer.capacity());
+		} else {
+			buffer.clear();
+			body.read(buffer);
+			buffer.flip();
+			firstChunk = buffer;
+		}
+		gather = new ByteBuffer[] { getHead(), firstChunk };
+	}
+
+	/**
+	 * Return the encoded head (status line and headers) of the response.
+	 *
+	 * @return The head, ready to be written
+	 */
+	public ByteBuffer getHead() {
+		if (head == null) {
+			encodeHead(null);
+		}
+		return (head);
+	}
+
+	/**
+	 * Write as much of the remaining response as the channel accepts.
+	 *
+	 * @param channel The channel to write to
+	 * @return True if the whole response has been written
+	 * @throws IOException If there are any problems writing the response
+	 */
+	public boolean writeTo(WritableByteChannel channel) throws IOException {
+		return (writeTo(channel, null));
+	}
+
+	/**
+	 * Write as much of the remaining response as the channel and the throttle allow. If the response is not complete,
+	 * isThrottled() tells whether the writer has to wait for the throttle, and isWaiting() whether it has to wait for the file
+	 * being sent to grow (rather than for the channel).
+	 *
+	 * @param channel The channel to write to
+	 * @param throttle The throttle of the connection, or null to write without rate control
+	 * @return True if the whole response has been written
+	 * @throws IOException If there are any problems writing the response
+	 */
+	public boolean writeTo(WritableByteChannel channel, ConnectionThrottle throttle) throws IOException {
+		throttled = false;
+		waiting = false;
+		ByteBuffer head = getHead();
+		while (head.hasRemaining() || (firstChunk != null && firstChunk.hasRemaining())) {
+			long i;
+			if (firstChunk != null && channel instanceof GatheringByteChannel) {
+				i = ((GatheringByteChannel) channel).write(gather);
+			} else if (head.hasRemaining()) {
+				i = channel.write(head);
+			} else {
+				i = channel.write(firstChunk);
+			}
+			if (i == 0) {
+				return (false);
+			}
+			if (bytesWritten == 0) {
+				// the head goes out at once, while a blocking write of the body only returns when the body has been sent
+				firstByteAt = System.nanoTime();
+			}
+			bytesWritten += i;
+		}
+		if (body == null) {
+			return (true);
+		}
+		while (!body.isComplete()) {
+			long granted = (throttle == null ? WRITE_CHUNK : throttle.acquire(WRITE_CHUNK));
+			if (granted == 0) {
+				throttled = true;
+				return (false);
+			}
+			long written = body.writeTo(channel, granted);
+			bytesWritten += written;
+			if (throttle != null) {
+				throttle.release(granted - written);
+			}
+			if (written == 0) {
+				break;
+			}
+		}
+		waiting = body instanceof GrowingFileBody && ((GrowingFileBody) body).isWaiting();
+		return (body.isComplete());
+	}
+
+	/**
+	 * Wait until the file being sent grows (thread per connection mode). Call when isWaiting() is true.
+	 *
+	 * @param timeout The longest time to wait (milliseconds), after which the writer should try again
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public void awaitBody(long timeout) throws InterruptedException {
+		((GrowingFileBody) body).await(timeout);
+	}
+
+	/**
+	 * Ask to be called once when the file being sent grows (non-blocking mode). Call when isWaiting() is true.
+	 *
+	 * @param listener The listener, called on another thread
+	 */
+	public void notifyWhenReady(Runnable listener) {
+		((GrowingFileBody) body).notifyOnChange(listener);
+	}
+
+	/**
+	 * Release any resources held by the response.
+	 */
+	public void release() {
+		if (body != null) {
+			body.close();
+		}
+	}
+
+	//
+	// Private
+	//
+
+	private byte[] getStatusLine() {
+		byte[] line = status < STATUS_LINES.length ? STATUS_LINES[status] : null;
+		if (line == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("HTTP/1.1 ");
+			sb.append(status);
+			sb.append(" ");
+			sb.append(reason);
+			sb.append("\r\n");
+			line = new byte[sb.length()];
+			for (int i = 0; i < line.length; i++) {
+				line[i] = (byte) sb.charAt(i);
+			}
+			if (status < STATUS_LINES.length) {
+				STATUS_LINES[status] = line;
+			}
+		}
+		return (line);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	public List<HttpHeader> getHeaders() {
+		return headers;
+	}
+
+	public ResponseBody getBody() {
+		return body;
+	}
+
+	public void setBody(ResponseBody body) {
+		this.body = body;
+	}
+
+	public BandwidthShaper.Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(BandwidthShaper.Priority priority) {
+		this.priority = priority;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getFirstByteAt() {
+		return firstByteAt;
+	}
+
+	public boolean isCounted() {
+		return counted;
+	}
+
+	public void setCounted(boolean counted) {
+		this.counted = counted;
+	}
+
+	public boolean isThrottled() {
+		return throttled;
+	}
+
+	public boolean isWaiting() {
+		return waiting;
+	}
+
+	public boolean isClose() {
+		return close;
+	}
+
+	public void setClose(boolean close) {
+		this.close = close;
+	}
+
+}
@@ -1,10 +1,10 @@
 package com.tt.droidplay;
 
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import android.util.Log;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Class that implements a minimal HTTP server, used to stream videos from the device.
@@ -15,19 +15,103 @@ public class HttpServer {
 
 	private static final String TAG = "HttpServer";
 	
-	// the server socket
-	private ServerSocket serverSocket;
+	/**
+	 * The engines available for serving client connections.
+	 */
+	public enum Mode {
+		
+		// non-blocking, a small set of event loop threads serves all connections
+		SELECTOR,
+		
+		// blocking, one worker thread per connection
+		THREAD_PER_CONNECTION
+	
+	}
+	
+	// the number of event loop threads used in selector mode
+	private static final int SELECTOR_THREADS = 2;
+	
+	// the number of client threads used in thread per connection mode
+	private static final int CLIENT_THREADS = 10;
+	
+	// the number of connections that may wait for a client thread
+	private static final int CLIENT_QUEUE = 10;
+	
+	// how long the server waits for open connections to finish when stopping (milliseconds)
+	private static final long DRAIN_TIMEOUT = 1000;
+	
+	// the engine used for serving client connections
+	private Mode mode;
+	
+	// the shared cache of file metadata and open channels
+	private FileCache fileCache = new FileCache();
+	
+	// the files the server is allowed to serve
+	private MediaRegistry mediaRegistry = new MediaRegistry(fileCache);
 	
-	// the thread pool for the server
-	private ExecutorService esServer = Executors.newSingleThreadExecutor();
+	// the faststart layouts of videos with the moov box at the end
+	private FastStartCache fastStartCache = new FastStartCache();
 	
-	// the thread pool for the client request handlers
-	private ExecutorService esClient = Executors.newFixedThreadPool(10);
+	// the HLS packaging of published videos
+	private HlsPackager hlsPackager = new HlsPackager();
+	
+	// the read-ahead for sequentially streamed files
+	private ReadAhead readAhead = new ReadAhead();
+	
+	// the content of small files kept in memory
+	private HotCache hotCache = new HotCache();
+	
+	// the published files still being written
+	private GrowingFileTracker growingFiles = new GrowingFileTracker();
+	
+	// the server statistics
+	private ServerMetrics metrics = new ServerMetrics();
+	
+	// the handler creating responses for requests
+	private RequestHandler handler = new RequestHandler(mediaRegistry, hlsPackager, fastStartCache, readAhead, hotCache, growingFiles, metrics);
+	
+	// the bandwidth shaper (no limits by default)
+	private BandwidthShaper shaper = new BandwidthShaper(0, 0);
+	
+	// the socket options and the write timeout
+	private SocketTuner tuner = new SocketTuner();
+	
+	// the server socket channel (thread per connection mode)
+	private ServerSocketChannel serverSocket;
+	
+	// the non-blocking engine (selector mode)
+	private SelectorEngine selectorEngine;
+	
+	// the thread accepting connections (thread per connection mode)
+	private ExecutorService esServer;
+	
+	// the executor for the client connections (thread per connection mode)
+	private ClientExecutor clientExecutor = new BoundedClientExecutor(CLIENT_THREADS, CLIENT_QUEUE);
 	
 	/**
-	 * Initialize the server.
+	 * Initialize the server (selector mode).
 	 */
 	public HttpServer() {
+		this(Mode.SELECTOR);
+	}
+	
+	/**
+	 * Initialize the server.
+	 * 
+	 * @param mode The engine used for serving client connections
+	 */
+	public HttpServer(Mode mode) {
+		this.mode = mode;
+		metrics.addSource("bandwidth", shaper);
+		metrics.addSource("sockets", tuner);
+		metrics.addSource("clientExecutor", clientExecutor);
+		metrics.addSource("readAhead", readAhead);
+		metrics.addSource("fileCache", fileCache);
+		metrics.addSource("hotCache", hotCache);
+		metrics.addSource("media", mediaRegistry);
+		metrics.addSource("hls", hlsPackager);
+		metrics.addSource("fastStart", fastStartCache);
+		metrics.addSource("growingFiles", growingFiles);
 	}
 	
 	/**
@@ -37,30 +121,206 @@ public class HttpServer {
 	 */
 	public void startServer(int port) {
 		try {
-			serverSocket = new ServerSocket(port);
-			Log.d(TAG, "started http server on port " + port);
+			if (mode == Mode.SELECTOR) {
+				selectorEngine = new SelectorEngine(handler, shaper, tuner, SELECTOR_THREADS);
+				selectorEngine.start(port);
+			} else {
+				clientExecutor.start();
+				tuner.start();
+				serverSocket = ServerSocketChannel.open();
+				serverSocket.socket().setReuseAddress(true);
+				serverSocket.socket().bind(new InetSocketAddress(port));
+			}
+			ServerLog.d(TAG, "started http server on port " + port + " (" + mode + ")");
 		} catch (Exception e) {
-			Log.e(TAG, "error starting http server: " + e.getMessage());
-			e.printStackTrace(System.err);
+			ServerLog.e(TAG, "error starting http server: " + e.getMessage(), e);
+			if (selectorEngine != null) {
+				selectorEngine.stop();
+				selectorEngine = null;
+			}
+			clientExecutor.shutdown(0);
+			tuner.stop();
 			return;
 		}
-		esServer.submit(new ServerWorker(serverSocket));
+		if (serverSocket != null) {
+			esServer = Executors.newSingleThreadExecutor();
+			esServer.submit(new ServerWorker(serverSocket));
+		}
 	}
 	
 	/**
 	 * Stop the server.
 	 */
 	public void stopServer() {
+		if (selectorEngine != null) {
+			selectorEngine.stop();
+			selectorEngine = null;
+			ServerLog.d(TAG, "stopped http server");
+		}
 		if (serverSocket != null) {
 			try {
 				serverSocket.close();
 				serverSocket = null;
-				Log.d(TAG, "stopped http server");
+				ServerLog.d(TAG, "stopped http server");
 			} catch (Exception e) {
-				Log.e(TAG, "error stopping http server: " + e.getMessage());
-				e.printStackTrace(System.err);
+				ServerLog.e(TAG, "error stopping http server: " + e.getMessage(), e);
 			}
 		}
+		// closing the server socket ends the accepting thread
+		if (esServer != null) {
+			esServer.shutdown();
+			esServer = null;
+		}
+		// streams following files being written end with the data written so far
+		growingFiles.clear();
+		// no new connections are accepted, drain the open ones
+		if (!clientExecutor.shutdown(DRAIN_TIMEOUT)) {
+			ServerLog.w(TAG, "client connections did not finish within " + DRAIN_TIMEOUT + " ms");
+		}
+		tuner.stop();
+		fileCache.clear();
+		mediaRegistry.revokeAll();
+		hlsPackager.clear();
+		fastStartCache.clear();
+		hotCache.clear();
+		if (ServerLog.isDebug()) {
+			ServerLog.d(TAG, "client report: " + clientExecutor.getReport());
+			ServerLog.d(TAG, "bandwidth report: " + shaper.getReport());
+		}
+	}
+	
+	/**
+	 * Set the bandwidth limits. The limits can be changed while the server is running.
+	 * 
+	 * @param globalRate The rate shared by all connections in bytes per second (0 = unlimited)
+	 * @param connectionRate The rate of each connection in bytes per second (0 = unlimited)
+	 */
+	public void setBandwidthLimits(long globalRate, long connectionRate) {
+		shaper.setGlobalRate(globalRate);
+		shaper.setConnectionRate(connectionRate);
+	}
+	
+	/**
+	 * Set the largest part of a file sent by one transfer. Files are streamed window by window, so the memory used does not
+	 * depend on the size of the file or range.
+	 * 
+	 * @param window The window (bytes)
+	 */
+	public void setStreamWindow(int window) {
+		FileBody.setWindow(window);
+	}
+	
+	/**
+	 * Return the bandwidth shaper (e.g. for reporting its limits and counters).
+	 * 
+	 * @return The shaper
+	 */
+	public BandwidthShaper getBandwidthShaper() {
+		return (shaper);
+	}
+	
+	/**
+	 * Return the registry of files the server is allowed to serve. Publish a file to get the uri for it, and revoke it when it
+	 * is no longer cast.
+	 * 
+	 * @return The registry
+	 */
+	public MediaRegistry getMediaRegistry() {
+		return (mediaRegistry);
+	}
+	
+	/**
+	 * Return the HLS packaging of published videos (e.g. for tuning the segment duration).
+	 * 
+	 * @return The packager
+	 */
+	public HlsPackager getHlsPackager() {
+		return (hlsPackager);
+	}
+	
+	/**
+	 * Package a published video as HLS before its playlist is requested. Waits for the video to be indexed, so do not call
+	 * this on the main thread.
+	 * 
+	 * @param media The published video
+	 * @return Can the video be streamed as HLS? If not, cast the video itself
+	 */
+	public boolean prepareHls(MediaEntry media) {
+		return (hlsPackager.prepare(mediaRegistry.getFile(media)));
+	}
+	
+	/**
+	 * Set the memory used for keeping small files in memory. The budget can be changed while the server is running.
+	 * 
+	 * @param budget The budget in bytes (0 = files are always read from storage)
+	 */
+	public void setHotCacheBudget(long budget) {
+		hotCache.setBudget(budget);
+	}
+	
+	/**
+	 * Return the socket tuning (e.g. for changing the send buffer limits or the write timeout).
+	 * 
+	 * @return The tuner
+	 */
+	public SocketTuner getSocketTuner() {
+		return (tuner);
+	}
+	
+	/**
+	 * Return the tracking of files still being written (e.g. for changing the live window or the idle timeout).
+	 * 
+	 * @return The tracker
+	 */
+	public GrowingFileTracker getGrowingFileTracker() {
+		return (growingFiles);
+	}
+	
+	/**
+	 * Return the read-ahead (e.g. for tuning its window or reporting its counters).
+	 * 
+	 * @return The read-ahead
+	 */
+	public ReadAhead getReadAhead() {
+		return (readAhead);
+	}
+	
+	/**
+	 * Set the executor for the client connections in thread per connection mode (e.g. a BoundedClientExecutor with a different
+	 * pool size). Call this while the server is stopped, the executor is started with the server.
+	 * 
+	 * @param clientExecutor The executor
+	 */
+	public void setClientExecutor(ClientExecutor clientExecutor) {
+		this.clientExecutor = clientExecutor;
+		metrics.addSource("clientExecutor", clientExecutor);
+	}
+	
+	/**
+	 * Return the executor for the client connections (e.g. for tuning its pool size or reporting its counters).
+	 * 
+	 * @return The executor
+	 */
+	public ClientExecutor getClientExecutor() {
+		return (clientExecutor);
+	}
+	
+	/**
+	 * Return the server statistics (also served as JSON from ServerMetrics.PATH).
+	 * 
+	 * @return The statistics
+	 */
+	public ServerMetrics getMetrics() {
+		return (metrics);
+	}
+	
+	/**
+	 * Return the engine used for serving client connections.
+	 * 
+	 * @return The mode
+	 */
+	public Mode getMode() {
+		return (mode);
 	}
 	
 	//
@@ -69,9 +329,9 @@ public class HttpServer {
 	
 	private class ServerWorker implements Runnable {
 
-		private ServerSocket serverSocket;
+		private ServerSocketChannel serverSocket;
 		
-		public ServerWorker(ServerSocket serverSocket) {
+		public ServerWorker(ServerSocketChannel serverSocket) {
 			this.serverSocket = serverSocket;
 		}
 
@@ -80,13 +340,19 @@ public class HttpServer {
 		@Override
 		public void run() {
 			try {
-				Log.d(TAG, "listening for client request");
+				ServerLog.d(TAG, "listening for client request");
 				while (true) {
-					esClient.submit(new ClientWorker(serverSocket.accept(), id++));
+					ClientWorker worker = new ClientWorker(serverSocket.accept(), id++, handler, shaper, tuner);
+					try {
+						clientExecutor.execute(worker);
+					} catch (RejectedExecutionException e) {
+						// no capacity, answer right away instead of keeping the socket open
+						ServerLog.w(TAG, "rejected client connection: " + e.getMessage());
+						worker.reject();
+					}
 				}
 			} catch (Exception e) {
-				Log.e(TAG, "error listening for client requests: " + e.getMessage());
-				e.printStackTrace(System.err);
+				ServerLog.e(TAG, "error listening for client requests: " + e.getMessage(), e);
 			}
 		}
 		
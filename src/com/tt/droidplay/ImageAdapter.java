@@ -3,6 +3,8 @@ package com.tt.droidplay;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -59,6 +61,23 @@ public class ImageAdapter extends BaseAdapter {
     	return (folder);
     }
     
+    /**
+     * Return the images following a position (videos are skipped).
+     * 
+     * @param position The position
+     * @param count The largest number of images returned
+     * @return The images, in the order they are shown
+     */
+    public List<File> getImagesAfter(int position, int count) {
+    	List<File> images = new ArrayList<File>();
+    	for (int i = position + 1; i < files.length && images.size() < count; i++) {
+    		if (FileUtils.isImage(files[i])) {
+    			images.add(files[i]);
+    		}
+    	}
+    	return (images);
+    }
+    
 	@Override
 	public int getCount() {
 		return (files.length);
@@ -0,0 +1,289 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+
+/**
+ * Class that prepares photos for a receiver before they are sent: the photo is decoded at the smallest resolution that still
+ * covers the display of the receiver, scaled to fit the display, turned upright according to its EXIF orientation and encoded as
+ * a JPEG file. A 48 MP photo shown on a 1080p display shrinks to a few hundred kilobytes, which is quicker to send and to decode
+ * on the receiver.
+ *
+ * Prepared photos are kept in a cache directory, by the original file, its modification time, the target size and the JPEG
+ * quality. The cache is bounded by the total size of the files, the least recently used files are deleted first.
+ *
+ * @author Tuomas Tikka
+ */
+public class ImagePreparer {
+
+	// the JPEG quality used when the throughput of the link is not known yet
+	public static final int DEFAULT_QUALITY = 85;
+
+	// the suffix of prepared files, and of files still being written
+	private static final String SUFFIX = ".jpg";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// the cache directory
+	private File directory;
+
+	// the disk space used for prepared files (bytes)
+	private long budget;
+
+	// the total size of the prepared files (bytes)
+	private long size = 0;
+
+	/**
+	 * Initialize the preparer.
+	 *
+	 * @param directory The cache directory (created if needed)
+	 * @param budget The disk space used for prepared files (bytes)
+	 */
+	public ImagePreparer(File directory, long budget) {
+		this.directory = directory;
+		this.budget = budget;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().endsWith(SUFFIX)) {
+					size += f.length();
+				} else {
+					// left over from an interrupted preparation
+					f.delete();
+				}
+			}
+		}
+		trim();
+	}
+
+	/**
+	 * Return the JPEG quality to use for a link of a given throughput. Slow links get smaller files, fast links better images.
+	 *
+	 * @param throughput The measured throughput (bytes per second, 0 = not known)
+	 * @return The JPEG quality (0-100)
+	 */
+	public static int getQuality(long throughput) {
+		if (throughput <= 0) {
+			return (DEFAULT_QUALITY);
+		}
+		if (throughput < 1024 * 1024) {
+			return (70);
+		}
+		if (throughput < 4 * 1024 * 1024) {
+			return (80);
+		}
+		return (90);
+	}
+
+	/**
+	 * Prepare a photo for a display.
+	 *
+	 * @param file The photo
+	 * @param width The width of the display
+	 * @param height The height of the display
+	 * @param quality The JPEG quality (0-100)
+	 * @return The prepared file, or the original if it can be sent as it is (an upright JPEG file that fits the display, or a
+	 *         file that could not be decoded)
+	 */
+	public synchronized File prepare(File file, int width, int height, int quality) {
+		File prepared = new File(directory, getKey(file, width, height, quality) + SUFFIX);
+		if (prepared.exists()) {
+			prepared.setLastModified(System.currentTimeMillis());
+			return (prepared);
+		}
+		// the size of the photo, without decoding it
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return (file);
+		}
+		int orientation = getOrientation(file);
+		boolean transposed = orientation >= ExifInterface.ORIENTATION_TRANSPOSE;
+		int w = transposed ? options.outHeight : options.outWidth;
+		int h = transposed ? options.outWidth : options.outHeight;
+		float scale = Math.min(1.0f, Math.min((float) width / w, (float) height / h));
+		if (scale == 1.0f && orientation == ExifInterface.ORIENTATION_NORMAL && "image/jpeg".equals(options.outMimeType)) {
+			return (file);
+		}
+		// decode at the smallest power of two fraction of the resolution that still covers the target size
+		int rawWidth = options.outWidth;
+		int rawHeight = options.outHeight;
+		int sample = 1;
+		while (rawWidth / (sample * 2) >= rawWidth * scale && rawHeight / (sample * 2) >= rawHeight * scale) {
+			sample *= 2;
+		}
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sample;
+		Bitmap decoded = null;
+		Bitmap bitmap = null;
+		try {
+			decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+			if (decoded == null) {
+				return (file);
+			}
+			// scale the decoded photo the rest of the way, then turn it upright
+			Matrix matrix = getMatrix(orientation);
+			float s = Math.min(1.0f, rawWidth * scale / decoded.getWidth());
+			matrix.preScale(s, s);
+			bitmap = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+			return (write(bitmap, prepared, quality) ? prepared : file);
+		} catch (OutOfMemoryError e) {
+			return (file);
+		} finally {
+			if (bitmap != null && bitmap != decoded) {
+				bitmap.recycle();
+			}
+			if (decoded != null) {
+				decoded.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Delete all prepared files.
+	 */
+	public synchronized void clear() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		size = 0;
+	}
+
+	//
+	// Private
+	//
+
+	private boolean write(Bitmap bitmap, File prepared, int quality) {
+		File temp = new File(directory, prepared.getName() + TEMP_SUFFIX);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+					throw new IOException("could not encode " + prepared.getName());
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(prepared)) {
+				throw new IOException("could not rename " + temp.getName());
+			}
+		} catch (IOException e) {
+			temp.delete();
+			return (false);
+		}
+		size += prepared.length();
+		trim();
+		return (prepared.exists());
+	}
+
+	private void trim() {
+		if (size <= budget) {
+			return;
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long i = a.lastModified();
+				long j = b.lastModified();
+				return (i < j ? -1 : (i == j ? 0 : 1));
+			}
+		});
+		for (int i = 0; i < files.length && size > budget; i++) {
+			long length = files[i].length();
+			if (files[i].getName().endsWith(SUFFIX) && files[i].delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	private static String getKey(File file, int width, int height, int quality) {
+		String s = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length() + "|" + width + "x" + height + "|" + quality;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(s.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return (sb.toString());
+		} catch (Exception e) {
+			return (Integer.toHexString(s.hashCode()));
+		}
+	}
+
+	private static int getOrientation(File file) {
+		try {
+			return (new ExifInterface(file.getAbsolutePath()).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+		} catch (IOException e) {
+			return (ExifInterface.ORIENTATION_NORMAL);
+		}
+	}
+
+	private static Matrix getMatrix(int orientation) {
+		Matrix matrix = new Matrix();
+		switch (orientation) {
+		case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+			matrix.setScale(-1, 1);
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_180:
+			matrix.setRotate(180);
+			break;
+		case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+			matrix.setScale(1, -1);
+			break;
+		case ExifInterface.ORIENTATION_TRANSPOSE:
+			matrix.setRotate(90);
+			matrix.postScale(-1, 1);
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_90:
+			matrix.setRotate(90);
+			break;
+		case ExifInterface.ORIENTATION_TRANSVERSE:
+			matrix.setRotate(-90);
+			matrix.postScale(-1, 1);
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_270:
+			matrix.setRotate(-90);
+			break;
+		default:
+			break;
+		}
+		return (matrix);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public synchronized void setBudget(long budget) {
+		this.budget = Math.max(0, budget);
+		trim();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+}
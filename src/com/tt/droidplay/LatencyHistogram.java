@@ -0,0 +1,100 @@
+package com.tt.droidplay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class that implements a latency histogram with fixed, roughly logarithmic buckets. Recording is a few atomic increments, so it
+ * can be done on the streaming path from any thread without locking. Percentiles are estimated as the upper bound of the
+ * bucket they fall in.
+ *
+ * @author Tuomas Tikka
+ */
+public class LatencyHistogram {
+
+	// the upper bounds of the buckets (milliseconds), the last bucket holds everything above
+	private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+	// the number of values in each bucket
+	private AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+	// the number of values recorded
+	private AtomicLong count = new AtomicLong();
+
+	// the sum of the values recorded
+	private AtomicLong sum = new AtomicLong();
+
+	// the largest value recorded
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value.
+	 *
+	 * @param millis The latency in milliseconds
+	 */
+	public void record(long millis) {
+		if (millis < 0) {
+			millis = 0;
+		}
+		int i = 0;
+		while (i < BOUNDS.length && millis > BOUNDS[i]) {
+			i++;
+		}
+		counts.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+		long current;
+		while (millis > (current = max.get())) {
+			if (max.compareAndSet(current, millis)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return an estimate of a percentile.
+	 *
+	 * @param percentile The percentile (e.g. 0.99)
+	 * @return The upper bound of the bucket the percentile falls in (milliseconds), or the largest value for the last bucket
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return (0);
+		}
+		long rank = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return (Math.min(BOUNDS[i], max.get()));
+			}
+		}
+		return (max.get());
+	}
+
+	/**
+	 * Append the histogram as a JSON object.
+	 *
+	 * @param sb The builder to append to
+	 */
+	public void appendJson(StringBuilder sb) {
+		long n = count.get();
+		sb.append("{\"count\":").append(n);
+		sb.append(",\"averageMillis\":").append(n == 0 ? 0 : sum.get() / n);
+		sb.append(",\"p50Millis\":").append(getPercentile(0.5));
+		sb.append(",\"p90Millis\":").append(getPercentile(0.9));
+		sb.append(",\"p99Millis\":").append(getPercentile(0.99));
+		sb.append(",\"maxMillis\":").append(max.get());
+		sb.append(",\"buckets\":{");
+		for (int i = 0; i <= BOUNDS.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(i < BOUNDS.length ? "le" + BOUNDS[i] : "gt" + BOUNDS[BOUNDS.length - 1]).append("\":");
+			sb.append(counts.get(i));
+		}
+		sb.append("}}");
+	}
+
+}
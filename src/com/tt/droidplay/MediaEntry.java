@@ -0,0 +1,99 @@
+package com.tt.droidplay;
+
+/**
+ * Class that holds a file published by the media registry. Everything the server needs to serve the file is resolved when the
+ * file is published, so a request only looks the entry up by its token. The entry keeps the cached metadata of the file, which
+ * the registry re-validates through the file cache (see MediaRegistry.getFile()) and replaces when the file changes.
+ *
+ * @author Tuomas Tikka
+ */
+public class MediaEntry {
+
+	// the opaque token identifying the file in urls
+	private String token;
+
+	// the absolute path of the file
+	private String path;
+
+	// the cached metadata and channel of the file, replaced when they are re-validated
+	private volatile CachedFile file;
+
+	// the content type of the file
+	private String contentType;
+
+	// the pre-encoded content type header
+	private HttpHeader contentTypeHeader;
+
+	// when the file was published
+	private long published = System.currentTimeMillis();
+
+	/**
+	 * Initialize the entry.
+	 *
+	 * @param token The opaque token identifying the file
+	 * @param file The cached metadata of the file
+	 * @param contentType The content type of the file
+	 */
+	public MediaEntry(String token, CachedFile file, String contentType) {
+		this.token = token;
+		this.path = file.getFile().getAbsolutePath();
+		this.file = file;
+		this.contentType = contentType;
+		if ("video/mp4".equals(contentType)) {
+			this.contentTypeHeader = HttpHeader.CONTENT_TYPE_MP4;
+		} else {
+			this.contentTypeHeader = new HttpHeader("Content-Type", contentType, true);
+		}
+	}
+
+	/**
+	 * Return the path of the file on the server (e.g. for building the url given to a receiver).
+	 *
+	 * @return The path, starting with a slash
+	 */
+	public String getUri() {
+		return ("/" + token);
+	}
+
+	/**
+	 * Return the path of the HLS playlist of the file on the server (see HlsPackager).
+	 *
+	 * @return The path, starting with a slash
+	 */
+	public String getPlaylistUri() {
+		return (getUri() + HlsPackager.PLAYLIST_SUFFIX);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public String getToken() {
+		return token;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public CachedFile getFile() {
+		return file;
+	}
+
+	public void setFile(CachedFile file) {
+		this.file = file;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public HttpHeader getContentTypeHeader() {
+		return contentTypeHeader;
+	}
+
+	public long getPublished() {
+		return published;
+	}
+
+}
@@ -0,0 +1,174 @@
+package com.tt.droidplay;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that implements the registry of files the server is allowed to serve. A file is published under a short random token,
+ * which is the only thing that appears in the url; requests for anything else are answered with 404. Revoking a token (e.g.
+ * when casting ends) makes the file unavailable again.
+ *
+ * @author Tuomas Tikka
+ */
+public class MediaRegistry implements ReportSource {
+
+	private static final String TAG = "MediaRegistry";
+
+	// the shared cache of file metadata, warmed when a file is published
+	private FileCache fileCache;
+
+	// the source of the tokens, which must not be guessable
+	private SecureRandom random = new SecureRandom();
+
+	// the published files by token
+	private Map<String, MediaEntry> entries = new ConcurrentHashMap<String, MediaEntry>();
+
+	// the published files by path, so publishing a file again returns the same token
+	private Map<String, MediaEntry> paths = new ConcurrentHashMap<String, MediaEntry>();
+
+	// the number of lookups, and the number that did not match a published file
+	private AtomicLong lookups = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Initialize the registry.
+	 *
+	 * @param fileCache The shared cache of file metadata
+	 */
+	public MediaRegistry(FileCache fileCache) {
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * Publish a file. A file that is already published keeps its token.
+	 *
+	 * @param file The file
+	 * @return The entry of the file
+	 * @throws FileNotFoundException If the file does not exist or cannot be read
+	 */
+	public synchronized MediaEntry publish(File file) throws FileNotFoundException {
+		String path = file.getAbsolutePath();
+		MediaEntry entry = paths.get(path);
+		if (entry != null) {
+			return (entry);
+		}
+		CachedFile cached = fileCache.get(path);
+		if (!cached.exists() || !cached.canRead()) {
+			throw new FileNotFoundException("cannot publish " + path);
+		}
+		String token;
+		do {
+			token = createToken(file.getName());
+		} while (entries.containsKey(token));
+		entry = new MediaEntry(token, cached, FileUtils.getContentType(file.getName()));
+		entries.put(token, entry);
+		paths.put(path, entry);
+		ServerLog.d(TAG, "published " + path + " as " + token);
+		return (entry);
+	}
+
+	/**
+	 * Return the published file for a request uri.
+	 *
+	 * @param uri The request uri (e.g. "/3k9x0a2b4c1q.mp4")
+	 * @return The entry, or null if the uri does not match a published file
+	 */
+	public MediaEntry lookup(String uri) {
+		lookups.incrementAndGet();
+		MediaEntry entry = null;
+		if (uri != null && uri.length() > 1 && uri.charAt(0) == '/') {
+			entry = entries.get(uri.substring(1));
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		}
+		return (entry);
+	}
+
+	/**
+	 * Return the cached metadata of a published file. The entry resolved when the file was published is used while it is
+	 * fresh, and replaced by the file cache when it has to be re-validated.
+	 *
+	 * @param entry The published file
+	 * @return The cached file (check exists() and canRead() before use)
+	 */
+	public CachedFile getFile(MediaEntry entry) {
+		CachedFile file = fileCache.get(entry.getFile());
+		entry.setFile(file);
+		return (file);
+	}
+
+	/**
+	 * Revoke a token. Responses already being sent are not affected.
+	 *
+	 * @param token The token
+	 * @return True if the token was published
+	 */
+	public synchronized boolean revoke(String token) {
+		MediaEntry entry = entries.remove(token);
+		if (entry == null) {
+			return (false);
+		}
+		paths.remove(entry.getPath());
+		ServerLog.d(TAG, "revoked " + token);
+		return (true);
+	}
+
+	/**
+	 * Revoke all tokens.
+	 */
+	public synchronized void revokeAll() {
+		entries.clear();
+		paths.clear();
+	}
+
+	/**
+	 * Return the number of published files.
+	 *
+	 * @return The number of files
+	 */
+	public int size() {
+		return (entries.size());
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("published", (long) entries.size());
+		report.put("lookups", lookups.get());
+		report.put("misses", misses.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private String createToken(String filename) {
+		// 64 random bits, plus the extension for receivers that look at it
+		String token = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+		int i = filename.lastIndexOf('.');
+		if (i != -1 && isPlainExtension(filename, i + 1)) {
+			token += filename.substring(i).toLowerCase();
+		}
+		return (token);
+	}
+
+	private static boolean isPlainExtension(String filename, int start) {
+		if (start == filename.length() || filename.length() - start > 5) {
+			return (false);
+		}
+		for (int i = start; i < filename.length(); i++) {
+			if (!Character.isLetterOrDigit(filename.charAt(i)) || filename.charAt(i) > 'z') {
+				return (false);
+			}
+		}
+		return (true);
+	}
+
+}
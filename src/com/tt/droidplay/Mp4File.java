@@ -0,0 +1,294 @@
+package com.tt.droidplay;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class that reads the layout of an MP4 file: where the top level boxes are, the moov box (the movie header) and the sample
+ * tables of its tracks. Only the header is read, the media data is left on disk.
+ *
+ * @author Tuomas Tikka
+ */
+public class Mp4File {
+
+	public static final int FTYP = type("ftyp");
+
+	public static final int MOOV = type("moov");
+
+	public static final int MDAT = type("mdat");
+
+	public static final int TRAK = type("trak");
+
+	// the largest moov box read into memory (bytes)
+	private static final int MAX_MOOV_SIZE = 16 * 1024 * 1024;
+
+	// the size of the file
+	private long size;
+
+	// the position and size of the moov box
+	private long moovOffset = -1;
+	private long moovSize;
+
+	// the position and size of the mdat box, and the size of its header
+	private long mdatOffset = -1;
+	private long mdatSize;
+	private int mdatHeaderSize;
+
+	// the moov box (including its header)
+	private ByteBuffer moov;
+
+	// the tracks in the moov box
+	private List<Mp4Track> tracks = new ArrayList<Mp4Track>();
+
+	private Mp4File(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * Read the layout of an MP4 file.
+	 *
+	 * @param channel The channel of the file
+	 * @param size The size of the file
+	 * @return The layout
+	 * @throws IOException If the file cannot be read or is not a supported MP4 file
+	 */
+	public static Mp4File read(FileChannel channel, long size) throws IOException {
+		Mp4File file = new Mp4File(size);
+		ByteBuffer header = ByteBuffer.allocate(16);
+		long pos = 0;
+		while (pos + 8 <= size) {
+			header.clear();
+			header.limit((int) Math.min(16, size - pos));
+			readFully(channel, header, pos);
+			header.flip();
+			long boxSize = header.getInt() & 0xffffffffL;
+			int type = header.getInt();
+			int headerSize = 8;
+			if (boxSize == 1) {
+				if (header.remaining() < 8) {
+					throw new IOException("truncated box header at " + pos);
+				}
+				boxSize = header.getLong();
+				headerSize = 16;
+			} else if (boxSize == 0) {
+				boxSize = size - pos;
+			}
+			if (boxSize < headerSize || boxSize > size - pos) {
+				throw new IOException("invalid box size at " + pos);
+			}
+			if (type == MOOV) {
+				if (boxSize > MAX_MOOV_SIZE) {
+					throw new IOException("moov box too large: " + boxSize);
+				}
+				file.moovOffset = pos;
+				file.moovSize = boxSize;
+			} else if (type == MDAT && file.mdatOffset == -1) {
+				file.mdatOffset = pos;
+				file.mdatSize = boxSize;
+				file.mdatHeaderSize = headerSize;
+			}
+			pos += boxSize;
+		}
+		if (file.moovOffset == -1 || file.mdatOffset == -1) {
+			throw new IOException("not an mp4 file (moov or mdat box missing)");
+		}
+		file.moov = ByteBuffer.allocate((int) file.moovSize);
+		readFully(channel, file.moov, file.moovOffset);
+		file.moov.flip();
+		int start = boxContent(file.moov, 0);
+		int end = file.moov.limit();
+		int trak;
+		while ((trak = findBox(file.moov, start, end, TRAK)) != -1) {
+			file.tracks.add(Mp4Track.read(file.moov, trak));
+			start = boxEnd(file.moov, trak);
+		}
+		return (file);
+	}
+
+	/**
+	 * Is the moov box in front of the media data (i.e. can a player start without reading the end of the file)?
+	 *
+	 * @return True if the moov box comes before the mdat box
+	 */
+	public boolean isFastStart() {
+		return (moovOffset < mdatOffset);
+	}
+
+	/**
+	 * Return the first track of a type.
+	 *
+	 * @param handlerType The handler type (e.g. "vide" or "soun")
+	 * @return The track, or null if the file has no such track
+	 */
+	public Mp4Track getTrack(String handlerType) {
+		int type = type(handlerType);
+		for (Mp4Track track : tracks) {
+			if (track.getHandlerType() == type) {
+				return (track);
+			}
+		}
+		return (null);
+	}
+
+	/**
+	 * Return the moov box (including its header). The returned buffer is a copy of the position and limit, the content is
+	 * shared.
+	 *
+	 * @return The moov box
+	 */
+	public ByteBuffer getMoov() {
+		return (moov.duplicate());
+	}
+
+	/**
+	 * Return the position of the media data (after the header of the mdat box).
+	 *
+	 * @return The position in the file
+	 */
+	public long getMediaDataOffset() {
+		return (mdatOffset + mdatHeaderSize);
+	}
+
+	/**
+	 * Return the end of the media data.
+	 *
+	 * @return The position in the file after the mdat box
+	 */
+	public long getMediaDataEnd() {
+		return (mdatOffset + mdatSize);
+	}
+
+	/**
+	 * Return where a byte of the file is in the faststart layout of the file, in which the moov box is moved in front of the
+	 * mdat box and everything between them moves back by the size of the moov box.
+	 *
+	 * @param position The position in the file (not inside the moov box)
+	 * @return The position in the faststart layout
+	 */
+	public long toFastStart(long position) {
+		if (isFastStart() || position < mdatOffset || position >= moovOffset) {
+			return (position);
+		}
+		return (position + moovSize);
+	}
+
+	//
+	// Box utilities
+	//
+
+	/**
+	 * Return the four character code of a box type as an integer.
+	 *
+	 * @param name The box type (e.g. "moov")
+	 * @return The type
+	 */
+	public static int type(String name) {
+		return ((name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3));
+	}
+
+	/**
+	 * Find a box among the boxes in a part of a buffer.
+	 *
+	 * @param buffer The buffer
+	 * @param start The position of the first box
+	 * @param end The end of the last box
+	 * @param type The box type
+	 * @return The position of the box, or -1 if there is no such box
+	 */
+	public static int findBox(ByteBuffer buffer, int start, int end, int type) {
+		int pos = start;
+		while (pos + 8 <= end) {
+			int next = boxEnd(buffer, pos);
+			if (next == -1 || next > end) {
+				return (-1);
+			}
+			if (buffer.getInt(pos + 4) == type) {
+				return (pos);
+			}
+			pos = next;
+		}
+		return (-1);
+	}
+
+	/**
+	 * Return the position of the content of a box (after its header).
+	 *
+	 * @param buffer The buffer
+	 * @param pos The position of the box
+	 * @return The position of the content
+	 */
+	public static int boxContent(ByteBuffer buffer, int pos) {
+		return (buffer.getInt(pos) == 1 ? pos + 16 : pos + 8);
+	}
+
+	/**
+	 * Return the position after a box.
+	 *
+	 * @param buffer The buffer
+	 * @param pos The position of the box
+	 * @return The position after the box, or -1 if its size is invalid
+	 */
+	public static int boxEnd(ByteBuffer buffer, int pos) {
+		long size = buffer.getInt(pos) & 0xffffffffL;
+		if (size == 1) {
+			if (pos + 16 > buffer.limit()) {
+				return (-1);
+			}
+			size = buffer.getLong(pos + 8);
+		} else if (size == 0) {
+			size = buffer.limit() - pos;
+		}
+		if (size < 8 || size > buffer.limit() - pos) {
+			return (-1);
+		}
+		return ((int) (pos + size));
+	}
+
+	//
+	// Private
+	//
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, pos);
+			if (n == -1) {
+				throw new EOFException("unexpected end of file at " + pos);
+			}
+			pos += n;
+		}
+	}
+
+	//
+	// Getters
+	//
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getMoovOffset() {
+		return moovOffset;
+	}
+
+	public long getMoovSize() {
+		return moovSize;
+	}
+
+	public long getMdatOffset() {
+		return mdatOffset;
+	}
+
+	public long getMdatSize() {
+		return mdatSize;
+	}
+
+	public List<Mp4Track> getTracks() {
+		return Collections.unmodifiableList(tracks);
+	}
+
+}
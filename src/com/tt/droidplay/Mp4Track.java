@@ -0,0 +1,428 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class that holds the sample tables of one track of an MP4 file: the size, time and position of each sample, and which samples
+ * are keyframes (sync samples).
+ *
+ * @author Tuomas Tikka
+ */
+public class Mp4Track {
+
+	private static final int TKHD = Mp4File.type("tkhd");
+	private static final int MDIA = Mp4File.type("mdia");
+	private static final int MDHD = Mp4File.type("mdhd");
+	private static final int HDLR = Mp4File.type("hdlr");
+	private static final int MINF = Mp4File.type("minf");
+	private static final int STBL = Mp4File.type("stbl");
+	private static final int STTS = Mp4File.type("stts");
+	private static final int CTTS = Mp4File.type("ctts");
+	private static final int STSS = Mp4File.type("stss");
+	private static final int STSC = Mp4File.type("stsc");
+	private static final int STSZ = Mp4File.type("stsz");
+	private static final int STCO = Mp4File.type("stco");
+	private static final int CO64 = Mp4File.type("co64");
+
+	// the position of the trak box in the moov box
+	private int trak;
+
+	// the track id
+	private int trackId;
+
+	// the handler type (e.g. "vide" or "soun")
+	private int handlerType;
+
+	// the number of time units per second, and the duration in those units
+	private long timescale;
+	private long duration;
+
+	// the sample sizes, or a single size for all samples
+	private int sampleCount;
+	private int sampleSize;
+	private int[] sampleSizes;
+
+	// the time to sample table (runs of samples with the same duration)
+	private int[] timeCounts;
+	private int[] timeDeltas;
+
+	// the composition offset table (runs of samples with the same offset), or null if decoding order is presentation order; the
+	// offsets are signed in version 1 of the box
+	private int[] compositionCounts;
+	private int[] compositionOffsets;
+	private int compositionVersion;
+
+	// the sync samples (1-based), or null if every sample is a sync sample
+	private int[] syncSamples;
+
+	// the sample to chunk table (runs of chunks with the same number of samples, 1-based chunk numbers)
+	private int[] firstChunks;
+	private int[] samplesPerChunk;
+
+	// the position of each chunk in the file
+	private long[] chunkOffsets;
+
+	// the position of the chunk offset box in the moov box, and whether it holds 64-bit offsets (co64)
+	private int chunkOffsetBox;
+	private boolean largeOffsets;
+
+	private Mp4Track() {
+	}
+
+	/**
+	 * Read the sample tables of a track.
+	 *
+	 * @param moov The moov box
+	 * @param trak The position of the trak box in the moov box
+	 * @return The track
+	 * @throws IOException If a table is missing or invalid
+	 */
+	public static Mp4Track read(ByteBuffer moov, int trak) throws IOException {
+		Mp4Track track = new Mp4Track();
+		track.trak = trak;
+		int tkhd = Mp4File.boxContent(moov, child(moov, trak, TKHD));
+		track.trackId = moov.getInt(tkhd + (moov.get(tkhd) == 1 ? 20 : 12));
+		int mdia = child(moov, trak, MDIA);
+		int mdhd = Mp4File.boxContent(moov, child(moov, mdia, MDHD));
+		if (moov.get(mdhd) == 1) {
+			track.timescale = moov.getInt(mdhd + 20) & 0xffffffffL;
+			track.duration = moov.getLong(mdhd + 24);
+		} else {
+			track.timescale = moov.getInt(mdhd + 12) & 0xffffffffL;
+			track.duration = moov.getInt(mdhd + 16) & 0xffffffffL;
+		}
+		if (track.timescale == 0) {
+			throw new IOException("invalid timescale");
+		}
+		track.handlerType = moov.getInt(Mp4File.boxContent(moov, child(moov, mdia, HDLR)) + 8);
+		int stbl = child(moov, child(moov, mdia, MINF), STBL);
+
+		// sample sizes
+		int stsz = Mp4File.boxContent(moov, child(moov, stbl, STSZ));
+		track.sampleSize = moov.getInt(stsz + 4);
+		track.sampleCount = readCount(moov, stsz + 8, track.sampleSize == 0 ? 4 : 0, stbl);
+		if (track.sampleSize == 0) {
+			track.sampleSizes = new int[track.sampleCount];
+			for (int i = 0; i < track.sampleCount; i++) {
+				track.sampleSizes[i] = moov.getInt(stsz + 12 + i * 4);
+			}
+		}
+
+		// sample times
+		int stts = Mp4File.boxContent(moov, child(moov, stbl, STTS));
+		int n = readCount(moov, stts + 4, 8, stbl);
+		track.timeCounts = new int[n];
+		track.timeDeltas = new int[n];
+		for (int i = 0; i < n; i++) {
+			track.timeCounts[i] = moov.getInt(stts + 8 + i * 8);
+			track.timeDeltas[i] = moov.getInt(stts + 12 + i * 8);
+		}
+
+		// composition offsets (optional)
+		int cttsBox = Mp4File.findBox(moov, Mp4File.boxContent(moov, stbl), Mp4File.boxEnd(moov, stbl), CTTS);
+		if (cttsBox != -1) {
+			int ctts = Mp4File.boxContent(moov, cttsBox);
+			track.compositionVersion = moov.get(ctts);
+			n = readCount(moov, ctts + 4, 8, stbl);
+			track.compositionCounts = new int[n];
+			track.compositionOffsets = new int[n];
+			for (int i = 0; i < n; i++) {
+				track.compositionCounts[i] = moov.getInt(ctts + 8 + i * 8);
+				track.compositionOffsets[i] = moov.getInt(ctts + 12 + i * 8);
+			}
+		}
+
+		// sync samples (optional)
+		int stssBox = Mp4File.findBox(moov, Mp4File.boxContent(moov, stbl), Mp4File.boxEnd(moov, stbl), STSS);
+		if (stssBox != -1) {
+			int stss = Mp4File.boxContent(moov, stssBox);
+			n = readCount(moov, stss + 4, 4, stbl);
+			track.syncSamples = new int[n];
+			for (int i = 0; i < n; i++) {
+				track.syncSamples[i] = moov.getInt(stss + 8 + i * 4);
+			}
+		}
+
+		// samples per chunk
+		int stsc = Mp4File.boxContent(moov, child(moov, stbl, STSC));
+		n = readCount(moov, stsc + 4, 12, stbl);
+		track.firstChunks = new int[n];
+		track.samplesPerChunk = new int[n];
+		for (int i = 0; i < n; i++) {
+			track.firstChunks[i] = moov.getInt(stsc + 8 + i * 12);
+			track.samplesPerChunk[i] = moov.getInt(stsc + 12 + i * 12);
+		}
+
+		// chunk offsets
+		track.chunkOffsetBox = Mp4File.findBox(moov, Mp4File.boxContent(moov, stbl), Mp4File.boxEnd(moov, stbl), STCO);
+		if (track.chunkOffsetBox == -1) {
+			track.chunkOffsetBox = child(moov, stbl, CO64);
+			track.largeOffsets = true;
+		}
+		int stco = Mp4File.boxContent(moov, track.chunkOffsetBox);
+		n = readCount(moov, stco + 4, track.largeOffsets ? 8 : 4, stbl);
+		track.chunkOffsets = new long[n];
+		for (int i = 0; i < n; i++) {
+			track.chunkOffsets[i] = track.largeOffsets ? moov.getLong(stco + 8 + i * 8) : moov.getInt(stco + 8 + i * 4) & 0xffffffffL;
+		}
+		return (track);
+	}
+
+	/**
+	 * Return the keyframes of the track, in decoding order.
+	 *
+	 * @return The time (in timescale units), the position in the file and the sample number (0-based) of each keyframe
+	 */
+	public List<long[]> getKeyframes() {
+		List<long[]> keyframes = new ArrayList<long[]>();
+		if (firstChunks.length == 0) {
+			return (keyframes);
+		}
+		int sample = 1;
+		int sync = 0;
+		long time = 0;
+		int timeEntry = 0;
+		int timeLeft = timeCounts.length > 0 ? timeCounts[0] : 0;
+		for (int chunk = 1, entry = 0; chunk <= chunkOffsets.length && sample <= sampleCount; chunk++) {
+			while (entry + 1 < firstChunks.length && firstChunks[entry + 1] <= chunk) {
+				entry++;
+			}
+			long offset = chunkOffsets[chunk - 1];
+			for (int i = 0; i < samplesPerChunk[entry] && sample <= sampleCount; i++, sample++) {
+				boolean isSync = syncSamples == null;
+				if (!isSync) {
+					while (sync < syncSamples.length && syncSamples[sync] < sample) {
+						sync++;
+					}
+					isSync = sync < syncSamples.length && syncSamples[sync] == sample;
+				}
+				if (isSync) {
+					keyframes.add(new long[] { time, offset, sample - 1 });
+				}
+				offset += sampleSizes == null ? sampleSize : sampleSizes[sample - 1];
+				// advance the time by the duration of this sample
+				while (timeLeft == 0 && timeEntry + 1 < timeCounts.length) {
+					timeLeft = timeCounts[++timeEntry];
+				}
+				if (timeLeft > 0) {
+					time += timeDeltas[timeEntry];
+					timeLeft--;
+				}
+			}
+		}
+		return (keyframes);
+	}
+
+	/**
+	 * Find the first sample decoded at or after a time.
+	 *
+	 * @param time The time (in timescale units)
+	 * @return The sample number (0-based), or the number of samples if all of them are decoded before the time
+	 */
+	public int findSample(long time) {
+		long start = 0;
+		int sample = 0;
+		for (int i = 0; i < timeCounts.length && sample < sampleCount; i++) {
+			long delta = timeDeltas[i] & 0xffffffffL;
+			if (timeCounts[i] > 0 && start + (timeCounts[i] - 1) * delta >= time) {
+				return (Math.min(sampleCount, sample + (time <= start ? 0 : (int) ((time - start + delta - 1) / delta))));
+			}
+			start += timeCounts[i] * delta;
+			sample += timeCounts[i];
+		}
+		return (sampleCount);
+	}
+
+	/**
+	 * Return a run of samples, in decoding order. The tables are walked from the first sample, so the cost depends on the position
+	 * of the run in the track rather than its length.
+	 *
+	 * @param first The first sample (0-based)
+	 * @param count The number of samples
+	 * @return The samples (fewer if the track ends before)
+	 */
+	public List<Sample> getSamples(int first, int count) {
+		int end = (int) Math.min(sampleCount, (long) first + count);
+		List<Sample> samples = new ArrayList<Sample>(Math.max(0, end - first));
+		if (firstChunks.length == 0) {
+			return (samples);
+		}
+		int sample = 0;
+		long time = 0;
+		int timeEntry = 0;
+		int timeLeft = timeCounts.length > 0 ? timeCounts[0] : 0;
+		int compositionEntry = 0;
+		int compositionLeft = compositionCounts != null && compositionCounts.length > 0 ? compositionCounts[0] : 0;
+		for (int chunk = 1, entry = 0; chunk <= chunkOffsets.length && sample < end; chunk++) {
+			while (entry + 1 < firstChunks.length && firstChunks[entry + 1] <= chunk) {
+				entry++;
+			}
+			long offset = chunkOffsets[chunk - 1];
+			for (int i = 0; i < samplesPerChunk[entry] && sample < end; i++, sample++) {
+				int size = sampleSizes == null ? sampleSize : sampleSizes[sample];
+				while (timeLeft == 0 && timeEntry + 1 < timeCounts.length) {
+					timeLeft = timeCounts[++timeEntry];
+				}
+				int duration = 0;
+				if (timeLeft > 0) {
+					duration = timeDeltas[timeEntry];
+					timeLeft--;
+				}
+				int compositionOffset = 0;
+				if (compositionCounts != null) {
+					while (compositionLeft == 0 && compositionEntry + 1 < compositionCounts.length) {
+						compositionLeft = compositionCounts[++compositionEntry];
+					}
+					if (compositionLeft > 0) {
+						compositionOffset = compositionOffsets[compositionEntry];
+						compositionLeft--;
+					}
+				}
+				if (sample >= first) {
+					boolean sync = syncSamples == null || Arrays.binarySearch(syncSamples, sample + 1) >= 0;
+					samples.add(new Sample(offset, size, time, duration, compositionOffset, sync));
+				}
+				offset += size;
+				time += duration & 0xffffffffL;
+			}
+		}
+		return (samples);
+	}
+
+	/**
+	 * Return the duration of the track in seconds.
+	 *
+	 * @return The duration
+	 */
+	public double getDurationSeconds() {
+		return ((double) duration / timescale);
+	}
+
+	//
+	// Private
+	//
+
+	private static int child(ByteBuffer moov, int parent, int type) throws IOException {
+		int box = Mp4File.findBox(moov, Mp4File.boxContent(moov, parent), Mp4File.boxEnd(moov, parent), type);
+		if (box == -1) {
+			throw new IOException("missing box: " + new String(new char[] { (char) (type >>> 24), (char) ((type >>> 16) & 0xff), (char) ((type >>> 8) & 0xff), (char) (type & 0xff) }));
+		}
+		return (box);
+	}
+
+	private static int readCount(ByteBuffer moov, int pos, int entrySize, int stbl) throws IOException {
+		// the table must fit in the sample table box, so a corrupt count cannot allocate huge arrays
+		long count = moov.getInt(pos) & 0xffffffffL;
+		if (count > Integer.MAX_VALUE || pos + 4 + count * entrySize > Mp4File.boxEnd(moov, stbl)) {
+			throw new IOException("invalid sample table entry count: " + count);
+		}
+		return ((int) count);
+	}
+
+	/**
+	 * Class that holds one sample of a track.
+	 */
+	public static class Sample {
+
+		// the position in the file and the size
+		private long offset;
+		private int size;
+
+		// the decoding time and the duration (in timescale units)
+		private long time;
+		private int duration;
+
+		// the presentation time relative to the decoding time (in timescale units)
+		private int compositionOffset;
+
+		// is the sample a keyframe?
+		private boolean sync;
+
+		public Sample(long offset, int size, long time, int duration, int compositionOffset, boolean sync) {
+			this.offset = offset;
+			this.size = size;
+			this.time = time;
+			this.duration = duration;
+			this.compositionOffset = compositionOffset;
+			this.sync = sync;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public int getDuration() {
+			return duration;
+		}
+
+		public int getCompositionOffset() {
+			return compositionOffset;
+		}
+
+		public boolean isSync() {
+			return sync;
+		}
+
+	}
+
+	//
+	// Getters
+	//
+
+	public int getTrak() {
+		return trak;
+	}
+
+	public int getTrackId() {
+		return trackId;
+	}
+
+	public int getHandlerType() {
+		return handlerType;
+	}
+
+	public long getTimescale() {
+		return timescale;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	public boolean hasCompositionOffsets() {
+		return (compositionCounts != null);
+	}
+
+	public int getCompositionVersion() {
+		return compositionVersion;
+	}
+
+	public long[] getChunkOffsets() {
+		return chunkOffsets;
+	}
+
+	public int getChunkOffsetBox() {
+		return chunkOffsetBox;
+	}
+
+	public boolean hasLargeOffsets() {
+		return largeOffsets;
+	}
+
+}
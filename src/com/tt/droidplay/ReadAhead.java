@@ -0,0 +1,261 @@
+package com.tt.droidplay;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that implements predictive read-ahead for files streamed by the HTTP server. Receivers read videos as a series of
+ * sequential range requests (or one long open ended range). The access pattern is tracked per file, and while a file is read
+ * sequentially the next window is read in the background, so the data is in the page cache when the next transfer needs it.
+ *
+ * @author Tuomas Tikka
+ */
+public class ReadAhead implements ReportSource {
+
+	private static final String TAG = "ReadAhead";
+
+	// the number of files whose access pattern is tracked
+	private static final int MAX_FILES = 16;
+
+	// the size of each buffer in the pool
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	// the number of buffers in the pool
+	private static final int BUFFERS = 2;
+
+	// requests starting this close to where the previous one ended still count as sequential
+	private static final long SEQUENTIAL_SLACK = 64 * 1024;
+
+	// how far ahead of the reader to warm (bytes)
+	private volatile long window = 4 * 1024 * 1024;
+
+	// the access pattern, by path
+	private Map<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+			return (size() > MAX_FILES);
+		}
+	};
+
+	// the pool of buffers used for background reads
+	private BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+
+	// the background thread, with a short queue (work that does not fit is dropped rather than queued forever)
+	private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(4), new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			((WarmTask) r).cancel();
+		}
+	});
+
+	// the number of bytes read ahead
+	private AtomicLong warmedBytes = new AtomicLong();
+
+	/**
+	 * Initialize the read-ahead.
+	 */
+	public ReadAhead() {
+		for (int i = 0; i < BUFFERS; i++) {
+			pool.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Called when a request for a range of a file starts.
+	 *
+	 * @param file The file
+	 * @param start The first byte requested
+	 * @param end The last byte requested
+	 */
+	public void onRequest(CachedFile file, long start, long end) {
+		State state;
+		synchronized (states) {
+			String path = file.getFile().getAbsolutePath();
+			state = states.get(path);
+			if (state == null) {
+				state = new State();
+				states.put(path, state);
+			}
+		}
+		synchronized (state) {
+			boolean sequential = state.lastEnd != -1 && start >= state.lastEnd + 1 - SEQUENTIAL_SLACK && start <= state.lastEnd + 1 + window;
+			state.sequential = sequential ? state.sequential + 1 : 0;
+			state.lastEnd = end;
+			if (start < state.warmedFrom || start > state.warmedUntil) {
+				// a seek, whatever was warmed is not useful
+				state.warmedFrom = start;
+				state.warmedUntil = start;
+			}
+		}
+		if (end - start + 1 > window / 4 || state.sequential > 0) {
+			// long reads and sequences of short reads are worth warming right away
+			onProgress(file, state, start);
+		}
+	}
+
+	/**
+	 * Called as a response body is written, so the warmed window keeps ahead of the reader.
+	 *
+	 * @param file The file
+	 * @param position The position of the next byte to be sent
+	 */
+	public void onProgress(CachedFile file, long position) {
+		State state;
+		synchronized (states) {
+			state = states.get(file.getFile().getAbsolutePath());
+		}
+		if (state != null) {
+			onProgress(file, state, position);
+		}
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	//
+	// Private
+	//
+
+	private void onProgress(CachedFile file, State state, long position) {
+		long from;
+		long until;
+		synchronized (state) {
+			if (state.warming || position + window / 2 < state.warmedUntil) {
+				// still far enough ahead
+				return;
+			}
+			from = Math.max(position, state.warmedUntil);
+			until = Math.min(position + window, file.length());
+			if (from >= until) {
+				return;
+			}
+			state.warming = true;
+		}
+		executor.execute(new WarmTask(file, state, from, until));
+	}
+
+	private class State {
+
+		// the last byte of the previous request
+		private long lastEnd = -1;
+
+		// the number of consecutive sequential requests
+		private int sequential = 0;
+
+		// the window already read ahead
+		private long warmedFrom = 0;
+
+		private long warmedUntil = 0;
+
+		// is a background read in progress?
+		private boolean warming = false;
+
+	}
+
+	private class WarmTask implements Runnable {
+
+		private CachedFile file;
+
+		private State state;
+
+		private long from;
+
+		private long until;
+
+		public WarmTask(CachedFile file, State state, long from, long until) {
+			this.file = file;
+			this.state = state;
+			this.from = from;
+			this.until = until;
+		}
+
+		public void cancel() {
+			synchronized (state) {
+				state.warming = false;
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = pool.poll();
+			long position = from;
+			try {
+				if (buffer == null) {
+					return;
+				}
+				FileChannel channel = file.acquire();
+				try {
+					while (position < until && !Thread.currentThread().isInterrupted()) {
+						buffer.clear();
+						if (until - position < buffer.capacity()) {
+							buffer.limit((int) (until - position));
+						}
+						int i = channel.read(buffer, position);
+						if (i <= 0) {
+							break;
+						}
+						position += i;
+					}
+				} finally {
+					file.release();
+				}
+				warmedBytes.addAndGet(position - from);
+			} catch (Exception e) {
+				ServerLog.w(TAG, "could not read ahead: " + e.getMessage());
+			} finally {
+				if (buffer != null) {
+					pool.offer(buffer);
+				}
+				synchronized (state) {
+					state.warming = false;
+					if (position > state.warmedUntil) {
+						state.warmedUntil = position;
+					}
+				}
+			}
+		}
+
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("window", window);
+		synchronized (states) {
+			report.put("trackedFiles", (long) states.size());
+		}
+		report.put("warmedBytes", warmedBytes.get());
+		report.put("pendingTasks", (long) executor.getQueue().size());
+		return (report);
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public long getWindow() {
+		return window;
+	}
+
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	public long getWarmedBytes() {
+		return warmedBytes.get();
+	}
+
+}
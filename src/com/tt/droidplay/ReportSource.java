@@ -0,0 +1,19 @@
+package com.tt.droidplay;
+
+import java.util.Map;
+
+/**
+ * Interface used by the parts of the server that expose counters for the statistics.
+ *
+ * @author Tuomas Tikka
+ */
+public interface ReportSource {
+
+	/**
+	 * Return the current counters.
+	 *
+	 * @return The counters by name
+	 */
+	public Map<String, Long> getReport();
+
+}
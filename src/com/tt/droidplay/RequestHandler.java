@@ -0,0 +1,852 @@
+package com.tt.droidplay;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Class that turns parsed HTTP requests into responses. The handler is shared by all connections and does not depend on how the
+ * connection is served (thread per connection or non-blocking).
+ *
+ * @author Tuomas Tikka
+ */
+public class RequestHandler {
+
+    private static final String TAG = "RequestHandler";
+
+    // the boundary separating the parts of multipart/byteranges responses
+    private static final String BOUNDARY = "DROIDPLAY_BYTERANGES";
+
+    // the content type of multipart/byteranges responses
+    private static final HttpHeader MULTIPART_CONTENT_TYPE = new HttpHeader("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY, true);
+
+    // the maximum number of ranges accepted in one request
+    private static final int MAX_RANGES = 64;
+
+    // ranges separated by less than this many bytes are sent as one part (roughly the overhead of a part header)
+    private static final int COALESCE_GAP = 80;
+
+    // how long a range starting where the data written so far ends waits for the writer (milliseconds)
+    private static final long GROWING_RANGE_WAIT = 2000;
+
+    // how long an idle persistent connection is kept open (milliseconds)
+    private int keepAliveTimeout = 15 * 1000;
+
+    // the maximum number of requests served on one persistent connection
+    private int keepAliveMaxRequests = 100;
+
+    // the pre-encoded Keep-Alive header advertising the limits above
+    private HttpHeader keepAliveHeader = createKeepAliveHeader();
+
+    // the files the server is allowed to serve, with their cached metadata and open channels
+    private MediaRegistry mediaRegistry;
+
+    // the HLS packaging of published videos
+    private HlsPackager hlsPackager;
+
+    // the faststart layouts of videos with the moov box at the end
+    private FastStartCache fastStartCache;
+
+    // the read-ahead for sequentially streamed files
+    private ReadAhead readAhead;
+
+    // the content of small files kept in memory
+    private HotCache hotCache;
+
+    // the published files still being written
+    private GrowingFileTracker growingFiles;
+
+    // the server statistics
+    private ServerMetrics metrics;
+
+    /**
+     * Initialize the handler.
+     *
+     * @param mediaRegistry The files the server is allowed to serve
+     * @param hlsPackager The HLS packaging of published videos
+     * @param fastStartCache The faststart layouts of videos with the moov box at the end
+     * @param readAhead The read-ahead for sequentially streamed files
+     * @param hotCache The content of small files kept in memory
+     * @param growingFiles The published files still being written
+     * @param metrics The server statistics
+     */
+    public RequestHandler(MediaRegistry mediaRegistry, HlsPackager hlsPackager, FastStartCache fastStartCache, ReadAhead readAhead, HotCache hotCache, GrowingFileTracker growingFiles, ServerMetrics metrics) {
+        this.mediaRegistry = mediaRegistry;
+        this.hlsPackager = hlsPackager;
+        this.fastStartCache = fastStartCache;
+        this.readAhead = readAhead;
+        this.hotCache = hotCache;
+        this.growingFiles = growingFiles;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Create the response for a request.
+     *
+     * @param head The parsed request head, or null if the request could not be parsed
+     * @param client The address of the client
+     * @param id The connection id (used in logging)
+     * @param served The number of requests already served on the connection
+     * @return The response to send
+     */
+    public HttpResponse handle(HttpHead head, InetAddress client, int id, int served) {
+        if (head == null || head.getMethod() == null) {
+            return (handle400(id, true));
+        }
+        if (head.getHeader("Transfer-Encoding") != null) {
+            // request bodies are never read, one of unknown length would be parsed as the next request
+            return (handle501(id));
+        }
+        // debug messages are only built for sampled requests
+        boolean trace = ServerLog.isSampled(id, served);
+        // a request body is not read either, so the connection cannot be used for another request after it
+        boolean close = closeClientSocket(head, id, trace) || hasRequestBody(head) || served + 1 >= keepAliveMaxRequests;
+        boolean headOnly = "HEAD".equals(head.getMethod());
+        if (!headOnly && !"GET".equals(head.getMethod())) {
+            return (handle405(id, true));
+        }
+        HttpResponse response;
+        if (ServerMetrics.PATH.equals(head.getUri()) && client.isLoopbackAddress()) {
+            // the statistics list the clients, they are only served to the app itself
+            response = handleStats(close, id, trace);
+        } else if (head.getUri().endsWith(HlsPackager.PLAYLIST_SUFFIX)) {
+            response = handlePlaylist(head, close, id, trace);
+        } else if (head.getUri().endsWith(HlsPackager.INIT_SUFFIX) || head.getUri().endsWith(HlsPackager.SEGMENT_SUFFIX)) {
+            response = handleSegment(head, close, id, trace);
+        } else {
+            response = handleDownload(head, headOnly, close, id, trace);
+        }
+        if (headOnly && response.getBody() != null) {
+            // same headers as for GET, but no body
+            response.getBody().close();
+            response.setBody(null);
+        }
+        return (response);
+    }
+
+    /**
+     * Return the server statistics.
+     *
+     * @return The statistics
+     */
+    public ServerMetrics getMetrics() {
+        return (metrics);
+    }
+
+    /**
+     * Return how long an idle persistent connection is kept open.
+     *
+     * @return The timeout in milliseconds
+     */
+    public int getKeepAliveTimeout() {
+        return (keepAliveTimeout);
+    }
+
+    /**
+     * Set how long an idle persistent connection is kept open.
+     *
+     * @param keepAliveTimeout The timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.keepAliveHeader = createKeepAliveHeader();
+    }
+
+    /**
+     * Set the maximum number of requests served on one persistent connection.
+     *
+     * @param keepAliveMaxRequests The number of requests
+     */
+    public void setKeepAliveMaxRequests(int keepAliveMaxRequests) {
+        this.keepAliveMaxRequests = keepAliveMaxRequests;
+        this.keepAliveHeader = createKeepAliveHeader();
+    }
+
+    /**
+     * Create a response with no body.
+     *
+     * @param status The status code
+     * @param reason The reason phrase
+     * @param close Should the connection be closed after the response?
+     * @return The response
+     */
+    public HttpResponse handleEmpty(int status, String reason, boolean close) {
+        HttpResponse response = new HttpResponse(status, reason);
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.CONTENT_LENGTH_ZERO);
+        setConnectionHeaders(response, close);
+        return (response);
+    }
+
+    /**
+     * Create the response for a request head the parser rejected. The connection is always closed, since the rest of the
+     * request cannot be trusted.
+     *
+     * @param status The status code reported by the parser (400, 414 or 431)
+     * @param id The connection id (used in logging)
+     * @return The response to send
+     */
+    public HttpResponse handleInvalid(int status, int id) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP " + status);
+        if (status == 414) {
+            return (handleEmpty(414, "URI Too Long", true));
+        }
+        if (status == 431) {
+            return (handleEmpty(431, "Request Header Fields Too Large", true));
+        }
+        return (handleEmpty(400, "Bad Request", true));
+    }
+
+    /**
+     * Create the response for a connection the server has no capacity to serve. The connection is always closed.
+     *
+     * @param id The connection id (used in logging)
+     * @return The response to send
+     */
+    public HttpResponse handleUnavailable(int id) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 503");
+        HttpResponse response = handleEmpty(503, "Service Unavailable", true);
+        response.addHeader(HttpHeader.RETRY_AFTER);
+        return (response);
+    }
+
+    private HttpResponse handleStats(boolean close, int id, boolean trace) {
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] serving statistics");
+        }
+        byte[] json;
+        try {
+            json = metrics.toJson().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return (handle500(id));
+        }
+        HttpResponse response = new HttpResponse(200, "OK");
+        // reading the statistics does not change them
+        response.setCounted(false);
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.CONTENT_TYPE_JSON);
+        response.addHeader(HttpHeader.CACHE_CONTROL_NO_STORE);
+        response.addHeader("Content-Length", String.valueOf(json.length));
+        setConnectionHeaders(response, close);
+        response.setBody(new BufferBody(ByteBuffer.wrap(json)));
+        return (response);
+    }
+
+    private HttpResponse handlePlaylist(HttpHead head, boolean close, int id, boolean trace) {
+        String uri = head.getUri();
+        MediaEntry media = mediaRegistry.lookup(uri.substring(0, uri.length() - HlsPackager.PLAYLIST_SUFFIX.length()));
+        if (media == null || !"video/mp4".equals(media.getContentType())) {
+            ServerLog.w(TAG, "[" + id + "] no published video: " + uri);
+            return (handle404(id, close));
+        }
+        CachedFile file = mediaRegistry.getFile(media);
+        if (!file.exists()) {
+            ServerLog.w(TAG, "[" + id + "] file not found: " + media.getPath());
+            return (handle404(id, close));
+        }
+        if (!file.canRead()) {
+            ServerLog.w(TAG, "[" + id + "] cannot read file: " + media.getPath());
+            return (handle403(id, close));
+        }
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] serving playlist of " + media.getPath());
+        }
+        byte[] playlist;
+        try {
+            playlist = hlsPackager.getPlaylist(file, media).getBytes("UTF-8");
+        } catch (IOException e) {
+            // not an mp4 file that can be segmented, the app casts the file itself for these
+            ServerLog.w(TAG, "[" + id + "] cannot package " + media.getPath() + ": " + e.getMessage());
+            return (handle404(id, close));
+        }
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.CONTENT_TYPE_M3U8);
+        response.addHeader(HttpHeader.CACHE_CONTROL);
+        response.addHeader("Content-Length", String.valueOf(playlist.length));
+        setConnectionHeaders(response, close);
+        response.setBody(new BufferBody(ByteBuffer.wrap(playlist)));
+        return (response);
+    }
+
+    private HttpResponse handleSegment(HttpHead head, boolean close, int id, boolean trace) {
+        // the initialization segment is <file>.init.mp4, media segments <file>.<n>.m4s
+        String uri = head.getUri();
+        String mediaUri;
+        int segment = -1;
+        if (uri.endsWith(HlsPackager.INIT_SUFFIX)) {
+            mediaUri = uri.substring(0, uri.length() - HlsPackager.INIT_SUFFIX.length());
+        } else {
+            String s = uri.substring(0, uri.length() - HlsPackager.SEGMENT_SUFFIX.length());
+            int i = s.lastIndexOf('.');
+            try {
+                segment = Integer.parseInt(s.substring(i + 1));
+            } catch (NumberFormatException e) {
+                ServerLog.w(TAG, "[" + id + "] invalid segment: " + uri);
+                return (handle404(id, close));
+            }
+            mediaUri = s.substring(0, Math.max(0, i));
+        }
+        MediaEntry media = mediaRegistry.lookup(mediaUri);
+        if (media == null || !"video/mp4".equals(media.getContentType())) {
+            ServerLog.w(TAG, "[" + id + "] no published video: " + uri);
+            return (handle404(id, close));
+        }
+        CachedFile file = mediaRegistry.getFile(media);
+        if (!file.exists()) {
+            ServerLog.w(TAG, "[" + id + "] file not found: " + media.getPath());
+            return (handle404(id, close));
+        }
+        if (!file.canRead()) {
+            ServerLog.w(TAG, "[" + id + "] cannot read file: " + media.getPath());
+            return (handle403(id, close));
+        }
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] serving " + (segment == -1 ? "initialization segment" : "segment " + segment) + " of " + media.getPath());
+        }
+        ResponseBody body;
+        try {
+            body = segment == -1 ? hlsPackager.createInitBody(file) : hlsPackager.createSegmentBody(file, segment);
+        } catch (IOException e) {
+            ServerLog.w(TAG, "[" + id + "] cannot package " + media.getPath() + ": " + e.getMessage());
+            return (handle404(id, close));
+        }
+        if (body == null) {
+            ServerLog.w(TAG, "[" + id + "] no such segment: " + uri);
+            return (handle404(id, close));
+        }
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.setPriority(BandwidthShaper.Priority.PLAYBACK);
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.CONTENT_TYPE_MP4);
+        response.addHeader(HttpHeader.CACHE_CONTROL);
+        response.addHeader("Content-Length", String.valueOf(body.getLength()));
+        setConnectionHeaders(response, close);
+        response.setBody(body);
+        return (response);
+    }
+
+    private HttpResponse handle400(int id, boolean close) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 400");
+        return (handleEmpty(400, "Bad Request", close));
+    }
+
+    private HttpResponse handle403(int id, boolean close) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 403");
+        return (handleEmpty(403, "Forbidden", close));
+    }
+
+    private HttpResponse handle404(int id, boolean close) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 404");
+        return (handleEmpty(404, "Not Found", close));
+    }
+
+    private HttpResponse handle405(int id, boolean close) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 405");
+        HttpResponse response = handleEmpty(405, "Method Not Allowed", close);
+        response.addHeader(HttpHeader.ALLOW);
+        return (response);
+    }
+
+    private HttpResponse handle501(int id) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 501");
+        return (handleEmpty(501, "Not Implemented", true));
+    }
+
+    private HttpResponse handle304(CachedFile file, int id, boolean close, boolean trace) {
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] responding HTTP 304");
+        }
+        HttpResponse response = new HttpResponse(304, "Not Modified");
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(file.getETagHeader());
+        response.addHeader(file.getLastModifiedHeader());
+        response.addHeader(HttpHeader.CACHE_CONTROL);
+        setConnectionHeaders(response, close);
+        return (response);
+    }
+
+    private HttpResponse handle416(long size, int id, boolean close) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 416");
+        HttpResponse response = handleEmpty(416, "Requested Range Not Satisfiable", close);
+        response.addHeader("Content-Range", "bytes */" + size);
+        return (response);
+    }
+
+    private HttpResponse handle500(int id) {
+        ServerLog.w(TAG, "[" + id + "] responding HTTP 500");
+        return (handleEmpty(500, "Internal Server Error", true));
+    }
+
+    private HttpResponse handleDownload(HttpHead head, boolean headOnly, boolean close, int id, boolean trace) {
+        // only published files are served, the uri is an opaque token
+        MediaEntry media = mediaRegistry.lookup(head.getUri());
+        if (media == null) {
+            ServerLog.w(TAG, "[" + id + "] no published file: " + head.getUri());
+            return (handle404(id, close));
+        }
+        String path = media.getPath();
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] resolved " + media.getToken() + " to " + path);
+        }
+        CachedFile file = mediaRegistry.getFile(media);
+        if (!file.exists()) {
+            ServerLog.w(TAG, "[" + id + "] file not found: " + path);
+            return (handle404(id, close));
+        }
+        if (!file.canRead()) {
+            ServerLog.w(TAG, "[" + id + "] cannot read file: " + path);
+            return (handle403(id, close));
+        }
+        // a recording in progress is followed as it grows
+        GrowingFile growing = growingFiles.acquire(file);
+        if (growing != null) {
+            return (handleGrowing(head, media, file, growing, close, id, trace));
+        }
+        long size = file.length();
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] found file size " + size);
+        }
+        if (isNotModified(head, file)) {
+            return (handle304(file, id, close, trace));
+        }
+        List<long[]> ranges = null;
+        String range = head.getHeader("Range");
+        if (range != null && !isRangeApplicable(head, file)) {
+            if (trace) {
+                ServerLog.d(TAG, "[" + id + "] if-range validator does not match, sending full file");
+            }
+            range = null;
+        }
+        if (range != null) {
+            try {
+                ranges = parseRangeRequestHeader(range, size);
+            } catch (NumberFormatException e) {
+                ranges = null;
+            }
+            if (ranges == null) {
+                ServerLog.w(TAG, "[" + id + "] invalid range: " + range);
+            } else if (ranges.isEmpty()) {
+                ServerLog.w(TAG, "[" + id + "] unsatisfiable range: " + range);
+                return (handle416(size, id, close));
+            }
+        }
+        // videos with the moov box at the end are served as if it was at the start
+        FastStartView view = "video/mp4".equals(media.getContentType()) ? fastStartCache.getView(file) : null;
+        if (trace && view != null) {
+            ServerLog.d(TAG, "[" + id + "] serving faststart layout");
+        }
+        // small files are sent from memory
+        ByteBuffer content = view == null ? hotCache.get(file) : null;
+        if (trace && content != null) {
+            ServerLog.d(TAG, "[" + id + "] serving from memory");
+        }
+        // a HEAD request only needs the lengths, the file is not opened or read ahead
+        HttpResponse response;
+        ResponseBody body = null;
+        try {
+            if (ranges != null && ranges.size() == 1) {
+                long start = ranges.get(0)[0];
+                long end = ranges.get(0)[1];
+                if (trace) {
+                    ServerLog.d(TAG, "[" + id + "] detected range download: start = " + start + ", end = " + end);
+                }
+                response = new HttpResponse(206, "Partial Content");
+                // receivers play from open ended ranges, bounded ranges are probes or prefetch
+                response.setPriority(end == size - 1 ? BandwidthShaper.Priority.PLAYBACK : BandwidthShaper.Priority.PREFETCH);
+                if (!headOnly) {
+                    body = createFileBody(file, view, content, start, end - start + 1, readAhead);
+                    onReadAheadRequest(file, view, content, start, end);
+                }
+                setContentHeaders(response, file, end - start + 1, media.getContentTypeHeader());
+                response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            } else if (ranges != null) {
+                if (trace) {
+                    ServerLog.d(TAG, "[" + id + "] detected multi-range download: " + ranges.size() + " ranges");
+                }
+                response = new HttpResponse(206, "Partial Content");
+                long length;
+                if (headOnly) {
+                    length = getMultipartLength(ranges, size, media.getContentType());
+                } else {
+                    body = createMultipartBody(file, view, content, ranges, size, media.getContentType());
+                    length = body.getLength();
+                }
+                setContentHeaders(response, file, length, MULTIPART_CONTENT_TYPE);
+            } else {
+                if (trace) {
+                    ServerLog.d(TAG, "[" + id + "] detected full download");
+                }
+                response = new HttpResponse(200, "OK");
+                response.setPriority(BandwidthShaper.Priority.PLAYBACK);
+                if (!headOnly) {
+                    body = createFileBody(file, view, content, 0, size, readAhead);
+                    onReadAheadRequest(file, view, content, 0, size - 1);
+                }
+                setContentHeaders(response, file, size, media.getContentTypeHeader());
+            }
+        } catch (IOException e) {
+            ServerLog.w(TAG, "[" + id + "] could not open file: " + e.getMessage(), e);
+            return (handle500(id));
+        }
+        setConnectionHeaders(response, close);
+        response.addHeader(HttpHeader.CACHE_CONTROL);
+        response.setBody(body);
+        if (trace) {
+            for (HttpHeader header : response.getHeaders()) {
+                ServerLog.d(TAG, "[" + id + "] > " + header.getName() + ": " + header.getValue());
+            }
+        }
+        return (response);
+    }
+
+    private HttpResponse handleGrowing(HttpHead head, MediaEntry media, CachedFile file, GrowingFile growing, boolean close, int id, boolean trace) {
+        // the size, modification time and entity tag change with every write, so there are no validators
+        long size = growing.getLength();
+        List<long[]> ranges = null;
+        String range = head.getHeader("Range");
+        long[] requested = parseGrowingRange(range);
+        if (requested != null && requested[0] >= size) {
+            // receivers ask for the rest as soon as they have read what was written, give the writer a moment
+            size = awaitLength(growing, requested[0], GROWING_RANGE_WAIT);
+        }
+        if (range != null && !(requested != null && requested[0] == 0 && requested[1] == -1)) {
+            // a range from the start is the whole file, which is followed below: a 206 needs the last byte of the range
+            try {
+                ranges = parseRangeRequestHeader(range, size);
+            } catch (NumberFormatException e) {
+                ranges = null;
+            }
+        }
+        // HTTP/1.0 clients do not know the chunked coding, the end of the body is the end of the connection
+        boolean chunked = !"HTTP/1.0".equals(head.getProtocol());
+        HttpResponse response;
+        try {
+            if (ranges != null && ranges.size() == 1) {
+                // the data written so far, the receiver asks for the rest with its next range
+                growingFiles.release(growing);
+                long start = ranges.get(0)[0];
+                long end = ranges.get(0)[1];
+                if (trace) {
+                    ServerLog.d(TAG, "[" + id + "] range of a growing file: start = " + start + ", end = " + end);
+                }
+                response = new HttpResponse(206, "Partial Content");
+                response.setPriority(end == size - 1 ? BandwidthShaper.Priority.PLAYBACK : BandwidthShaper.Priority.PREFETCH);
+                setGrowingHeaders(response, media.getContentTypeHeader());
+                response.addHeader("Content-Length", Long.toString(end - start + 1));
+                response.addHeader("Content-Range", "bytes " + start + "-" + end + "/*");
+                response.setBody(new FileBody(file, start, end - start + 1));
+            } else if (ranges != null && ranges.isEmpty()) {
+                growingFiles.release(growing);
+                ServerLog.w(TAG, "[" + id + "] range beyond the data written so far: " + range);
+                return (handle416(size, id, close));
+            } else {
+                // no range, or from the start (multiple ranges are ignored): follow the file until the writer is done
+                if (trace) {
+                    ServerLog.d(TAG, "[" + id + "] following growing file from the start, " + size + " bytes written so far");
+                }
+                close = close || !chunked;
+                response = new HttpResponse(200, "OK");
+                response.setPriority(BandwidthShaper.Priority.PLAYBACK);
+                setGrowingHeaders(response, media.getContentTypeHeader());
+                if (chunked) {
+                    response.addHeader(HttpHeader.TRANSFER_ENCODING_CHUNKED);
+                }
+                response.setBody(new GrowingFileBody(file, growing, growingFiles, 0, chunked));
+            }
+        } catch (IOException e) {
+            growingFiles.release(growing);
+            ServerLog.w(TAG, "[" + id + "] could not open file: " + e.getMessage(), e);
+            return (handle500(id));
+        }
+        setConnectionHeaders(response, close);
+        return (response);
+    }
+
+    private static long awaitLength(GrowingFile growing, long length, long timeout) {
+        long until = System.currentTimeMillis() + timeout;
+        try {
+            while (true) {
+                // the version is read before the length, a write in between is not missed
+                long seen = growing.getVersion();
+                long size = growing.getLength();
+                long wait = until - System.currentTimeMillis();
+                if (size > length || growing.isFinished() || wait <= 0) {
+                    return (size);
+                }
+                growing.await(seen, wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return (growing.getLength());
+        }
+    }
+
+    private void setGrowingHeaders(HttpResponse response, HttpHeader contentType) {
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.ACCEPT_RANGES);
+        response.addHeader(HttpHeader.CACHE_CONTROL_NO_STORE);
+        response.addHeader(contentType);
+    }
+
+    private void setContentHeaders(HttpResponse response, CachedFile file, long length, HttpHeader contentType) {
+        response.addHeader(HttpDate.getDateHeader());
+        response.addHeader(file.getLastModifiedHeader());
+        response.addHeader(file.getETagHeader());
+        response.addHeader(HttpHeader.SERVER);
+        response.addHeader(HttpHeader.ACCEPT_RANGES);
+        response.addHeader("Content-Length", Long.toString(length));
+        response.addHeader(contentType);
+    }
+
+    private ResponseBody createFileBody(CachedFile file, FastStartView view, ByteBuffer content, long start, long length, ReadAhead readAhead) throws IOException {
+        if (content != null) {
+            ByteBuffer part = content.duplicate();
+            part.limit((int) (start + length));
+            part.position((int) start);
+            return (new BufferBody(part));
+        }
+        if (view != null) {
+            return (view.createBody(file, start, length, readAhead));
+        }
+        return (new FileBody(file, start, length, readAhead));
+    }
+
+    private void onReadAheadRequest(CachedFile file, FastStartView view, ByteBuffer content, long start, long end) {
+        if (content != null) {
+            // nothing to read from storage
+            return;
+        }
+        if (view != null) {
+            // the read-ahead works on positions in the file
+            start = view.toFilePosition(start);
+            end = view.toFilePosition(end);
+        }
+        readAhead.onRequest(file, start, end);
+    }
+
+    private ResponseBody createMultipartBody(CachedFile file, FastStartView view, ByteBuffer content, List<long[]> ranges, long size, String contentType) throws IOException {
+        CompositeBody body = new CompositeBody();
+        try {
+            for (long[] range : ranges) {
+                body.add(new BufferBody(ByteBuffer.wrap(getPartHeader(range, size, contentType))));
+                body.add(createFileBody(file, view, content, range[0], range[1] - range[0] + 1, null));
+            }
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        body.add(new BufferBody(ByteBuffer.wrap(getMultipartEnd())));
+        return (body);
+    }
+
+    private long getMultipartLength(List<long[]> ranges, long size, String contentType) throws UnsupportedEncodingException {
+        long length = getMultipartEnd().length;
+        for (long[] range : ranges) {
+            length += getPartHeader(range, size, contentType).length + range[1] - range[0] + 1;
+        }
+        return (length);
+    }
+
+    private byte[] getPartHeader(long[] range, long size, String contentType) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\r\n--").append(BOUNDARY).append("\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        sb.append("Content-Range: bytes ").append(range[0]).append("-").append(range[1]).append("/").append(size).append("\r\n");
+        sb.append("\r\n");
+        return (sb.toString().getBytes("UTF-8"));
+    }
+
+    private byte[] getMultipartEnd() throws UnsupportedEncodingException {
+        return (("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+    }
+
+    private void setConnectionHeaders(HttpResponse response, boolean close) {
+        if (close) {
+            response.addHeader(HttpHeader.CONNECTION_CLOSE);
+        } else {
+            response.addHeader(HttpHeader.CONNECTION_KEEP_ALIVE);
+            response.addHeader(keepAliveHeader);
+        }
+        response.setClose(close);
+    }
+
+    private HttpHeader createKeepAliveHeader() {
+        return (new HttpHeader("Keep-Alive", "timeout=" + (keepAliveTimeout / 1000) + ", max=" + keepAliveMaxRequests, true));
+    }
+
+    private boolean isNotModified(HttpHead head, CachedFile file) {
+        String ifNoneMatch = head.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since (weak comparison)
+            String etag = file.getETag();
+            for (String candidate : ifNoneMatch.split(",")) {
+                String c = candidate.trim();
+                if (c.startsWith("W/")) {
+                    c = c.substring(2);
+                }
+                if ("*".equals(c) || etag.equals(c)) {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+        String ifModifiedSince = head.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince);
+            return (since != -1 && file.lastModified() / 1000 <= since / 1000);
+        }
+        return (false);
+    }
+
+    private boolean isRangeApplicable(HttpHead head, CachedFile file) {
+        String ifRange = head.getHeader("If-Range");
+        if (ifRange == null) {
+            return (true);
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // entity tag, strong comparison (weak tags never match)
+            return (ifRange.equals(file.getETag()));
+        }
+        // date, must be an exact match of the last modification time
+        long date = HttpDate.parse(ifRange);
+        return (date != -1 && date / 1000 == file.lastModified() / 1000);
+    }
+
+    private boolean hasRequestBody(HttpHead head) {
+        String length = head.getHeader("Content-Length");
+        return (length != null && !"0".equals(length.trim()));
+    }
+
+    private boolean closeClientSocket(HttpHead head, int id, boolean trace) {
+        if (head == null) {
+            return (true);
+        }
+        boolean result;
+        if ("HTTP/1.1".equals(head.getProtocol())) {
+            // persistent unless the client asks to close (RFC 7230 6.3)
+            result = head.hasHeaderValue("Connection", "close");
+        } else {
+            // HTTP/1.0 only keeps the connection open when asked to
+            result = !head.hasHeaderValue("Connection", "keep-alive");
+        }
+        if (trace) {
+            ServerLog.d(TAG, "[" + id + "] close client socket: " + result);
+        }
+        return (result);
+    }
+
+    /**
+     * Parse a Range request header for a file being written, which has no size yet.
+     *
+     * @param range The header value
+     * @return The first and the last byte (-1 if the range is open ended), or null if the header is not a single range from a
+     *         position (suffix and multiple ranges are answered from the data written so far)
+     */
+    private static long[] parseGrowingRange(String range) {
+        if (range == null || !range.toLowerCase().startsWith("bytes=") || range.indexOf(',') != -1) {
+            return (null);
+        }
+        String s = range.substring(6).trim();
+        int i = s.indexOf("-");
+        if (i <= 0) {
+            return (null);
+        }
+        try {
+            long start = Long.parseLong(s.substring(0, i).trim());
+            long end = (i == s.length() - 1 ? -1 : Long.parseLong(s.substring(i + 1).trim()));
+            if (start < 0 || (end != -1 && end < start)) {
+                return (null);
+            }
+            return (new long[]{start, end});
+        } catch (NumberFormatException e) {
+            return (null);
+        }
+    }
+
+    /**
+     * Parse a Range request header (RFC 7233). The ranges are clamped to the file size, sorted, and ranges that overlap or are
+     * separated by a gap smaller than the multipart overhead are coalesced.
+     *
+     * @param range The header value
+     * @param fileSize The size of the file
+     * @return The ranges, an empty list if none of them can be satisfied, or null if the header is invalid (and should be ignored)
+     */
+    private List<long[]> parseRangeRequestHeader(String range, long fileSize) {
+        if (range == null || !range.toLowerCase().startsWith("bytes=")) {
+            return (null);
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return (null);
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (String spec : specs) {
+            String s = spec.trim();
+            int i = s.indexOf("-");
+            long start;
+            long end;
+            if (i == -1) {
+                return (null);
+            } else if (i == 0) {
+                long suffix = Long.parseLong(s.substring(1));
+                if (suffix == 0) {
+                    continue;
+                }
+                start = Math.max(0, fileSize - suffix);
+                end = fileSize - 1;
+            } else if (i == s.length() - 1) {
+                start = Long.parseLong(s.substring(0, i));
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(s.substring(0, i));
+                end = Long.parseLong(s.substring(i + 1));
+                if (end < start) {
+                    return (null);
+                }
+            }
+            if (start < 0) {
+                return (null);
+            }
+            if (start >= fileSize) {
+                // not satisfiable, skip
+                continue;
+            }
+            ranges.add(new long[]{start, Math.min(end, fileSize - 1)});
+        }
+        if (ranges.size() <= 1) {
+            return (ranges);
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return (lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1));
+            }
+        });
+        List<long[]> coalesced = new ArrayList<long[]>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1 + COALESCE_GAP) {
+                current[1] = Math.max(current[1], next[1]);
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return (coalesced);
+    }
+
+}
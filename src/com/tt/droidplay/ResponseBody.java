@@ -0,0 +1,54 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Interface used to represent the body of a HTTP response. The body is written incrementally, so the same implementation can be
+ * used both with blocking and non-blocking channels.
+ *
+ * @author Tuomas Tikka
+ */
+public interface ResponseBody {
+
+	/**
+	 * Return the length of the body.
+	 *
+	 * @return The number of bytes in the body, or -1 if it is not known in advance (a file still being written)
+	 */
+	public long getLength();
+
+	/**
+	 * Write as much of the remaining body as the channel accepts, but no more than the limit.
+	 *
+	 * @param channel The channel to write to
+	 * @param limit The maximum number of bytes to write
+	 * @return The number of bytes written (may be zero for non-blocking channels)
+	 * @throws IOException If there are any problems writing the body
+	 */
+	public long writeTo(WritableByteChannel channel, long limit) throws IOException;
+
+	/**
+	 * Move the start of the remaining body into a buffer, so it can be sent together with the head in one gathering write. The
+	 * bytes moved count as written.
+	 *
+	 * @param buffer The buffer to fill (up to its limit)
+	 * @return The number of bytes moved
+	 * @throws IOException If there are any problems reading the body
+	 */
+	public int read(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Has the whole body been written?
+	 *
+	 * @return True if there is nothing left to write
+	 */
+	public boolean isComplete();
+
+	/**
+	 * Release any resources held by the body.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,563 @@
+package com.tt.droidplay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that implements a non-blocking engine for the HTTP server. Accepting connections, reading request heads and writing
+ * response bodies are multiplexed over a small, fixed set of event loop threads, so an idle or slow receiver does not hold a
+ * thread of its own. Creating a response (opening the file, parsing its boxes) and reading its first chunk touch the disk, so
+ * they are done by a small pool of handler threads, which hand the response back to the event loop of the connection.
+ *
+ * @author Tuomas Tikka
+ */
+public class SelectorEngine {
+
+	private static final String TAG = "SelectorEngine";
+
+	// the longest wait for a file being written before checking whether it is finished (milliseconds)
+	private static final long GROWING_FILE_WAIT = 1000;
+
+	// the number of threads creating responses
+	private static final int HANDLER_THREADS = 4;
+
+	// the handler creating responses for requests
+	private RequestHandler handler;
+
+	// the bandwidth shaper
+	private BandwidthShaper shaper;
+
+	// the socket options and the write timeout
+	private SocketTuner tuner;
+
+	// the server socket channel
+	private ServerSocketChannel serverChannel;
+
+	// the event loops
+	private EventLoop[] loops;
+
+	// the threads creating responses
+	private ExecutorService handlers;
+
+	// the next event loop to assign a connection to
+	private int next = 0;
+
+	// the id of the next connection
+	private int id = 0;
+
+	/**
+	 * Initialize the engine.
+	 *
+	 * @param handler The handler creating responses for requests
+	 * @param shaper The bandwidth shaper
+	 * @param tuner The socket options and the write timeout
+	 * @param threads The number of event loop threads
+	 */
+	public SelectorEngine(RequestHandler handler, BandwidthShaper shaper, SocketTuner tuner, int threads) {
+		this.handler = handler;
+		this.shaper = shaper;
+		this.tuner = tuner;
+		this.loops = new EventLoop[Math.max(1, threads)];
+	}
+
+	/**
+	 * Start the engine.
+	 *
+	 * @param port The port number to listen on
+	 * @throws IOException If the server socket could not be opened
+	 */
+	public void start(int port) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		handlers = Executors.newFixedThreadPool(HANDLER_THREADS, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "http-handler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return (thread);
+			}
+		});
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+		}
+		// the first event loop accepts new connections
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Stop the engine and close all connections.
+	 */
+	public void stop() {
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+		if (handlers != null) {
+			handlers.shutdownNow();
+			handlers = null;
+		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (Exception e) {
+				ServerLog.w(TAG, "could not close server channel: " + e.getMessage());
+			}
+			serverChannel = null;
+		}
+	}
+
+	//
+	// Private
+	//
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			EventLoop loop = loops[next];
+			next = (next + 1) % loops.length;
+			loop.assign(new Connection(channel, id++));
+		}
+	}
+
+	private class EventLoop implements Runnable {
+
+		private Selector selector;
+
+		private Thread thread;
+
+		private Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+
+		// connections waiting for their throttle or for a file being written (only touched by the event loop thread)
+		private List<Connection> paused = new ArrayList<Connection>();
+
+		// paused connections whose file has grown, to be resumed by the event loop thread
+		private Queue<Connection> woken = new ConcurrentLinkedQueue<Connection>();
+
+		// connections whose response a handler thread has created, to be sent by the event loop thread
+		private Queue<Connection> handled = new ConcurrentLinkedQueue<Connection>();
+
+		private volatile boolean running = true;
+
+		public EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "http-loop-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		public void assign(Connection connection) {
+			pending.add(connection);
+			selector.wakeup();
+		}
+
+		public void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void wake(Connection connection) {
+			woken.add(connection);
+			selector.wakeup();
+		}
+
+		public void deliver(Connection connection) {
+			handled.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			ServerLog.d(TAG, "event loop " + thread.getName() + " started");
+			long lastSweep = System.currentTimeMillis();
+			try {
+				while (running) {
+					selector.select(getSelectTimeout());
+					resumePaused();
+					Connection connection;
+					while ((connection = pending.poll()) != null) {
+						connection.register(this);
+					}
+					while ((connection = handled.poll()) != null) {
+						connection.onHandled();
+					}
+					Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+					while (i.hasNext()) {
+						SelectionKey key = i.next();
+						i.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							try {
+								accept();
+							} catch (IOException e) {
+								ServerLog.w(TAG, "error accepting client connection: " + e.getMessage());
+							}
+						} else {
+							((Connection) key.attachment()).process(key);
+						}
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastSweep >= 1000) {
+						sweep(now);
+						lastSweep = now;
+					}
+				}
+			} catch (Exception e) {
+				if (running) {
+					ServerLog.e(TAG, "error in event loop " + thread.getName() + ": " + e.getMessage(), e);
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				Connection connection;
+				while ((connection = handled.poll()) != null) {
+					connection.onHandled();
+				}
+				try {
+					selector.close();
+				} catch (Exception e) {
+					ServerLog.w(TAG, "could not close selector: " + e.getMessage());
+				}
+				ServerLog.d(TAG, "event loop " + thread.getName() + " stopped");
+			}
+		}
+
+		public void pause(Connection connection) {
+			paused.add(connection);
+		}
+
+		private long getSelectTimeout() {
+			long timeout = 1000;
+			long now = System.currentTimeMillis();
+			for (Connection connection : paused) {
+				timeout = Math.min(timeout, Math.max(1, connection.resumeAt - now));
+			}
+			return (timeout);
+		}
+
+		private void resumePaused() {
+			List<Connection> due = new ArrayList<Connection>();
+			Connection connection;
+			while ((connection = woken.poll()) != null) {
+				// a connection woken after it was resumed on time is no longer paused
+				if (paused.remove(connection)) {
+					due.add(connection);
+				}
+			}
+			long now = System.currentTimeMillis();
+			Iterator<Connection> i = paused.iterator();
+			while (i.hasNext()) {
+				connection = i.next();
+				if (connection.resumeAt <= now) {
+					i.remove();
+					due.add(connection);
+				}
+			}
+			for (Connection c : due) {
+				c.resume();
+			}
+		}
+
+		private void sweep(long now) {
+			// close persistent connections that have been waiting too long for the next request, and connections whose client
+			// stopped reading the response
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					Connection connection = (Connection) key.attachment();
+					if (connection.isIdle(now, handler.getKeepAliveTimeout())) {
+						if (ServerLog.isSampled(connection.id)) {
+							ServerLog.d(TAG, "[" + connection.id + "] idle connection timed out");
+						}
+						connection.close();
+					} else if (connection.isStalled(now, tuner.getWriteTimeout())) {
+						ServerLog.w(TAG, "[" + connection.id + "] closing client connection, no progress writing for " + (now - connection.lastActivity) + " ms");
+						tuner.onWriteTimeout();
+						connection.close();
+					}
+				}
+			}
+		}
+
+	}
+
+	private class Connection {
+
+		private SocketChannel channel;
+
+		private int id;
+
+		private SelectionKey key;
+
+		private EventLoop loop;
+
+		private ConnectionThrottle throttle;
+
+		private ConnectionStats stats;
+
+		private long resumeAt;
+
+		// resumes the connection when the file it is sending grows
+		private Runnable wakeup = new Runnable() {
+			@Override
+			public void run() {
+				loop.wake(Connection.this);
+			}
+		};
+
+		private HttpRequestParser parser = new HttpRequestParser();
+
+		private ByteBuffer headBuffer = ByteBuffer.allocate(4 * 1024);
+
+		private ByteBuffer chunkBuffer = ByteBuffer.allocateDirect(SocketTuner.FIRST_CHUNK_SIZE);
+
+		private HttpResponse response;
+
+		// the response created by a handler thread (handed over through the handled queue of the event loop), or null if it failed
+		private HttpResponse ready;
+
+		// is a handler thread creating the response?
+		private boolean handling = false;
+
+		private int served = 0;
+
+		// are debug messages logged for the current request?
+		private boolean trace = false;
+
+		private long lastActivity = System.currentTimeMillis();
+
+		// when the current response started
+		private long responseStarted;
+
+		public Connection(SocketChannel channel, int id) {
+			this.channel = channel;
+			this.id = id;
+		}
+
+		public boolean isIdle(long now, int timeout) {
+			return (response == null && !handling && now - lastActivity >= timeout);
+		}
+
+		public boolean isStalled(long now, int timeout) {
+			return (response != null && now - lastActivity >= timeout);
+		}
+
+		public void register(EventLoop loop) {
+			this.loop = loop;
+			try {
+				key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+				throttle = shaper.register(channel.socket().getInetAddress().getHostAddress());
+				stats = handler.getMetrics().onConnectionOpened(id, channel.socket().getInetAddress().getHostAddress());
+				stats.setSendBuffer(tuner.configure(channel.socket()));
+				if (ServerLog.isSampled(id)) {
+					ServerLog.d(TAG, "[" + id + "] client connection from " + channel.socket().getInetAddress().getHostAddress());
+				}
+			} catch (IOException e) {
+				ServerLog.w(TAG, "[" + id + "] could not register client connection: " + e.getMessage());
+				close();
+			}
+		}
+
+		public void process(SelectionKey key) {
+			lastActivity = System.currentTimeMillis();
+			try {
+				if (key.isReadable()) {
+					read();
+				} else if (key.isWritable()) {
+					write();
+				}
+			} catch (Exception e) {
+				ServerLog.w(TAG, "[" + id + "] error serving client: " + e.getMessage());
+				close();
+			}
+		}
+
+		private void read() throws IOException {
+			int i = channel.read(parser.getBuffer());
+			if (i == -1) {
+				close();
+				return;
+			}
+			processHead();
+		}
+
+		private void processHead() throws IOException {
+			HttpRequestParser.State state = parser.parse();
+			if (state == HttpRequestParser.State.NEED_MORE) {
+				return;
+			}
+			stats.onRequest(state == HttpRequestParser.State.COMPLETE ? parser.getHead() : null);
+			trace = ServerLog.isSampled(id, served);
+			// nothing is read until the response has been created, the head stays valid and pipelined bytes wait in the parser
+			key.interestOps(0);
+			handling = true;
+			final boolean complete = state == HttpRequestParser.State.COMPLETE;
+			final int request = complete ? served++ : served;
+			handlers.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle(complete, request);
+				}
+			});
+		}
+
+		private void handle(boolean complete, int request) {
+			HttpResponse response = null;
+			try {
+				if (complete) {
+					response = handler.handle(parser.getHead(), channel.socket().getInetAddress(), id, request);
+				} else {
+					response = handler.handleInvalid(parser.getErrorStatus(), id);
+				}
+				response.encodeHead(headBuffer);
+				response.readFirstChunk(chunkBuffer);
+			} catch (Exception e) {
+				ServerLog.w(TAG, "[" + id + "] error creating response: " + e.getMessage());
+				if (response != null) {
+					response.release();
+					response = null;
+				}
+			}
+			ready = response;
+			loop.deliver(this);
+		}
+
+		public void onHandled() {
+			HttpResponse response = ready;
+			ready = null;
+			handling = false;
+			if (!key.isValid()) {
+				// closed while the response was created
+				if (response != null) {
+					response.release();
+				}
+				return;
+			}
+			if (response == null) {
+				close();
+				return;
+			}
+			// keep any pipelined bytes for the next request
+			parser.next();
+			lastActivity = System.currentTimeMillis();
+			try {
+				respond(response);
+			} catch (Exception e) {
+				ServerLog.w(TAG, "[" + id + "] error serving client: " + e.getMessage());
+				close();
+			}
+		}
+
+		private void respond(HttpResponse response) throws IOException {
+			this.response = response;
+			throttle.start(response.getPriority());
+			stats.onResponseStarted(response);
+			responseStarted = System.currentTimeMillis();
+			key.interestOps(SelectionKey.OP_WRITE);
+			write();
+		}
+
+		private void write() throws IOException {
+			if (!response.writeTo(channel, throttle)) {
+				stats.onProgress(response);
+				if (response.isThrottled()) {
+					// stop selecting for writes until the throttle has tokens again
+					key.interestOps(0);
+					resumeAt = System.currentTimeMillis() + throttle.getDelay();
+					loop.pause(this);
+				} else if (response.isWaiting()) {
+					// stop selecting for writes until the file grows, or it is time to check whether it is finished
+					key.interestOps(0);
+					resumeAt = System.currentTimeMillis() + GROWING_FILE_WAIT;
+					loop.pause(this);
+					response.notifyWhenReady(wakeup);
+				}
+				return;
+			}
+			stats.onResponseCompleted(response);
+			stats.setSendBuffer(tuner.onResponseCompleted(channel.socket(), response.getBytesWritten(), System.currentTimeMillis() - responseStarted));
+			if (trace) {
+				ServerLog.d(TAG, "[" + id + "] response complete (HTTP " + response.getStatus() + ")");
+			}
+			response.release();
+			boolean close = response.isClose();
+			response = null;
+			if (close) {
+				close();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			key.interestOps(SelectionKey.OP_READ);
+			if (parser.hasBufferedData()) {
+				processHead();
+			}
+		}
+
+		public void resume() {
+			if (!key.isValid()) {
+				return;
+			}
+			// waiting for the throttle is not a stalled write
+			lastActivity = System.currentTimeMillis();
+			try {
+				key.interestOps(SelectionKey.OP_WRITE);
+				write();
+			} catch (Exception e) {
+				ServerLog.w(TAG, "[" + id + "] error serving client: " + e.getMessage());
+				close();
+			}
+		}
+
+		public void close() {
+			if (throttle != null) {
+				shaper.unregister(throttle);
+				throttle = null;
+			}
+			if (stats != null) {
+				handler.getMetrics().onConnectionClosed(stats);
+				stats = null;
+			}
+			if (response != null) {
+				response.release();
+				response = null;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+				if (ServerLog.isSampled(id)) {
+					ServerLog.d(TAG, "[" + id + "] client socket closed");
+				}
+			} catch (Exception e) {
+				ServerLog.w(TAG, "[" + id + "] could not close client socket: " + e.getMessage());
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,245 @@
+package com.tt.droidplay;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Class that implements the logging of the HTTP server. Messages are put in a bounded queue and written to the Android log by
+ * a background thread, so a streaming thread never waits for the log; when the queue is full, messages are dropped and
+ * counted.
+ *
+ * Debug messages are removed from release builds at compile time (BuildConfig.DEBUG) and gated by a level at runtime. Callers
+ * build debug messages only inside a check of isDebug() or isSampled(), so nothing is formatted when they are disabled. Per
+ * connection and per request messages are sampled: only every n-th connection and request is logged.
+ *
+ * @author Tuomas Tikka
+ */
+public final class ServerLog {
+
+	/**
+	 * Are debug messages compiled in?
+	 */
+	public static final boolean DEBUG = BuildConfig.DEBUG;
+
+	// the number of messages the queue holds
+	private static final int CAPACITY = 256;
+
+	// the lowest level logged (see android.util.Log)
+	private static volatile int level = DEBUG ? Log.DEBUG : Log.INFO;
+
+	// every n-th connection and request is logged at debug level
+	private static volatile int sampleInterval = 8;
+
+	// the messages waiting to be written
+	private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+
+	// the number of messages dropped because the queue was full
+	private static final AtomicLong dropped = new AtomicLong();
+
+	// the thread writing the messages, started with the first message
+	private static volatile Thread writer;
+
+	private ServerLog() {
+	}
+
+	/**
+	 * Are debug messages logged?
+	 *
+	 * @return True if debug messages are compiled in and enabled
+	 */
+	public static boolean isDebug() {
+		return (DEBUG && level <= Log.DEBUG);
+	}
+
+	/**
+	 * Are debug messages about a connection logged?
+	 *
+	 * @param id The connection id
+	 * @return True if debug messages are enabled and the connection is sampled
+	 */
+	public static boolean isSampled(int id) {
+		return (isDebug() && id % sampleInterval == 0);
+	}
+
+	/**
+	 * Are debug messages about a request logged? The decision only depends on the connection and the request number, so all
+	 * messages about the same request are logged or dropped together.
+	 *
+	 * @param id The connection id
+	 * @param request The number of the request on the connection
+	 * @return True if debug messages are enabled and the request is sampled
+	 */
+	public static boolean isSampled(int id, int request) {
+		return (isDebug() && (id + request) % sampleInterval == 0);
+	}
+
+	/**
+	 * Log a debug message. Build the message inside a check of isDebug() or isSampled().
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 */
+	public static void d(String tag, String message) {
+		if (isDebug()) {
+			log(Log.DEBUG, tag, message, null);
+		}
+	}
+
+	/**
+	 * Log an informational message.
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 */
+	public static void i(String tag, String message) {
+		if (level <= Log.INFO) {
+			log(Log.INFO, tag, message, null);
+		}
+	}
+
+	/**
+	 * Log a warning.
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 */
+	public static void w(String tag, String message) {
+		w(tag, message, null);
+	}
+
+	/**
+	 * Log a warning with the exception that caused it. The stack trace is only included when debug messages are enabled.
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 * @param t The exception, or null
+	 */
+	public static void w(String tag, String message, Throwable t) {
+		if (level <= Log.WARN) {
+			log(Log.WARN, tag, message, isDebug() ? t : null);
+		}
+	}
+
+	/**
+	 * Log an error.
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 */
+	public static void e(String tag, String message) {
+		e(tag, message, null);
+	}
+
+	/**
+	 * Log an error with the exception that caused it.
+	 *
+	 * @param tag The tag
+	 * @param message The message
+	 * @param t The exception, or null
+	 */
+	public static void e(String tag, String message, Throwable t) {
+		if (level <= Log.ERROR) {
+			log(Log.ERROR, tag, message, t);
+		}
+	}
+
+	/**
+	 * Set the lowest level logged. Debug messages cannot be enabled if they are not compiled in.
+	 *
+	 * @param level The level (e.g. Log.DEBUG or Log.WARN)
+	 */
+	public static void setLevel(int level) {
+		ServerLog.level = level;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Set how many connections and requests are logged at debug level.
+	 *
+	 * @param sampleInterval Every n-th connection and request is logged (1 = all)
+	 */
+	public static void setSampleInterval(int sampleInterval) {
+		ServerLog.sampleInterval = Math.max(1, sampleInterval);
+	}
+
+	public static int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	//
+	// Private
+	//
+
+	private static void log(int priority, String tag, String message, Throwable t) {
+		if (!queue.offer(new Entry(priority, tag, message, t))) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (writer == null) {
+			startWriter();
+		}
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread("DroidPlay-log") {
+			@Override
+			public void run() {
+				long reported = 0;
+				while (true) {
+					Entry entry;
+					try {
+						entry = queue.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long n = dropped.get();
+					if (n != reported) {
+						Log.println(Log.WARN, "ServerLog", "dropped " + (n - reported) + " message(s), the log queue was full");
+						reported = n;
+					}
+					String message = entry.message;
+					if (entry.t != null) {
+						message += "\n" + Log.getStackTraceString(entry.t);
+					}
+					Log.println(entry.priority, entry.tag, message);
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.setPriority(Thread.MIN_PRIORITY);
+		writer.start();
+	}
+
+	private static class Entry {
+
+		private int priority;
+
+		private String tag;
+
+		private String message;
+
+		private Throwable t;
+
+		public Entry(int priority, String tag, String message, Throwable t) {
+			this.priority = priority;
+			this.tag = tag;
+			this.message = message;
+			this.t = t;
+		}
+
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.tt.droidplay;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class that collects the statistics of the HTTP server: connections, responses by status, bytes sent, throughput and latency
+ * histograms. Recording only uses atomic counters, so it does not slow down the streaming path. The statistics are served as
+ * JSON from a reserved path on the server itself, together with the reports of the other parts of the server.
+ *
+ * @author Tuomas Tikka
+ */
+public class ServerMetrics {
+
+	/**
+	 * The reserved path the statistics are served from.
+	 */
+	public static final String PATH = "/droidplay/stats";
+
+	// when the metrics were created
+	private long startTime = System.currentTimeMillis();
+
+	// the connections currently open, by id
+	private Map<Integer, ConnectionStats> connections = new ConcurrentHashMap<Integer, ConnectionStats>();
+
+	// the number of connections opened
+	private AtomicLong totalConnections = new AtomicLong();
+
+	// the number of responses sent, by status code
+	private AtomicLongArray statusCounts = new AtomicLongArray(600);
+
+	// the number of bytes sent
+	private AtomicLong bytes = new AtomicLong();
+
+	// the time from a complete request head to the first byte of the response
+	private LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+	// the time from a complete request head to the last byte of the response
+	private LatencyHistogram duration = new LatencyHistogram();
+
+	// the other parts of the server reporting their counters, by name
+	private Map<String, ReportSource> sources = new LinkedHashMap<String, ReportSource>();
+
+	// the bytes sent and the time when the statistics were last served (for the current throughput)
+	private long lastBytes = 0;
+	private long lastTime = startTime;
+
+	/**
+	 * Register a new connection.
+	 *
+	 * @param id The connection id
+	 * @param address The address of the client
+	 * @return The statistics of the connection
+	 */
+	public ConnectionStats onConnectionOpened(int id, String address) {
+		ConnectionStats stats = new ConnectionStats(this, id, address);
+		connections.put(id, stats);
+		totalConnections.incrementAndGet();
+		return (stats);
+	}
+
+	/**
+	 * Unregister a connection.
+	 *
+	 * @param stats The statistics of the connection
+	 */
+	public void onConnectionClosed(ConnectionStats stats) {
+		if (stats != null) {
+			connections.remove(stats.getId());
+		}
+	}
+
+	/**
+	 * Count a response that has been sent.
+	 *
+	 * @param status The status code
+	 * @param millis The time it took to send the response (from a complete request head)
+	 */
+	public void onResponse(int status, long millis) {
+		countStatus(status);
+		duration.record(millis);
+	}
+
+	/**
+	 * Count a connection as used only to read the statistics, or no longer so. Such connections are left out of the statistics.
+	 *
+	 * @param monitor Is the connection used only to read the statistics?
+	 */
+	public void onMonitorChanged(boolean monitor) {
+		totalConnections.addAndGet(monitor ? -1 : 1);
+	}
+
+	/**
+	 * Count a response sent outside of a connection (e.g. 503 for a rejected connection).
+	 *
+	 * @param status The status code
+	 */
+	public void countStatus(int status) {
+		if (status > 0 && status < statusCounts.length()) {
+			statusCounts.incrementAndGet(status);
+		}
+	}
+
+	/**
+	 * Count bytes sent.
+	 *
+	 * @param n The number of bytes
+	 */
+	public void addBytes(long n) {
+		bytes.addAndGet(n);
+	}
+
+	/**
+	 * Add a part of the server whose counters are included in the statistics.
+	 *
+	 * @param name The name of the section
+	 * @param source The source of the counters
+	 */
+	public synchronized void addSource(String name, ReportSource source) {
+		sources.put(name, source);
+	}
+
+	/**
+	 * Return the statistics as JSON.
+	 *
+	 * @return The JSON document
+	 */
+	public synchronized String toJson() {
+		long now = System.currentTimeMillis();
+		List<ConnectionStats> snapshot = new ArrayList<ConnectionStats>(connections.size());
+		for (ConnectionStats stats : connections.values()) {
+			if (!stats.isMonitor()) {
+				snapshot.add(stats);
+			}
+		}
+		long sent = bytes.get();
+		for (ConnectionStats stats : snapshot) {
+			sent += stats.getUncountedBytes();
+		}
+		long recent = (sent - lastBytes) * 1000 / Math.max(1, now - lastTime);
+		lastBytes = sent;
+		lastTime = now;
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"uptimeMillis\":").append(now - startTime);
+		sb.append(",\"activeConnections\":").append(snapshot.size());
+		sb.append(",\"totalConnections\":").append(totalConnections.get());
+		sb.append(",\"bytes\":").append(sent);
+		sb.append(",\"bytesPerSecond\":").append(recent);
+		sb.append(",\"responses\":{");
+		boolean first = true;
+		for (int i = 0; i < statusCounts.length(); i++) {
+			long n = statusCounts.get(i);
+			if (n > 0) {
+				sb.append(first ? "" : ",").append('"').append(i).append("\":").append(n);
+				first = false;
+			}
+		}
+		sb.append("},\"timeToFirstByte\":");
+		timeToFirstByte.appendJson(sb);
+		sb.append(",\"duration\":");
+		duration.appendJson(sb);
+		sb.append(",\"connections\":[");
+		for (int i = 0; i < snapshot.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			snapshot.get(i).appendJson(sb, now);
+		}
+		sb.append(']');
+		for (Map.Entry<String, ReportSource> source : sources.entrySet()) {
+			sb.append(",\"").append(source.getKey()).append("\":{");
+			first = true;
+			for (Map.Entry<String, Long> counter : source.getValue().getReport().entrySet()) {
+				sb.append(first ? "" : ",").append('"').append(counter.getKey()).append("\":").append(counter.getValue());
+				first = false;
+			}
+			sb.append('}');
+		}
+		sb.append('}');
+		return (sb.toString());
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public LatencyHistogram getTimeToFirstByte() {
+		return timeToFirstByte;
+	}
+
+	public LatencyHistogram getDuration() {
+		return duration;
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public int getActiveConnections() {
+		return connections.size();
+	}
+
+}
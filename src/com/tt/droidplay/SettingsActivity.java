@@ -1,5 +1,7 @@
 package com.tt.droidplay;
 
+import java.util.Arrays;
+
 import android.app.ActionBar;
 import android.app.Activity;
 import android.content.SharedPreferences;
@@ -13,6 +15,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -31,9 +34,30 @@ public class SettingsActivity extends Activity {
     // server port
     EditText serverPort;
     
+    // server engine
+    Spinner serverMode;
+    
+    // upload limit, all connections
+    EditText globalRate;
+    
+    // upload limit, per connection
+    EditText connectionRate;
+    
+    // memory for small files
+    EditText hotCacheSize;
+    
+    // video streaming as HLS
+    CheckBox streamHls;
+    
     // image transition
     Spinner imageTransition;
     
+    // image size
+    Spinner imageSize;
+    
+    // photos sent ahead
+    EditText precacheCount;
+    
     // handler
     private Handler handler = new Handler();
     
@@ -56,11 +80,34 @@ public class SettingsActivity extends Activity {
 		// server port
 		serverPort = (EditText) findViewById(R.id.server_port);
 		
+		// server engine
+		ArrayAdapter<String> modeAdapter = new ArrayAdapter<String>(this, R.layout.server_mode_item, R.id.mode, Arrays.asList("Non-blocking (event loop)", "Thread per connection"));
+		serverMode = (Spinner) findViewById(R.id.server_mode);
+		serverMode.setAdapter(modeAdapter);
+		
+		// upload limits
+		globalRate = (EditText) findViewById(R.id.global_rate);
+		connectionRate = (EditText) findViewById(R.id.connection_rate);
+		
+		// memory for small files
+		hotCacheSize = (EditText) findViewById(R.id.hot_cache_size);
+		
+		// video streaming
+		streamHls = (CheckBox) findViewById(R.id.stream_hls);
+		
 		// image transition
 		ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, R.layout.image_transition_item, R.id.transition, AirPlayUtils.getTransitionDescriptions());
 		imageTransition = (Spinner) findViewById(R.id.image_transition);
 		imageTransition.setAdapter(adapter);
 		
+		// image size
+		ArrayAdapter<String> sizeAdapter = new ArrayAdapter<String>(this, R.layout.image_transition_item, R.id.transition, AirPlayUtils.getImageSizeDescriptions());
+		imageSize = (Spinner) findViewById(R.id.image_size);
+		imageSize.setAdapter(sizeAdapter);
+		
+		// photos sent ahead
+		precacheCount = (EditText) findViewById(R.id.precache_count);
+		
 		// load settings
 		loadSettings();
 	}
@@ -98,8 +145,21 @@ public class SettingsActivity extends Activity {
 	private void loadSettings() {
 		// server port
 		serverPort.setText("" + prefs.getInt("ServerPort", 9999));
+		// server engine
+		serverMode.setSelection(prefs.getInt("ServerMode", 0));
+		// upload limits
+		globalRate.setText("" + prefs.getInt("GlobalRateLimit", 0));
+		connectionRate.setText("" + prefs.getInt("ConnectionRateLimit", 0));
+		// memory for small files
+		hotCacheSize.setText("" + prefs.getInt("HotCacheSize", 16));
+		// video streaming
+		streamHls.setChecked(prefs.getBoolean("StreamHls", false));
 		// image transition
 		imageTransition.setSelection(prefs.getInt("ImageTransition", 0));
+		// image size
+		imageSize.setSelection(prefs.getInt("ImageSize", 0));
+		// photos sent ahead
+		precacheCount.setText("" + prefs.getInt("PrecacheCount", 3));
 	}
 	
 	private void saveSettings() {
@@ -114,10 +174,48 @@ public class SettingsActivity extends Activity {
 			Toast.makeText(this, "Server port: must be a number", Toast.LENGTH_SHORT).show();
 			return;
 		}
+		// validate upload limits
+		try {
+			if (Integer.parseInt(globalRate.getText().toString()) < 0 || Integer.parseInt(connectionRate.getText().toString()) < 0) {
+				Toast.makeText(this, "Upload limit: must not be negative", Toast.LENGTH_SHORT).show();
+				return;
+			}
+		} catch (Exception e) {
+			Toast.makeText(this, "Upload limit: must be a number", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		// validate memory for small files
+		try {
+			if (Integer.parseInt(hotCacheSize.getText().toString()) < 0) {
+				Toast.makeText(this, "Memory for small files: must not be negative", Toast.LENGTH_SHORT).show();
+				return;
+			}
+		} catch (Exception e) {
+			Toast.makeText(this, "Memory for small files: must be a number", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		// validate photos sent ahead
+		try {
+			int i = Integer.parseInt(precacheCount.getText().toString());
+			if (i < 0 || i > 10) {
+				Toast.makeText(this, "Photos sent ahead: must be in range 0-10", Toast.LENGTH_SHORT).show();
+				return;
+			}
+		} catch (Exception e) {
+			Toast.makeText(this, "Photos sent ahead: must be a number", Toast.LENGTH_SHORT).show();
+			return;
+		}
 		// save
 		Editor editor = prefs.edit();
 		editor.putInt("ServerPort", Integer.parseInt(serverPort.getText().toString()));
+		editor.putInt("ServerMode", serverMode.getSelectedItemPosition());
+		editor.putInt("GlobalRateLimit", Integer.parseInt(globalRate.getText().toString()));
+		editor.putInt("ConnectionRateLimit", Integer.parseInt(connectionRate.getText().toString()));
+		editor.putInt("HotCacheSize", Integer.parseInt(hotCacheSize.getText().toString()));
+		editor.putBoolean("StreamHls", streamHls.isChecked());
 		editor.putInt("ImageTransition", imageTransition.getSelectedItemPosition());
+		editor.putInt("ImageSize", imageSize.getSelectedItemPosition());
+		editor.putInt("PrecacheCount", Integer.parseInt(precacheCount.getText().toString()));
 		editor.commit();
 	}
 	
@@ -0,0 +1,275 @@
+package com.tt.droidplay;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that tunes the sockets of client connections and enforces the write timeout.
+ *
+ * TCP_NODELAY is set, because responses are written in large pieces (the head goes out together with the first chunk of the
+ * body), so waiting for more data only delays the end of each response. The send buffer is left to the system until a response
+ * shows that the connection moves more data than the buffer holds: it is then raised to the throughput times a target delay,
+ * within limits. Setting the size switches off the autotuning of the system, so it is only ever raised.
+ *
+ * A blocking write cannot time out by itself, so in thread per connection mode a watchdog closes sockets whose response makes no
+ * progress for the write timeout. The non-blocking engine checks the same timeout when it sweeps its connections.
+ *
+ * @author Tuomas Tikka
+ */
+public class SocketTuner implements ReportSource {
+
+	private static final String TAG = "SocketTuner";
+
+	/**
+	 * The size of the first chunk of a body, sent together with the head.
+	 */
+	public static final int FIRST_CHUNK_SIZE = 8 * 1024;
+
+	// how often the watchdog checks the responses being written (milliseconds)
+	private static final long WATCHDOG_INTERVAL = 1000;
+
+	// responses shorter than this do not tell much about the throughput (bytes)
+	private static final long MIN_MEASURED_BYTES = 256 * 1024;
+
+	// is TCP_NODELAY set?
+	private volatile boolean tcpNoDelay = true;
+
+	// the limits of the send buffer size set from the throughput (bytes)
+	private volatile int minSendBuffer = 64 * 1024;
+	private volatile int maxSendBuffer = 1024 * 1024;
+
+	// how much sending time the send buffer should hold (milliseconds)
+	private volatile long bufferDelay = 200;
+
+	// how long a response may make no progress before the connection is closed (milliseconds)
+	private volatile int writeTimeout = 30 * 1000;
+
+	// the send buffer size of new sockets as chosen by the system
+	private volatile long defaultSendBuffer = -1;
+
+	// the number of connections whose send buffer was raised, and the largest size set
+	private AtomicLong sendBufferRaised = new AtomicLong();
+	private AtomicLong largestSendBuffer = new AtomicLong();
+
+	// the number of connections closed because a write made no progress
+	private AtomicLong writeTimeouts = new AtomicLong();
+
+	// the responses being written in thread per connection mode, by socket
+	private Map<Socket, Watch> watched = new ConcurrentHashMap<Socket, Watch>();
+
+	// the watchdog, or null if it is not running
+	private ScheduledExecutorService watchdog;
+
+	/**
+	 * Start the watchdog (thread per connection mode).
+	 */
+	public synchronized void start() {
+		if (watchdog != null) {
+			return;
+		}
+		watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DroidPlay-watchdog");
+				thread.setDaemon(true);
+				return (thread);
+			}
+		});
+		watchdog.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkWatched(System.currentTimeMillis());
+			}
+		}, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the watchdog.
+	 */
+	public synchronized void stop() {
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+			watchdog = null;
+		}
+		watched.clear();
+	}
+
+	/**
+	 * Set the options of a new client socket.
+	 *
+	 * @param socket The socket
+	 * @return The send buffer size of the socket
+	 * @throws SocketException If an option cannot be set
+	 */
+	public int configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		int size = socket.getSendBufferSize();
+		if (defaultSendBuffer == -1) {
+			defaultSendBuffer = size;
+		}
+		return (size);
+	}
+
+	/**
+	 * Adjust the send buffer after a response has been sent.
+	 *
+	 * @param socket The socket
+	 * @param bytes The number of bytes sent
+	 * @param millis The time it took to send them
+	 * @return The send buffer size of the socket
+	 * @throws SocketException If the size cannot be set
+	 */
+	public int onResponseCompleted(Socket socket, long bytes, long millis) throws SocketException {
+		int current = socket.getSendBufferSize();
+		if (bytes < MIN_MEASURED_BYTES || current >= maxSendBuffer) {
+			return (current);
+		}
+		long throughput = bytes * 1000 / Math.max(1, millis);
+		int target = (int) Math.min(maxSendBuffer, Math.max(minSendBuffer, throughput * bufferDelay / 1000));
+		// the system may report twice the size set (Linux), so compare with some slack
+		if (target > current + current / 4) {
+			socket.setSendBufferSize(target);
+			current = socket.getSendBufferSize();
+			sendBufferRaised.incrementAndGet();
+			long largest;
+			while (current > (largest = largestSendBuffer.get())) {
+				if (largestSendBuffer.compareAndSet(largest, current)) {
+					break;
+				}
+			}
+			if (ServerLog.isDebug()) {
+				ServerLog.d(TAG, "raised send buffer to " + current + " bytes (" + throughput + " bytes/s)");
+			}
+		}
+		return (current);
+	}
+
+	/**
+	 * Watch a response written with a blocking write (thread per connection mode).
+	 *
+	 * @param socket The socket
+	 * @param response The response
+	 */
+	public void watch(Socket socket, HttpResponse response) {
+		watched.put(socket, new Watch(response));
+	}
+
+	/**
+	 * Stop watching the response written to a socket.
+	 *
+	 * @param socket The socket
+	 */
+	public void unwatch(Socket socket) {
+		watched.remove(socket);
+	}
+
+	/**
+	 * Count a connection closed because a write made no progress (non-blocking mode).
+	 */
+	public void onWriteTimeout() {
+		writeTimeouts.incrementAndGet();
+	}
+
+	@Override
+	public Map<String, Long> getReport() {
+		Map<String, Long> report = new LinkedHashMap<String, Long>();
+		report.put("tcpNoDelay", tcpNoDelay ? 1L : 0L);
+		report.put("firstChunkSize", (long) FIRST_CHUNK_SIZE);
+		report.put("defaultSendBuffer", defaultSendBuffer);
+		report.put("sendBufferRaised", sendBufferRaised.get());
+		report.put("largestSendBuffer", largestSendBuffer.get());
+		report.put("writeTimeoutMillis", (long) writeTimeout);
+		report.put("writeTimeouts", writeTimeouts.get());
+		return (report);
+	}
+
+	//
+	// Private
+	//
+
+	private void checkWatched(long now) {
+		for (Map.Entry<Socket, Watch> entry : watched.entrySet()) {
+			Watch watch = entry.getValue();
+			long written = watch.response.getBytesWritten();
+			// waiting for a file being written to grow is not a stalled write
+			if (written != watch.written || watch.response.isWaiting()) {
+				watch.written = written;
+				watch.progressAt = now;
+			} else if (now - watch.progressAt >= writeTimeout) {
+				// closing the socket makes the blocked write fail
+				ServerLog.w(TAG, "closing client connection, no progress writing for " + (now - watch.progressAt) + " ms");
+				watched.remove(entry.getKey());
+				writeTimeouts.incrementAndGet();
+				try {
+					entry.getKey().close();
+				} catch (Exception e) {
+					ServerLog.w(TAG, "could not close client socket: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class Watch {
+
+		private HttpResponse response;
+
+		private long written = -1;
+
+		private long progressAt = System.currentTimeMillis();
+
+		public Watch(HttpResponse response) {
+			this.response = response;
+		}
+
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public void setSendBufferLimits(int minSendBuffer, int maxSendBuffer) {
+		this.minSendBuffer = Math.max(4096, minSendBuffer);
+		this.maxSendBuffer = Math.max(this.minSendBuffer, maxSendBuffer);
+	}
+
+	public int getMinSendBuffer() {
+		return minSendBuffer;
+	}
+
+	public int getMaxSendBuffer() {
+		return maxSendBuffer;
+	}
+
+	public void setBufferDelay(long bufferDelay) {
+		this.bufferDelay = Math.max(1, bufferDelay);
+	}
+
+	public long getBufferDelay() {
+		return bufferDelay;
+	}
+
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = Math.max(1000, writeTimeout);
+	}
+
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+}
@@ -0,0 +1,207 @@
+package com.tt.droidplay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.app.ActionBar;
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/**
+ * The statistics activity. The statistics are read from the reserved path of the local HTTP server, which serves them only to
+ * the device itself and leaves these requests out of the statistics.
+ * 
+ * @author Tuomas Tikka
+ */
+public class StatsActivity extends Activity {
+
+	// how often the statistics are refreshed (milliseconds)
+	private static final long REFRESH_INTERVAL = 1000;
+	
+	// app preferences
+	private SharedPreferences prefs;
+	
+	// the statistics
+	private TextView stats;
+	
+	// is the activity visible (refreshing)?
+	private volatile boolean visible = false;
+	
+	// handler
+	private Handler handler = new Handler();
+	
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		
+		setContentView(R.layout.stats);
+		
+		// action bar icon as home link
+		ActionBar actionBar = getActionBar();
+		actionBar.setSubtitle("Statistics");
+		actionBar.setHomeButtonEnabled(true);
+		actionBar.setDisplayUseLogoEnabled(false);
+		actionBar.setDisplayHomeAsUpEnabled(true); 
+		
+		// preferences
+		prefs = getSharedPreferences("DroidPlay", 0);
+		
+		// statistics
+		stats = (TextView) findViewById(R.id.stats);
+	}
+	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		visible = true;
+		refresh();
+	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		visible = false;
+	}
+	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+	    switch (item.getItemId()) {
+	    case android.R.id.home: {
+	    	finish();
+	    	break;
+	    }
+	    default:
+	    	break;
+	    }
+	    return (true);
+	} 	
+	
+	private void refresh() {
+		final int port = prefs.getInt("ServerPort", 9999);
+		// network access is not allowed on the main thread
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				String text;
+				try {
+					text = format(new JSONObject(fetch(port)));
+				} catch (Exception e) {
+					text = "Unable to read statistics: " + e.getMessage();
+				}
+				final String result = text;
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						stats.setText(result);
+						if (visible) {
+							handler.postDelayed(new Runnable() {
+								@Override
+								public void run() {
+									if (visible) {
+										refresh();
+									}
+								}
+							}, REFRESH_INTERVAL);
+						}
+					}
+				});
+			}
+		};
+		thread.start();
+	}
+	
+	private String fetch(int port) throws Exception {
+		// the stream is read to the end and closed, not disconnected, so the next refresh reuses the connection
+		HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + ServerMetrics.PATH).openConnection();
+		conn.setConnectTimeout(2000);
+		conn.setReadTimeout(2000);
+		InputStream in = conn.getInputStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int i;
+			while ((i = in.read(buffer)) != -1) {
+				out.write(buffer, 0, i);
+			}
+			return (out.toString("UTF-8"));
+		} finally {
+			in.close();
+		}
+	}
+	
+	private String format(JSONObject json) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Uptime: ").append(json.getLong("uptimeMillis") / 1000).append(" s\n");
+		sb.append("Connections: ").append(json.getLong("activeConnections")).append(" active, ");
+		sb.append(json.getLong("totalConnections")).append(" total\n");
+		sb.append("Sent: ").append(formatBytes(json.getLong("bytes"))).append(", ");
+		sb.append(formatBytes(json.getLong("bytesPerSecond"))).append("/s\n");
+		sb.append("\nResponses by status\n");
+		JSONObject responses = json.getJSONObject("responses");
+		Iterator<?> statuses = responses.keys();
+		while (statuses.hasNext()) {
+			String status = (String) statuses.next();
+			sb.append("  ").append(status).append(": ").append(responses.getLong(status)).append("\n");
+		}
+		appendHistogram(sb, "Time to first byte", json.getJSONObject("timeToFirstByte"));
+		appendHistogram(sb, "Request duration", json.getJSONObject("duration"));
+		sb.append("\nOpen connections\n");
+		JSONArray connections = json.getJSONArray("connections");
+		for (int i = 0; i < connections.length(); i++) {
+			JSONObject c = connections.getJSONObject(i);
+			sb.append("  #").append(c.getInt("id")).append(" ").append(c.getString("address"));
+			sb.append(" ").append(formatBytes(c.getLong("bytes")));
+			sb.append(" ").append(formatBytes(c.getLong("bytesPerSecond"))).append("/s");
+			if (c.getInt("status") != 0) {
+				sb.append(" (HTTP ").append(c.getInt("status")).append(")");
+			}
+			sb.append("\n");
+		}
+		// the reports of the other parts of the server
+		Iterator<?> names = json.keys();
+		while (names.hasNext()) {
+			String name = (String) names.next();
+			JSONObject section = json.optJSONObject(name);
+			if (section == null || name.equals("responses") || name.equals("timeToFirstByte") || name.equals("duration")) {
+				continue;
+			}
+			sb.append("\n").append(name).append("\n");
+			Iterator<?> counters = section.keys();
+			while (counters.hasNext()) {
+				String counter = (String) counters.next();
+				sb.append("  ").append(counter).append(": ").append(section.get(counter)).append("\n");
+			}
+		}
+		return (sb.toString());
+	}
+	
+	private void appendHistogram(StringBuilder sb, String title, JSONObject histogram) throws Exception {
+		sb.append("\n").append(title).append(" (").append(histogram.getLong("count")).append(" requests)\n");
+		sb.append("  avg ").append(histogram.getLong("averageMillis")).append(" ms");
+		sb.append(", p50 ").append(histogram.getLong("p50Millis")).append(" ms");
+		sb.append(", p90 ").append(histogram.getLong("p90Millis")).append(" ms");
+		sb.append(", p99 ").append(histogram.getLong("p99Millis")).append(" ms");
+		sb.append(", max ").append(histogram.getLong("maxMillis")).append(" ms\n");
+	}
+	
+	private String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return (bytes + " B");
+		}
+		if (bytes < 1024 * 1024) {
+			return (String.format("%.1f KB", bytes / 1024.0));
+		}
+		return (String.format("%.1f MB", bytes / (1024.0 * 1024.0)));
+	}
+	
+}
@@ -0,0 +1,121 @@
+package com.tt.droidplay;
+
+/**
+ * Class that implements a token bucket used for rate control. Tokens are bytes; they are added at the configured rate up to
+ * the bucket capacity, and a writer may only send as many bytes as it can take tokens.
+ *
+ * @author Tuomas Tikka
+ */
+public class TokenBucket {
+
+	// the smallest bucket capacity (bytes), so low rates still allow reasonably sized writes
+	private static final long MIN_CAPACITY = 16 * 1024;
+
+	// the rate in bytes per second (0 = unlimited)
+	private long rate;
+
+	// the maximum number of tokens (bytes) in the bucket
+	private long capacity;
+
+	// the tokens currently in the bucket
+	private double tokens;
+
+	// when tokens were last added (nanoseconds)
+	private long lastRefill;
+
+	/**
+	 * Initialize the bucket.
+	 *
+	 * @param rate The rate in bytes per second (0 = unlimited)
+	 */
+	public TokenBucket(long rate) {
+		setRate(rate);
+	}
+
+	/**
+	 * Take up to the wanted number of tokens, leaving at least the reserve in the bucket.
+	 *
+	 * @param wanted The number of tokens wanted
+	 * @param reserve The number of tokens that must stay in the bucket
+	 * @return The number of tokens granted (may be zero)
+	 */
+	public synchronized long take(long wanted, long reserve) {
+		if (rate <= 0) {
+			return (wanted);
+		}
+		refill();
+		long available = (long) tokens - reserve;
+		if (available <= 0) {
+			return (0);
+		}
+		long granted = Math.min(wanted, available);
+		tokens -= granted;
+		return (granted);
+	}
+
+	/**
+	 * Return tokens that were taken but not used.
+	 *
+	 * @param unused The number of tokens
+	 */
+	public synchronized void giveBack(long unused) {
+		if (rate <= 0 || unused <= 0) {
+			return;
+		}
+		tokens = Math.min(capacity, tokens + unused);
+	}
+
+	/**
+	 * Return how long it takes until tokens can be taken again.
+	 *
+	 * @param reserve The number of tokens that must stay in the bucket
+	 * @return The delay in milliseconds (zero if tokens are available now)
+	 */
+	public synchronized long getDelay(long reserve) {
+		if (rate <= 0) {
+			return (0);
+		}
+		refill();
+		// wait for a reasonably sized write, not for a single byte
+		double missing = reserve + Math.min(capacity - reserve, MIN_CAPACITY / 4) - tokens;
+		if (missing <= 0) {
+			return (0);
+		}
+		return ((long) Math.ceil(missing * 1000 / rate));
+	}
+
+	/**
+	 * Set the rate. The capacity allows bursts of a quarter of a second.
+	 *
+	 * @param rate The rate in bytes per second (0 = unlimited)
+	 */
+	public synchronized void setRate(long rate) {
+		this.rate = Math.max(0, rate);
+		this.capacity = Math.max(MIN_CAPACITY, this.rate / 4);
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	//
+	// Private
+	//
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+	}
+
+	//
+	// Getters and setters
+	//
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+}